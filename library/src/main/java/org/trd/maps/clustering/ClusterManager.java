@@ -23,7 +23,9 @@ import com.huawei.hms.maps.HuaweiMap;
 import com.huawei.hms.maps.model.CameraPosition;
 import com.huawei.hms.maps.model.Marker;
 
+import org.trd.maps.clustering.algo.AbstractAlgorithm;
 import org.trd.maps.clustering.algo.Algorithm;
+import org.trd.maps.clustering.algo.ItemBatch;
 import org.trd.maps.clustering.algo.NonHierarchicalDistanceBasedAlgorithm;
 import org.trd.maps.clustering.algo.PreCachingAlgorithmDecorator;
 import org.trd.maps.clustering.algo.ScreenBasedAlgorithm;
@@ -245,6 +247,11 @@ public class ClusterManager<T extends ClusterItem> implements
      */
     public boolean updateItem(T item) {
         final Algorithm<T> algorithm = getAlgorithm();
+        if (algorithm instanceof AbstractAlgorithm
+                && ((AbstractAlgorithm<T>) algorithm).canUpdateConcurrently()) {
+            // Updates are only queued, so they need not wait for a clustering pass.
+            return algorithm.updateItem(item);
+        }
         algorithm.lock();
         try {
             return algorithm.updateItem(item);
@@ -253,6 +260,31 @@ public class ClusterManager<T extends ClusterItem> implements
         }
     }
 
+    /**
+     * Starts a batch of changes to the items. Committing it applies all of them at once, while
+     * holding the algorithm lock, and re-clusters the map once if they changed anything.
+     * @return an empty batch of changes to the items of this cluster manager
+     */
+    public ItemBatch<T> beginBatch() {
+        return new ItemBatch<>(new ItemBatch.Target<T>() {
+            @Override
+            public boolean apply(ItemBatch<T> batch) {
+                final Algorithm<T> algorithm = getAlgorithm();
+                boolean result;
+                algorithm.lock();
+                try {
+                    result = batch.applyTo(algorithm);
+                } finally {
+                    algorithm.unlock();
+                }
+                if (result) {
+                    cluster();
+                }
+                return result;
+            }
+        });
+    }
+
     /**
      * Force a re-cluster on the map. You should call this after adding, removing, updating,
      * or clearing item(s).
@@ -308,6 +340,11 @@ public class ClusterManager<T extends ClusterItem> implements
         @Override
         protected Set<? extends Cluster<T>> doInBackground(Float... zoom) {
             final Algorithm<T> algorithm = getAlgorithm();
+            if (algorithm instanceof AbstractAlgorithm
+                    && ((AbstractAlgorithm<T>) algorithm).canClusterConcurrently()) {
+                // Items can be changed while the algorithm clusters them.
+                return algorithm.getClusters(zoom[0]);
+            }
             algorithm.lock();
             try {
                 return algorithm.getClusters(zoom[0]);
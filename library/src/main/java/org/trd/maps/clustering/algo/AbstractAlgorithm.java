@@ -21,7 +21,8 @@ import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
- * Base Algorithm class that implements lock/unlock functionality.
+ * Base Algorithm class that implements lock/unlock functionality, and batches of changes
+ * applied one kind of change at a time.
  */
 public abstract class AbstractAlgorithm<T extends ClusterItem> implements Algorithm<T> {
 
@@ -36,4 +37,42 @@ public abstract class AbstractAlgorithm<T extends ClusterItem> implements Algori
     public void unlock() {
         mLock.writeLock().unlock();
     }
+
+    /**
+     * @return whether {@link #getClusters} can run without holding {@link #lock()}, while items
+     * are changed. Algorithms that cluster a snapshot of their items return true.
+     */
+    public boolean canClusterConcurrently() {
+        return false;
+    }
+
+    /**
+     * @return whether {@link #updateItem} can run without holding {@link #lock()}, while items are
+     * clustered. Algorithms that only queue updates return true.
+     */
+    public boolean canUpdateConcurrently() {
+        return false;
+    }
+
+    /**
+     * Starts a batch of changes to the items, applied all at once when committed
+     * @return an empty batch, which applies its changes to this algorithm
+     */
+    public ItemBatch<T> beginBatch() {
+        return new ItemBatch<>(new ItemBatch.Target<T>() {
+            @Override
+            public boolean apply(ItemBatch<T> batch) {
+                return applyBatch(batch);
+            }
+        });
+    }
+
+    /**
+     * Applies the changes of a batch at once: its removals, then its additions, then its updates
+     * @param batch the changes to apply
+     * @return true if this algorithm contents changed as a result of the call
+     */
+    public boolean applyBatch(ItemBatch<T> batch) {
+        return batch.applyEachTo(this);
+    }
 }
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2020 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.trd.maps.clustering.algo;
+
+import com.huawei.hms.maps.model.LatLng;
+
+import org.trd.maps.clustering.Cluster;
+import org.trd.maps.clustering.ClusterItem;
+import org.trd.maps.geometry.Point;
+import org.trd.maps.projection.SphericalMercatorProjection;
+import org.trd.maps.quadtree.PointQuadTree;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The clusters of one zoom level, as cached by {@link PreCachingAlgorithmDecorator}, which can
+ * follow changes to the items without clustering them all again.
+ * <p/>
+ * Changes are applied as in {@link NonHierarchicalDistanceBasedAlgorithm}: an added item joins
+ * the nearest cluster whose center is within the clustering distance, or else becomes a cluster
+ * of its own. A removed item leaves its cluster, which is dropped once empty, and a moved item is
+ * removed and added again unless it is still within reach of its cluster. Clusters keep their
+ * position, so the result can drift from what clustering from scratch would give; clearing the
+ * cache starts over.
+ * <p/>
+ * Clusters handed out are never modified. Changed clusters are replaced by new ones the next time
+ * the clusters are read, so a burst of changes to one cluster costs one copy of it. All access
+ * must be synchronized on this object.
+ */
+class CachedClusters<T extends ClusterItem> {
+    private static final SphericalMercatorProjection PROJECTION = new SphericalMercatorProjection(1);
+
+    private final double mHalfSpan;
+
+    /**
+     * The latest clusters, as returned by {@link #getClusters()}; null once out of date.
+     */
+    private Set<? extends Cluster<T>> mClusters;
+
+    /**
+     * Clusters by center, created from mClusters by the first change. Null until then.
+     */
+    private PointQuadTree<Entry<T>> mTree;
+    private Set<Entry<T>> mEntries;
+    private Map<T, Entry<T>> mEntryOfItem;
+
+    /**
+     * @param clusters    the clusters of this zoom level, from the decorated algorithm
+     * @param zoom        the zoom level
+     * @param maxDistance the algorithm's maximum distance between clustered items, in dp
+     */
+    CachedClusters(Set<? extends Cluster<T>> clusters, int zoom, int maxDistance) {
+        mClusters = clusters;
+        // Same distance as NonHierarchicalDistanceBasedAlgorithm
+        mHalfSpan = maxDistance / Math.pow(2, zoom) / 256 / 2;
+    }
+
+    /**
+     * @return the current clusters. The set is not modified by later changes.
+     */
+    Set<? extends Cluster<T>> getClusters() {
+        if (mClusters == null) {
+            Set<Cluster<T>> clusters = new HashSet<>();
+            for (Entry<T> entry : mEntries) {
+                clusters.add(entry.publish());
+            }
+            mClusters = Collections.unmodifiableSet(clusters);
+        }
+        return mClusters;
+    }
+
+    void addItem(T item) {
+        index();
+        if (!mEntryOfItem.containsKey(item)) {
+            insert(item, toPoint(item.getPosition()));
+        }
+    }
+
+    void removeItem(T item) {
+        index();
+        Entry<T> entry = mEntryOfItem.remove(item);
+        if (entry != null) {
+            detach(entry, item);
+        }
+    }
+
+    void updateItem(T item) {
+        index();
+        Entry<T> entry = mEntryOfItem.get(item);
+        Point point = toPoint(item.getPosition());
+        if (entry != null && entry.reaches(point, mHalfSpan)) {
+            // Still part of the same cluster; only the stored item is replaced.
+            entry.items.remove(item);
+            entry.items.add(item);
+            markChanged(entry);
+            return;
+        }
+        if (entry != null) {
+            mEntryOfItem.remove(item);
+            detach(entry, item);
+        }
+        insert(item, point);
+    }
+
+    private void insert(T item, Point point) {
+        List<Entry<T>> candidates = new ArrayList<>();
+        mTree.search(point.x - mHalfSpan, point.x + mHalfSpan, point.y - mHalfSpan, point.y + mHalfSpan, candidates);
+        Entry<T> closest = null;
+        double closestDistance = Double.POSITIVE_INFINITY;
+        for (Entry<T> candidate : candidates) {
+            double distance = distanceSquared(candidate.point, point);
+            if (distance < closestDistance) {
+                closest = candidate;
+                closestDistance = distance;
+            }
+        }
+        if (closest == null) {
+            closest = new Entry<>(item.getPosition(), point);
+            mTree.add(closest);
+            mEntries.add(closest);
+        }
+        closest.items.add(item);
+        mEntryOfItem.put(item, closest);
+        markChanged(closest);
+    }
+
+    private void detach(Entry<T> entry, T item) {
+        entry.items.remove(item);
+        if (entry.items.isEmpty()) {
+            mTree.remove(entry);
+            mEntries.remove(entry);
+            mClusters = null;
+        } else {
+            markChanged(entry);
+        }
+    }
+
+    private void markChanged(Entry<T> entry) {
+        entry.published = null;
+        mClusters = null;
+    }
+
+    /**
+     * Indexes the clusters from the algorithm, before the first change.
+     */
+    private void index() {
+        if (mTree != null) {
+            return;
+        }
+        mTree = new PointQuadTree<>(0, 1, 0, 1);
+        mEntries = new LinkedHashSet<>();
+        mEntryOfItem = new HashMap<>();
+        for (Cluster<T> cluster : mClusters) {
+            Entry<T> entry = new Entry<>(cluster.getPosition(), toPoint(cluster.getPosition()));
+            entry.items.addAll(cluster.getItems());
+            entry.published = cluster;
+            for (T item : entry.items) {
+                mEntryOfItem.put(item, entry);
+            }
+            mTree.add(entry);
+            mEntries.add(entry);
+        }
+    }
+
+    /**
+     * Projects a position, keeping those beyond the mercator limits at the top or bottom edge of
+     * the world so that they can be indexed.
+     */
+    private static Point toPoint(LatLng position) {
+        Point point = PROJECTION.toPoint(position);
+        if (point.y >= 0 && point.y <= 1) {
+            return point;
+        }
+        return new Point(point.x, point.y > 0 ? 1 : 0);
+    }
+
+    private static double distanceSquared(Point a, Point b) {
+        return (a.x - b.x) * (a.x - b.x) + (a.y - b.y) * (a.y - b.y);
+    }
+
+    private static class Entry<T extends ClusterItem> implements PointQuadTree.Item {
+        private final LatLng position;
+        private final Point point;
+        private final Set<T> items = new LinkedHashSet<>();
+
+        /**
+         * The cluster last handed out for this entry, or null if the items changed since.
+         */
+        private Cluster<T> published;
+
+        private Entry(LatLng position, Point point) {
+            this.position = position;
+            this.point = point;
+        }
+
+        @Override
+        public Point getPoint() {
+            return point;
+        }
+
+        private boolean reaches(Point p, double halfSpan) {
+            return Math.abs(p.x - point.x) <= halfSpan && Math.abs(p.y - point.y) <= halfSpan;
+        }
+
+        private Cluster<T> publish() {
+            if (published == null) {
+                StaticCluster<T> cluster = new StaticCluster<>(position);
+                for (T item : items) {
+                    cluster.add(item);
+                }
+                published = cluster;
+            }
+            return published;
+        }
+    }
+}
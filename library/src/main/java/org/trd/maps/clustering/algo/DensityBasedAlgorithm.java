@@ -0,0 +1,326 @@
+/*
+ * Copyright 2020 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.trd.maps.clustering.algo;
+
+import androidx.annotation.Nullable;
+
+import com.huawei.hms.maps.model.LatLng;
+
+import org.trd.maps.clustering.Cluster;
+import org.trd.maps.clustering.ClusterItem;
+import org.trd.maps.geometry.Point;
+import org.trd.maps.projection.SphericalMercatorProjection;
+import org.trd.maps.quadtree.PointQuadTree;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * A density based clustering algorithm (DBSCAN). Unlike the distance based algorithms, clusters
+ * are not limited to the items around one center, so dense areas become few large clusters
+ * whatever the order of the items.
+ * <p/>
+ * High level algorithm:<br>
+ * 1. Find the core items: those with at least a minimum number of items (themselves included)
+ * within the max distance. <br>
+ * 2. Core items within reach of each other are in the same cluster. <br>
+ * 3. Other items within reach of a core item join the cluster of the first one found. <br>
+ * 4. The remaining items are returned on their own.
+ * <p/>
+ * Clusters are centered on the centroid of their items. Finding the core items can be split
+ * across threads (see {@link #setExecutor}).
+ */
+public class DensityBasedAlgorithm<T extends ClusterItem> extends AbstractAlgorithm<T> {
+    private static final int DEFAULT_MAX_DISTANCE_AT_ZOOM = 100; // essentially 100 dp.
+
+    private static final int DEFAULT_MIN_ITEMS_IN_CLUSTER = 4;
+
+    /**
+     * Fewer items than this are looked at on the calling thread, even given an executor.
+     */
+    private static final int MIN_ITEMS_PER_TASK = 1000;
+
+    private static final SphericalMercatorProjection PROJECTION = new SphericalMercatorProjection(1);
+
+    private volatile int mMaxDistance = DEFAULT_MAX_DISTANCE_AT_ZOOM;
+    private volatile int mMinItems = DEFAULT_MIN_ITEMS_IN_CLUSTER;
+
+    /**
+     * The items, wrapped in DensityItems.
+     */
+    private final SnapshotItemStore<T, DensityItem<T>> mStore = new SnapshotItemStore<T, DensityItem<T>>() {
+        @Override
+        DensityItem<T> wrap(T item, int id) {
+            return new DensityItem<>(item, id);
+        }
+
+        @Override
+        T itemOf(DensityItem<T> wrapper) {
+            return wrapper.mClusterItem;
+        }
+
+        @Override
+        int idOf(DensityItem<T> wrapper) {
+            return wrapper.mId;
+        }
+
+        @Override
+        LatLng positionOf(DensityItem<T> wrapper) {
+            return wrapper.mPosition;
+        }
+    };
+
+    /**
+     * Finds core items on other threads, or null to do it on the calling thread.
+     */
+    private volatile Executor mExecutor;
+    private volatile int mParallelism;
+
+    @Override
+    public boolean addItem(T item) {
+        return mStore.add(item);
+    }
+
+    @Override
+    public boolean addItems(Collection<T> items) {
+        return mStore.addAll(items);
+    }
+
+    @Override
+    public void clearItems() {
+        mStore.clear();
+    }
+
+    @Override
+    public boolean removeItem(T item) {
+        return mStore.remove(item);
+    }
+
+    @Override
+    public boolean removeItems(Collection<T> items) {
+        return mStore.removeAll(items);
+    }
+
+    @Override
+    public boolean updateItem(T item) {
+        // Items that were never added are not added (to help prevent accidental duplicates on map)
+        return mStore.update(item);
+    }
+
+    /**
+     * Applies a batch of changes under a single lock, so that no clustering pass sees only some
+     * of them.
+     */
+    @Override
+    public boolean applyBatch(ItemBatch<T> batch) {
+        synchronized (mStore) {
+            return super.applyBatch(batch);
+        }
+    }
+
+    /**
+     * @return true, as clustering runs against a snapshot of the items
+     */
+    @Override
+    public boolean canClusterConcurrently() {
+        return true;
+    }
+
+    @Override
+    public Set<? extends Cluster<T>> getClusters(float zoom) {
+        final int discreteZoom = (int) zoom;
+        final double halfSpan = mMaxDistance / Math.pow(2, discreteZoom) / 256 / 2;
+        final int minItems = mMinItems;
+
+        final SnapshotItemStore.Snapshot<DensityItem<T>> snapshot = mStore.snapshot();
+        final PointQuadTree<DensityItem<T>> quadTree = snapshot.mQuadTree;
+        final List<DensityItem<T>> items = snapshot.mItems;
+        final int idCount = snapshot.mIdCount;
+
+        // The snapshot is immutable, so the rest runs without blocking writers.
+        final boolean[] core = findCoreItems(quadTree, items, idCount, halfSpan, minItems);
+
+        // Indexed by item id: the number of the item's cluster plus one, or 0 if it has none yet.
+        final int[] clusterOf = new int[idCount];
+        // The items of each cluster in turn, which expanding a cluster keeps together.
+        final List<DensityItem<T>> members = new ArrayList<>(items.size());
+        final List<Integer> ends = new ArrayList<>();
+        final List<DensityItem<T>> neighbors = new ArrayList<>();
+        for (DensityItem<T> seed : items) {
+            if (!core[seed.mId] || clusterOf[seed.mId] != 0) {
+                continue;
+            }
+            int cluster = ends.size() + 1;
+            int expanded = members.size();
+            clusterOf[seed.mId] = cluster;
+            members.add(seed);
+            while (expanded < members.size()) {
+                DensityItem<T> member = members.get(expanded++);
+                if (!core[member.mId]) {
+                    // Items that are not core items only join clusters.
+                    continue;
+                }
+                Point p = member.mPoint;
+                neighbors.clear();
+                quadTree.search(p.x - halfSpan, p.x + halfSpan, p.y - halfSpan, p.y + halfSpan, neighbors);
+                for (DensityItem<T> neighbor : neighbors) {
+                    if (clusterOf[neighbor.mId] == 0) {
+                        clusterOf[neighbor.mId] = cluster;
+                        members.add(neighbor);
+                    }
+                }
+            }
+            ends.add(members.size());
+        }
+        for (DensityItem<T> item : items) {
+            if (clusterOf[item.mId] == 0) {
+                // Noise: items in no cluster are returned on their own.
+                members.add(item);
+                ends.add(members.size());
+            }
+        }
+
+        Object[] sliced = new Object[members.size()];
+        Set<Cluster<T>> results = new HashSet<>();
+        int start = 0;
+        for (int end : ends) {
+            double x = 0;
+            double y = 0;
+            int hashCode = 0;
+            for (int i = start; i < end; i++) {
+                DensityItem<T> member = members.get(i);
+                sliced[i] = member.mClusterItem;
+                x += member.mPoint.x;
+                y += member.mPoint.y;
+                hashCode += member.mClusterItem.hashCode();
+            }
+            LatLng center = end - start == 1 ? members.get(start).mPosition
+                    : PROJECTION.toLatLng(new Point(x / (end - start), y / (end - start)));
+            results.add(new SliceCluster<T>(center, sliced, start, end, hashCode));
+            start = end;
+        }
+        return results;
+    }
+
+    /**
+     * @return whether each item, by id, has at least minItems items within reach.
+     */
+    private boolean[] findCoreItems(final PointQuadTree<DensityItem<T>> quadTree, final List<DensityItem<T>> items,
+                                    int idCount, final double halfSpan, final int minItems) {
+        final boolean[] core = new boolean[idCount];
+        Executor executor = mExecutor;
+        int tasks = Math.min(mParallelism, items.size() / MIN_ITEMS_PER_TASK);
+        if (executor == null || tasks <= 1) {
+            findCoreItems(quadTree, items, 0, items.size(), halfSpan, minItems, core);
+            return core;
+        }
+
+        // Each task writes the entries of its own items only.
+        List<Runnable> parts = new ArrayList<>(tasks);
+        for (int i = 0; i < tasks; i++) {
+            final int from = (int) ((long) items.size() * i / tasks);
+            final int to = (int) ((long) items.size() * (i + 1) / tasks);
+            parts.add(new Runnable() {
+                @Override
+                public void run() {
+                    findCoreItems(quadTree, items, from, to, halfSpan, minItems, core);
+                }
+            });
+        }
+        ParallelTasks.run(executor, parts, "Finding core items failed");
+        return core;
+    }
+
+    private static <T extends ClusterItem> void findCoreItems(PointQuadTree<DensityItem<T>> quadTree,
+                                                              List<DensityItem<T>> items, int from, int to,
+                                                              double halfSpan, int minItems, boolean[] core) {
+        for (int i = from; i < to; i++) {
+            DensityItem<T> item = items.get(i);
+            Point p = item.mPoint;
+            core[item.mId] = minItems <= 1
+                    || quadTree.count(p.x - halfSpan, p.x + halfSpan, p.y - halfSpan, p.y + halfSpan) >= minItems;
+        }
+    }
+
+    @Override
+    public Collection<T> getItems() {
+        return mStore.getItems();
+    }
+
+    @Override
+    public void setMaxDistanceBetweenClusteredItems(int maxDistance) {
+        mMaxDistance = maxDistance;
+    }
+
+    @Override
+    public int getMaxDistanceBetweenClusteredItems() {
+        return mMaxDistance;
+    }
+
+    /**
+     * @param minItems the number of items, itself included, that an item needs within reach to
+     *                 be a core item of a cluster
+     */
+    public void setMinItemsInCluster(int minItems) {
+        if (minItems < 1) {
+            throw new IllegalArgumentException("minItems must be at least 1");
+        }
+        mMinItems = minItems;
+    }
+
+    public int getMinItemsInCluster() {
+        return mMinItems;
+    }
+
+    /**
+     * Finds core items on several threads. Each clustering pass splits its items into at most
+     * {@code parallelism} parts, all but one of which are looked at by {@code executor} while the
+     * calling thread looks at the last. Small passes still run on the calling thread alone.
+     *
+     * @param executor    looks at parts of the items, or null to use the calling thread only
+     * @param parallelism the number of parts, usually the number of available processors
+     */
+    public void setExecutor(@Nullable Executor executor, int parallelism) {
+        mExecutor = executor;
+        mParallelism = parallelism;
+    }
+
+    private static class DensityItem<T extends ClusterItem> implements PointQuadTree.Item {
+        private final T mClusterItem;
+        private final int mId;
+        private final LatLng mPosition;
+        private final Point mPoint;
+
+        private DensityItem(T item, int id) {
+            mClusterItem = item;
+            mId = id;
+            mPosition = item.getPosition();
+            Point point = PROJECTION.toPoint(mPosition);
+            // Items beyond the mercator limits are kept at the top or bottom edge of the world.
+            mPoint = point.y >= 0 && point.y <= 1 ? point : new Point(point.x, point.y > 0 ? 1 : 0);
+        }
+
+        @Override
+        public Point getPoint() {
+            return mPoint;
+        }
+    }
+}
@@ -21,22 +21,37 @@ import org.trd.maps.clustering.ClusterItem;
 import org.trd.maps.geometry.Point;
 import org.trd.maps.projection.SphericalMercatorProjection;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
-import androidx.collection.LongSparseArray;
-
 /**
  * Groups markers into a grid.
+ * <p/>
+ * Items are projected once, when added, into a world of width 1. Clustering scales those
+ * positions to the grid of the zoom level and groups them by cell in a single pass.
  */
 public class GridBasedAlgorithm<T extends ClusterItem> extends AbstractAlgorithm<T> {
     private static final int DEFAULT_GRID_SIZE = 100;
 
+    private static final SphericalMercatorProjection PROJECTION = new SphericalMercatorProjection(1);
+
     private int mGridSize = DEFAULT_GRID_SIZE;
 
-    private final Set<T> mItems = Collections.synchronizedSet(new HashSet<T>());
+    /**
+     * The position of each item in mItems, mXs and mYs. Any access to these should be
+     * synchronized on mIndex.
+     */
+    private final Map<T, Integer> mIndex = new HashMap<>();
+    private final List<T> mItems = new ArrayList<>();
+    private double[] mXs = new double[16];
+    private double[] mYs = new double[16];
 
     /**
      * Adds an item to the algorithm
@@ -45,7 +60,9 @@ public class GridBasedAlgorithm<T extends ClusterItem> extends AbstractAlgorithm
      */
     @Override
     public boolean addItem(T item) {
-        return mItems.add(item);
+        synchronized (mIndex) {
+            return add(item);
+        }
     }
 
     /**
@@ -55,12 +72,21 @@ public class GridBasedAlgorithm<T extends ClusterItem> extends AbstractAlgorithm
      */
     @Override
     public boolean addItems(Collection<T> items) {
-        return mItems.addAll(items);
+        boolean result = false;
+        synchronized (mIndex) {
+            for (T item : items) {
+                result |= add(item);
+            }
+        }
+        return result;
     }
 
     @Override
     public void clearItems() {
-        mItems.clear();
+        synchronized (mIndex) {
+            mIndex.clear();
+            mItems.clear();
+        }
     }
 
     /**
@@ -71,7 +97,9 @@ public class GridBasedAlgorithm<T extends ClusterItem> extends AbstractAlgorithm
      */
     @Override
     public boolean removeItem(T item) {
-        return mItems.remove(item);
+        synchronized (mIndex) {
+            return remove(item);
+        }
     }
 
     /**
@@ -81,7 +109,13 @@ public class GridBasedAlgorithm<T extends ClusterItem> extends AbstractAlgorithm
      */
     @Override
     public boolean removeItems(Collection<T> items) {
-        return mItems.removeAll(items);
+        boolean result = false;
+        synchronized (mIndex) {
+            for (T item : items) {
+                result |= remove(item);
+            }
+        }
+        return result;
     }
 
     /**
@@ -92,15 +126,60 @@ public class GridBasedAlgorithm<T extends ClusterItem> extends AbstractAlgorithm
      */
     @Override
     public boolean updateItem(T item) {
-        boolean result;
-        synchronized (mItems) {
-            result = removeItem(item);
-            if (result) {
-                // Only add the item if it was removed (to help prevent accidental duplicates on map)
-                result = addItem(item);
+        synchronized (mIndex) {
+            Integer index = mIndex.get(item);
+            if (index == null) {
+                // Don't add items that were never added (to help prevent accidental duplicates on map)
+                return false;
             }
+            mItems.set(index, item);
+            project(index, item);
         }
-        return result;
+        return true;
+    }
+
+    /**
+     * Must be called while holding the lock on mIndex.
+     */
+    private boolean add(T item) {
+        if (mIndex.containsKey(item)) {
+            return false;
+        }
+        int index = mItems.size();
+        if (index == mXs.length) {
+            mXs = Arrays.copyOf(mXs, index * 2);
+            mYs = Arrays.copyOf(mYs, index * 2);
+        }
+        mIndex.put(item, index);
+        mItems.add(item);
+        project(index, item);
+        return true;
+    }
+
+    /**
+     * Removes an item by moving the last item into its place. Must be called while holding the
+     * lock on mIndex.
+     */
+    private boolean remove(T item) {
+        Integer index = mIndex.remove(item);
+        if (index == null) {
+            return false;
+        }
+        int last = mItems.size() - 1;
+        T moved = mItems.remove(last);
+        if (index != last) {
+            mItems.set(index, moved);
+            mXs[index] = mXs[last];
+            mYs[index] = mYs[last];
+            mIndex.put(moved, index);
+        }
+        return true;
+    }
+
+    private void project(int index, T item) {
+        Point p = PROJECTION.toPoint(item.getPosition());
+        mXs[index] = p.x;
+        mYs[index] = p.y;
     }
 
     @Override
@@ -113,36 +192,55 @@ public class GridBasedAlgorithm<T extends ClusterItem> extends AbstractAlgorithm
         return mGridSize;
     }
 
+    /**
+     * Applies a batch of changes under a single lock, so that no clustering pass sees only some
+     * of them.
+     */
+    @Override
+    public boolean applyBatch(ItemBatch<T> batch) {
+        synchronized (mIndex) {
+            return super.applyBatch(batch);
+        }
+    }
+
     @Override
     public Set<? extends Cluster<T>> getClusters(float zoom) {
         long numCells = (long) Math.ceil(256 * Math.pow(2, zoom) / mGridSize);
         SphericalMercatorProjection proj = new SphericalMercatorProjection(numCells);
 
-        HashSet<Cluster<T>> clusters = new HashSet<Cluster<T>>();
-        LongSparseArray<StaticCluster<T>> sparseArray = new LongSparseArray<StaticCluster<T>>();
-
-        synchronized (mItems) {
-            for (T item : mItems) {
-                Point p = proj.toPoint(item.getPosition());
-
-                long coord = getCoord(numCells, p.x, p.y);
-
-                StaticCluster<T> cluster = sparseArray.get(coord);
-                if (cluster == null) {
-                    cluster = new StaticCluster<T>(proj.toLatLng(new Point(Math.floor(p.x) + .5, Math.floor(p.y) + .5)));
-                    sparseArray.put(coord, cluster);
+        List<StaticCluster<T>> clusters = new ArrayList<>();
+        synchronized (mIndex) {
+            // The position in clusters of the cluster of each cell, sized for at most one cluster
+            // per item or per cell so that it never grows.
+            LongIntHashMap clusterIndex = new LongIntHashMap((int) Math.min(mItems.size(), numCells * numCells));
+            for (int i = 0; i < mItems.size(); i++) {
+                double x = mXs[i] * numCells;
+                double y = mYs[i] * numCells;
+
+                long coord = getCoord(numCells, x, y);
+
+                int index = clusterIndex.get(coord, -1);
+                StaticCluster<T> cluster;
+                if (index < 0) {
+                    cluster = new StaticCluster<T>(proj.toLatLng(new Point(Math.floor(x) + .5, Math.floor(y) + .5)));
+                    clusterIndex.put(coord, clusters.size());
                     clusters.add(cluster);
+                } else {
+                    cluster = clusters.get(index);
                 }
-                cluster.add(item);
+                cluster.add(mItems.get(i));
             }
         }
 
-        return clusters;
+        // Hashed once complete, as a StaticCluster's hash code depends on its items.
+        return new HashSet<Cluster<T>>(clusters);
     }
 
     @Override
     public Collection<T> getItems() {
-        return mItems;
+        synchronized (mIndex) {
+            return new LinkedHashSet<>(mItems);
+        }
     }
 
     private static long getCoord(long numCells, double x, double y) {
@@ -0,0 +1,564 @@
+/*
+ * Copyright 2020 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.trd.maps.clustering.algo;
+
+import com.huawei.hms.maps.model.CameraPosition;
+import com.huawei.hms.maps.model.LatLng;
+
+import org.trd.maps.clustering.Cluster;
+import org.trd.maps.clustering.ClusterItem;
+import org.trd.maps.geometry.Point;
+import org.trd.maps.projection.SphericalMercatorProjection;
+import org.trd.maps.quadtree.HilbertPointIndex;
+import org.trd.maps.quadtree.PointQuadTree;
+
+import java.util.AbstractCollection;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A clustering algorithm that clusters every zoom level in advance, so that changing zoom only
+ * looks up the clusters already computed for it.
+ * <p/>
+ * High level algorithm, as in Mapbox's supercluster:<br>
+ * 1. Start from the items, at the zoom level above the maximum.<br>
+ * 2. For each zoom level from the maximum down to the minimum, visit the previous level's clusters
+ * in Hilbert curve order. Merge each one that is not yet merged with all unmerged clusters within
+ * the clustering distance for this zoom, into a cluster at their weighted centroid.<br>
+ * 3. Index the resulting clusters of each level in a {@link HilbertPointIndex}.
+ * <p/>
+ * Each cluster is made of the clusters of the level above, so clusters split apart predictably
+ * when zooming in. The hierarchy is rebuilt, in O(n log n), by the first {@link #getClusters}
+ * call after the items change. Every later call costs only the number of clusters returned.
+ * When constructed with a view size, only the clusters in the visible area are returned.
+ */
+public class HierarchicalDistanceBasedAlgorithm<T extends ClusterItem> extends AbstractAlgorithm<T>
+        implements ScreenBasedAlgorithm<T> {
+    private static final int DEFAULT_MAX_DISTANCE_AT_ZOOM = 100; // essentially 100 dp.
+
+    public static final int DEFAULT_MIN_ZOOM = 0;
+
+    public static final int DEFAULT_MAX_ZOOM = 21;
+
+    private static final SphericalMercatorProjection PROJECTION = new SphericalMercatorProjection(1);
+
+    private final int mMinZoom;
+    private final int mMaxZoom;
+
+    /**
+     * View size in dp, or 0 to return the clusters of the whole world.
+     */
+    private int mViewWidth;
+    private int mViewHeight;
+
+    private volatile LatLng mMapCenter;
+
+    private volatile int mMaxDistance = DEFAULT_MAX_DISTANCE_AT_ZOOM;
+
+    /**
+     * The items, in the order they were added, each with its projected position. A new item that
+     * equals one already added is stored by updateItem, so it is kept here rather than taken
+     * from the keys. Any access should be synchronized on mItems.
+     */
+    private final Map<T, Node<T>> mItems = new LinkedHashMap<>();
+
+    /**
+     * The clusters of each zoom level from mMinZoom to mMaxZoom, then the items themselves.
+     * Guarded by mItems; null when out of date.
+     */
+    private Level<T>[] mLevels;
+
+    /**
+     * Incremented by each change that makes mLevels out of date. Guarded by mItems.
+     */
+    private int mVersion;
+
+    /**
+     * Clusters each zoom level from {@link #DEFAULT_MIN_ZOOM} to {@link #DEFAULT_MAX_ZOOM}, and
+     * returns the clusters of the whole world.
+     */
+    public HierarchicalDistanceBasedAlgorithm() {
+        this(DEFAULT_MIN_ZOOM, DEFAULT_MAX_ZOOM, 0, 0);
+    }
+
+    /**
+     * Returns only the clusters within a view of the given size around the camera target.
+     *
+     * @param screenWidth  map width in dp
+     * @param screenHeight map height in dp
+     */
+    public HierarchicalDistanceBasedAlgorithm(int screenWidth, int screenHeight) {
+        this(DEFAULT_MIN_ZOOM, DEFAULT_MAX_ZOOM, screenWidth, screenHeight);
+    }
+
+    /**
+     * Clusters each zoom level from {@code minZoom} to {@code maxZoom}; beyond {@code maxZoom}
+     * every item is shown on its own.
+     *
+     * @param screenWidth  map width in dp, or 0 to return the clusters of the whole world
+     * @param screenHeight map height in dp, or 0 to return the clusters of the whole world
+     */
+    public HierarchicalDistanceBasedAlgorithm(int minZoom, int maxZoom, int screenWidth, int screenHeight) {
+        if (minZoom < 0 || maxZoom < minZoom) {
+            throw new IllegalArgumentException("Invalid zoom range " + minZoom + "-" + maxZoom);
+        }
+        mMinZoom = minZoom;
+        mMaxZoom = maxZoom;
+        mViewWidth = screenWidth;
+        mViewHeight = screenHeight;
+    }
+
+    @Override
+    public boolean addItem(T item) {
+        synchronized (mItems) {
+            if (mItems.containsKey(item)) {
+                return false;
+            }
+            mItems.put(item, new Node<>(item));
+            invalidate();
+        }
+        return true;
+    }
+
+    @Override
+    public boolean addItems(Collection<T> items) {
+        boolean result = false;
+        synchronized (mItems) {
+            for (T item : items) {
+                if (!mItems.containsKey(item)) {
+                    mItems.put(item, new Node<>(item));
+                    result = true;
+                }
+            }
+            if (result) {
+                invalidate();
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void clearItems() {
+        synchronized (mItems) {
+            mItems.clear();
+            invalidate();
+        }
+    }
+
+    @Override
+    public boolean removeItem(T item) {
+        synchronized (mItems) {
+            if (mItems.remove(item) == null) {
+                return false;
+            }
+            invalidate();
+        }
+        return true;
+    }
+
+    @Override
+    public boolean removeItems(Collection<T> items) {
+        boolean result = false;
+        synchronized (mItems) {
+            for (T item : items) {
+                result |= mItems.remove(item) != null;
+            }
+            if (result) {
+                invalidate();
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public boolean updateItem(T item) {
+        synchronized (mItems) {
+            Node<T> stored = mItems.get(item);
+            if (stored == null) {
+                // Don't add items that were never added (to help prevent accidental duplicates on map)
+                return false;
+            }
+            if (stored.item == item && stored.position.equals(item.getPosition())) {
+                // Nothing the algorithm depends on has changed.
+                return true;
+            }
+            // Keeps the item's place in getItems()
+            mItems.put(item, new Node<>(item));
+            invalidate();
+        }
+        return true;
+    }
+
+    /**
+     * Must be called, while holding the lock on mItems, after each modification.
+     */
+    private void invalidate() {
+        mLevels = null;
+        mVersion++;
+    }
+
+    /**
+     * Applies a batch of changes under a single lock, so that no clustering pass sees only some
+     * of them.
+     */
+    @Override
+    public boolean applyBatch(ItemBatch<T> batch) {
+        synchronized (mItems) {
+            return super.applyBatch(batch);
+        }
+    }
+
+    @Override
+    public Set<? extends Cluster<T>> getClusters(float zoom) {
+        Level<T>[] levels;
+        List<Node<T>> items = null;
+        int version;
+        int maxDistance;
+        synchronized (mItems) {
+            levels = mLevels;
+            version = mVersion;
+            maxDistance = mMaxDistance;
+            if (levels == null) {
+                items = new ArrayList<>(mItems.size());
+                // Fresh nodes, as building marks them
+                for (Node<T> stored : mItems.values()) {
+                    items.add(new Node<>(stored.item, stored.point, stored.position));
+                }
+            }
+        }
+        if (levels == null) {
+            // Built without blocking writers; kept only if nothing changed meanwhile.
+            levels = build(items, maxDistance);
+            synchronized (mItems) {
+                if (mVersion == version) {
+                    mLevels = levels;
+                }
+            }
+        }
+
+        int level = Math.max(mMinZoom, Math.min((int) zoom, mMaxZoom + 1)) - mMinZoom;
+        Level<T> clusters = levels[level];
+        LatLng center = mMapCenter;
+        if (mViewWidth <= 0 || mViewHeight <= 0 || center == null) {
+            return new HashSet<Cluster<T>>(clusters.nodes);
+        }
+
+        final Set<Cluster<T>> results = new HashSet<>();
+        Point p = PROJECTION.toPoint(center);
+        double halfWidth = Math.min(0.5, mViewWidth / Math.pow(2, zoom) / 256 / 2);
+        double halfHeight = mViewHeight / Math.pow(2, zoom) / 256 / 2;
+        PointQuadTree.Visitor<Node<T>> visitor = new PointQuadTree.Visitor<Node<T>>() {
+            @Override
+            public void visit(Node<T> node) {
+                results.add(node);
+            }
+        };
+        // Handle wrapping around international date line
+        clusters.index.searchWrapped(p.x - halfWidth, p.x + halfWidth, p.y - halfHeight, p.y + halfHeight, 1,
+                visitor);
+        return results;
+    }
+
+    /**
+     * Clusters each zoom level from the clusters of the level above.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private Level<T>[] build(List<Node<T>> items, int maxDistance) {
+        Level<T>[] levels = new Level[mMaxZoom - mMinZoom + 2];
+        Level<T> previous = new Level<>(items);
+        levels[levels.length - 1] = previous;
+        List<Node<T>> neighbors = new ArrayList<>();
+        for (int zoom = mMaxZoom; zoom >= mMinZoom; zoom--) {
+            // Same distance as NonHierarchicalDistanceBasedAlgorithm
+            double halfSpan = maxDistance / Math.pow(2, zoom) / 256 / 2;
+            List<Node<T>> nodes = new ArrayList<>();
+            for (Node<T> node : previous.nodes) {
+                if (node.zoom <= zoom) {
+                    // Already merged into a cluster at this zoom.
+                    continue;
+                }
+                node.zoom = zoom;
+                neighbors.clear();
+                Point p = node.point;
+                previous.index.search(p.x - halfSpan, p.x + halfSpan, p.y - halfSpan, p.y + halfSpan, neighbors);
+                int size = node.size;
+                double weightedX = p.x * node.size;
+                double weightedY = p.y * node.size;
+                List<Node<T>> children = null;
+                for (Node<T> neighbor : neighbors) {
+                    if (neighbor.zoom <= zoom) {
+                        continue;
+                    }
+                    neighbor.zoom = zoom;
+                    size += neighbor.size;
+                    weightedX += neighbor.point.x * neighbor.size;
+                    weightedY += neighbor.point.y * neighbor.size;
+                    if (children == null) {
+                        children = new ArrayList<>();
+                        children.add(node);
+                    }
+                    children.add(neighbor);
+                }
+                nodes.add(children == null ? node : new Node<>(children, new Point(weightedX / size, weightedY / size), size));
+            }
+            if (nodes.size() < previous.nodes.size()) {
+                previous = new Level<>(nodes);
+            }
+            // Otherwise nothing merged, and the level above can be shared.
+            levels[zoom - mMinZoom] = previous;
+        }
+        return levels;
+    }
+
+    @Override
+    public Collection<T> getItems() {
+        synchronized (mItems) {
+            final Set<T> items = new LinkedHashSet<>();
+            for (Node<T> stored : mItems.values()) {
+                items.add(stored.item);
+            }
+            return items;
+        }
+    }
+
+    @Override
+    public void setMaxDistanceBetweenClusteredItems(int maxDistance) {
+        synchronized (mItems) {
+            mMaxDistance = maxDistance;
+            invalidate();
+        }
+    }
+
+    @Override
+    public int getMaxDistanceBetweenClusteredItems() {
+        return mMaxDistance;
+    }
+
+    @Override
+    public boolean shouldReclusterOnMapMovement() {
+        return mViewWidth > 0 && mViewHeight > 0;
+    }
+
+    @Override
+    public void onCameraChange(CameraPosition cameraPosition) {
+        mMapCenter = cameraPosition.target;
+    }
+
+    /**
+     * Update view width and height in case map size was changed.
+     *
+     * @param width  map width in dp
+     * @param height map height in dp
+     */
+    public void updateViewSize(int width, int height) {
+        mViewWidth = width;
+        mViewHeight = height;
+    }
+
+    /**
+     * The clusters of one zoom level, indexed by position. They are kept in the order of the
+     * index, so that clustering the next level visits nearby clusters one after another.
+     */
+    private static class Level<T extends ClusterItem> {
+        private final List<Node<T>> nodes;
+        private final HilbertPointIndex<Node<T>> index = new HilbertPointIndex<>(0, 1, 0, 1);
+
+        private Level(List<Node<T>> nodes) {
+            index.addAll(nodes);
+            this.nodes = new ArrayList<>(nodes.size());
+            index.search(0, 1, 0, 1, this.nodes);
+        }
+    }
+
+    /**
+     * A single item, or a cluster of the nodes of the level above. Nodes with the same position
+     * and items are equal, so that clusters left unchanged by a rebuild keep their markers.
+     */
+    private static class Node<T extends ClusterItem> implements Cluster<T>, PointQuadTree.Item {
+        private final T item;
+        private final List<Node<T>> children;
+        private final Point point;
+        private final int size;
+        private LatLng position;
+
+        /**
+         * The sum of the hash codes of the items.
+         */
+        private final int itemsHashCode;
+
+        /**
+         * The highest zoom level at which this node has been merged into a cluster, or
+         * Integer.MAX_VALUE while it has not.
+         */
+        private int zoom = Integer.MAX_VALUE;
+
+        private Node(T item) {
+            this(item, toPoint(item.getPosition()), item.getPosition());
+        }
+
+        private Node(T item, Point point, LatLng position) {
+            this.item = item;
+            this.children = null;
+            this.point = point;
+            this.size = 1;
+            this.position = position;
+            this.itemsHashCode = item.hashCode();
+        }
+
+        private Node(List<Node<T>> children, Point point, int size) {
+            this.item = null;
+            this.children = children;
+            this.point = point;
+            this.size = size;
+            int itemsHashCode = 0;
+            for (Node<T> child : children) {
+                itemsHashCode += child.itemsHashCode;
+            }
+            this.itemsHashCode = itemsHashCode;
+        }
+
+        /**
+         * Projects a position, keeping those beyond the mercator limits at the top or bottom
+         * edge of the world so that every item is indexed.
+         */
+        private static Point toPoint(LatLng position) {
+            Point point = PROJECTION.toPoint(position);
+            if (point.y >= 0 && point.y <= 1) {
+                return point;
+            }
+            return new Point(point.x, point.y > 0 ? 1 : 0);
+        }
+
+        @Override
+        public Point getPoint() {
+            return point;
+        }
+
+        @Override
+        public LatLng getPosition() {
+            if (position == null) {
+                position = PROJECTION.toLatLng(point);
+            }
+            return position;
+        }
+
+        /**
+         * @return a view of the items in this cluster, found by walking its children.
+         */
+        @Override
+        public Collection<T> getItems() {
+            if (item != null) {
+                return Collections.singleton(item);
+            }
+            return new AbstractCollection<T>() {
+                @Override
+                public Iterator<T> iterator() {
+                    return new ItemIterator<>(Node.this);
+                }
+
+                @Override
+                public int size() {
+                    return size;
+                }
+            };
+        }
+
+        @Override
+        public int getSize() {
+            return size;
+        }
+
+        @Override
+        public String toString() {
+            return "Cluster{position=" + getPosition() + ", size=" + size + '}';
+        }
+
+        @Override
+        public int hashCode() {
+            long x = Double.doubleToLongBits(point.x);
+            long y = Double.doubleToLongBits(point.y);
+            return 31 * (31 * (int) (x ^ (x >>> 32)) + (int) (y ^ (y >>> 32))) + itemsHashCode;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) {
+                return true;
+            }
+            if (!(other instanceof Node<?>)) {
+                return false;
+            }
+            Node<?> node = (Node<?>) other;
+            if (node.size != size || node.itemsHashCode != itemsHashCode
+                    || Double.compare(node.point.x, point.x) != 0 || Double.compare(node.point.y, point.y) != 0) {
+                return false;
+            }
+            if (item != null) {
+                return item.equals(node.item);
+            }
+            // Most likely equal, so only now are the items compared.
+            return new HashSet<>(getItems()).containsAll(node.getItems());
+        }
+    }
+
+    /**
+     * Iterates over the items below a node, depth first.
+     */
+    private static class ItemIterator<T extends ClusterItem> implements Iterator<T> {
+        private final Deque<Node<T>> mPending = new ArrayDeque<>();
+
+        private ItemIterator(Node<T> root) {
+            mPending.push(root);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !mPending.isEmpty();
+        }
+
+        @Override
+        public T next() {
+            if (mPending.isEmpty()) {
+                throw new NoSuchElementException();
+            }
+            Node<T> node = mPending.pop();
+            while (node.item == null) {
+                for (int i = node.children.size() - 1; i > 0; i--) {
+                    mPending.push(node.children.get(i));
+                }
+                node = node.children.get(0);
+            }
+            return node.item;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
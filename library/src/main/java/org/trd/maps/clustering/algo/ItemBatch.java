@@ -0,0 +1,203 @@
+/*
+ * Copyright 2020 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.trd.maps.clustering.algo;
+
+import org.trd.maps.clustering.ClusterItem;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Changes to the items of an algorithm, staged to be applied all at once by {@link #commit()}.
+ * <p/>
+ * The changes staged for each item are combined into at most one removal, one addition and one
+ * update, applied in that order: removals first, then additions, then updates. Staging a removal
+ * discards the earlier changes of the item. Items are read when the batch is committed, so an
+ * added or updated item is stored at its position at that time.
+ */
+public class ItemBatch<T extends ClusterItem> {
+    private static final int REMOVE = 1;
+    private static final int ADD = 2;
+    private static final int UPDATE = 4;
+
+    /**
+     * Applies the changes of a committed batch.
+     */
+    public interface Target<T extends ClusterItem> {
+        /**
+         * @return true if the items changed as a result of the call
+         */
+        boolean apply(ItemBatch<T> batch);
+    }
+
+    private final Target<T> mTarget;
+
+    /**
+     * The changes staged for each item, as a combination of REMOVE, ADD and UPDATE.
+     */
+    private final Map<T, Change<T>> mChanges = new LinkedHashMap<>();
+    private boolean mCommitted;
+
+    public ItemBatch(Target<T> target) {
+        mTarget = target;
+    }
+
+    public ItemBatch<T> add(T item) {
+        checkOpen();
+        change(item).mChanges |= ADD;
+        return this;
+    }
+
+    public ItemBatch<T> addAll(Collection<T> items) {
+        for (T item : items) {
+            add(item);
+        }
+        return this;
+    }
+
+    public ItemBatch<T> remove(T item) {
+        checkOpen();
+        change(item).mChanges = REMOVE;
+        return this;
+    }
+
+    public ItemBatch<T> removeAll(Collection<T> items) {
+        for (T item : items) {
+            remove(item);
+        }
+        return this;
+    }
+
+    public ItemBatch<T> update(T item) {
+        checkOpen();
+        Change<T> change = change(item);
+        if (change.mChanges != REMOVE) {
+            // Updating an item that will be removed would have no effect.
+            change.mChanges |= UPDATE;
+        }
+        return this;
+    }
+
+    /**
+     * Applies the staged changes. A batch can only be committed once.
+     *
+     * @return true if the items changed as a result of the call
+     */
+    public boolean commit() {
+        checkOpen();
+        mCommitted = true;
+        return mTarget.apply(this);
+    }
+
+    /**
+     * Applies the staged changes to the algorithm, all at once if it is an
+     * {@link AbstractAlgorithm}, otherwise one call at a time.
+     *
+     * @return true if the items changed as a result of the call
+     */
+    public boolean applyTo(Algorithm<T> algorithm) {
+        if (algorithm instanceof AbstractAlgorithm) {
+            return ((AbstractAlgorithm<T>) algorithm).applyBatch(this);
+        }
+        return applyEachTo(algorithm);
+    }
+
+    /**
+     * Applies the removals, then the additions, then the updates, one call for each.
+     */
+    boolean applyEachTo(Algorithm<T> algorithm) {
+        boolean result = false;
+        List<T> removed = getRemovedItems();
+        if (!removed.isEmpty()) {
+            result = algorithm.removeItems(removed);
+        }
+        List<T> added = getAddedItems();
+        if (!added.isEmpty()) {
+            result |= algorithm.addItems(added);
+        }
+        for (T item : getUpdatedItems()) {
+            result |= algorithm.updateItem(item);
+        }
+        return result;
+    }
+
+    /**
+     * @return whether no change was staged
+     */
+    public boolean isEmpty() {
+        return mChanges.isEmpty();
+    }
+
+    /**
+     * @return the items to remove, in the order they were staged
+     */
+    public List<T> getRemovedItems() {
+        return itemsWith(REMOVE);
+    }
+
+    /**
+     * @return the items to add once the removals are applied, in the order they were staged
+     */
+    public List<T> getAddedItems() {
+        return itemsWith(ADD);
+    }
+
+    /**
+     * @return the items to update once the removals and additions are applied, in the order they
+     * were staged
+     */
+    public List<T> getUpdatedItems() {
+        return itemsWith(UPDATE);
+    }
+
+    private List<T> itemsWith(int changes) {
+        List<T> items = new ArrayList<>();
+        for (Change<T> change : mChanges.values()) {
+            if ((change.mChanges & changes) != 0) {
+                items.add(change.mItem);
+            }
+        }
+        return items;
+    }
+
+    /**
+     * @return the changes of the item, which the item becomes the latest instance of
+     */
+    private Change<T> change(T item) {
+        Change<T> change = mChanges.get(item);
+        if (change == null) {
+            change = new Change<>();
+            mChanges.put(item, change);
+        }
+        change.mItem = item;
+        return change;
+    }
+
+    private void checkOpen() {
+        if (mCommitted) {
+            throw new IllegalStateException("The batch was already committed");
+        }
+    }
+
+    private static class Change<T> {
+        private T mItem;
+        private int mChanges;
+    }
+}
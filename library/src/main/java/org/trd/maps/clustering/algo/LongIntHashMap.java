@@ -0,0 +1,112 @@
+/*
+ * Copyright 2020 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.trd.maps.clustering.algo;
+
+/**
+ * A map from long to int keys, stored in primitive arrays with open addressing and linear
+ * probing, so that neither lookups nor insertions allocate.
+ */
+final class LongIntHashMap {
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] mKeys;
+    private int[] mValues;
+    private boolean[] mUsed;
+    private int mSize;
+
+    /**
+     * @param expectedSize the number of keys the map should hold without growing
+     */
+    LongIntHashMap(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        mKeys = new long[capacity];
+        mValues = new int[capacity];
+        mUsed = new boolean[capacity];
+    }
+
+    /**
+     * @return the value of the given key, or {@code missing} if the map does not contain it.
+     */
+    int get(long key, int missing) {
+        int mask = mKeys.length - 1;
+        for (int slot = slot(key, mask); mUsed[slot]; slot = (slot + 1) & mask) {
+            if (mKeys[slot] == key) {
+                return mValues[slot];
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * Sets the value of the given key, replacing any previous value.
+     */
+    void put(long key, int value) {
+        int mask = mKeys.length - 1;
+        int slot = slot(key, mask);
+        while (mUsed[slot]) {
+            if (mKeys[slot] == key) {
+                mValues[slot] = value;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        mUsed[slot] = true;
+        mKeys[slot] = key;
+        mValues[slot] = value;
+        // Kept at most half full, so that probe sequences stay short.
+        if (++mSize * 2 > mKeys.length) {
+            grow();
+        }
+    }
+
+    private void grow() {
+        long[] keys = mKeys;
+        int[] values = mValues;
+        boolean[] used = mUsed;
+        allocate(keys.length * 2);
+        int mask = mKeys.length - 1;
+        for (int i = 0; i < keys.length; i++) {
+            if (used[i]) {
+                int slot = slot(keys[i], mask);
+                while (mUsed[slot]) {
+                    slot = (slot + 1) & mask;
+                }
+                mUsed[slot] = true;
+                mKeys[slot] = keys[i];
+                mValues[slot] = values[i];
+            }
+        }
+    }
+
+    /**
+     * @return the first slot to probe for a key. Keys are mixed first, as nearby grid cells
+     * differ only in their low bits.
+     */
+    private static int slot(long key, int mask) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key & mask;
+    }
+}
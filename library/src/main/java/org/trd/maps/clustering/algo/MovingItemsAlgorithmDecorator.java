@@ -0,0 +1,277 @@
+/*
+ * Copyright 2020 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.trd.maps.clustering.algo;
+
+import androidx.collection.LruCache;
+
+import org.trd.maps.clustering.Cluster;
+import org.trd.maps.clustering.ClusterItem;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Clusters items that move all the time, such as the vehicles of a fleet.
+ * <p/>
+ * Updates are only queued, so they are cheap and never wait for a clustering pass, and
+ * {@link org.trd.maps.clustering.ClusterManager} makes them without the algorithm lock; several
+ * updates of an item before the next pass count as one. Each call to {@link #getClusters} applies
+ * at most a given number of the queued moves, oldest first, so that its cost stays bounded
+ * however many items move. The clusters of each zoom level are kept and follow the moves as in
+ * {@link CachedClusters}: an item only changes cluster when it leaves the reach of its own, and
+ * clusters that no move touched are returned as is. Only a zoom level that is not kept yet is
+ * clustered by the decorated algorithm, once every queued move is applied.
+ */
+public class MovingItemsAlgorithmDecorator<T extends ClusterItem> extends AbstractAlgorithm<T> {
+    private static final int DEFAULT_MAX_MOVES_PER_PASS = 2000;
+
+    private final Algorithm<T> mAlgorithm;
+    private final int mMaxMovesPerPass;
+
+    /**
+     * The kept clusters, by zoom level. Any access should be synchronized on mLevels, which also
+     * orders changes to mAlgorithm.
+     */
+    private final LruCache<Integer, CachedClusters<T>> mLevels = new LruCache<>(5);
+
+    /**
+     * The latest instance of each item with a queued move, in the order they first moved, and
+     * every item in the algorithm. Any access should be synchronized on mPendingMoves.
+     */
+    private final Map<T, T> mPendingMoves = new LinkedHashMap<>();
+    private final Set<T> mItems = new HashSet<>();
+
+    public MovingItemsAlgorithmDecorator(Algorithm<T> algorithm) {
+        this(algorithm, DEFAULT_MAX_MOVES_PER_PASS);
+    }
+
+    /**
+     * @param maxMovesPerPass the maximum number of queued moves applied by each call to
+     *                        {@link #getClusters}
+     */
+    public MovingItemsAlgorithmDecorator(Algorithm<T> algorithm, int maxMovesPerPass) {
+        if (maxMovesPerPass < 1) {
+            throw new IllegalArgumentException("maxMovesPerPass must be at least 1");
+        }
+        mAlgorithm = algorithm;
+        mMaxMovesPerPass = maxMovesPerPass;
+        mItems.addAll(algorithm.getItems());
+    }
+
+    @Override
+    public boolean addItem(T item) {
+        return addItems(Collections.singleton(item));
+    }
+
+    @Override
+    public boolean addItems(Collection<T> items) {
+        synchronized (mLevels) {
+            boolean result = mAlgorithm.addItems(items);
+            if (result) {
+                synchronized (mPendingMoves) {
+                    mItems.addAll(items);
+                }
+                for (CachedClusters<T> level : mLevels.snapshot().values()) {
+                    synchronized (level) {
+                        for (T item : items) {
+                            level.addItem(item);
+                        }
+                    }
+                }
+            }
+            return result;
+        }
+    }
+
+    @Override
+    public void clearItems() {
+        synchronized (mLevels) {
+            mAlgorithm.clearItems();
+            synchronized (mPendingMoves) {
+                mItems.clear();
+                mPendingMoves.clear();
+            }
+            mLevels.evictAll();
+        }
+    }
+
+    @Override
+    public boolean removeItem(T item) {
+        return removeItems(Collections.singleton(item));
+    }
+
+    @Override
+    public boolean removeItems(Collection<T> items) {
+        synchronized (mLevels) {
+            boolean result = mAlgorithm.removeItems(items);
+            if (result) {
+                synchronized (mPendingMoves) {
+                    for (T item : items) {
+                        mItems.remove(item);
+                        mPendingMoves.remove(item);
+                    }
+                }
+                for (CachedClusters<T> level : mLevels.snapshot().values()) {
+                    synchronized (level) {
+                        for (T item : items) {
+                            level.removeItem(item);
+                        }
+                    }
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Queues a move of the item, applied by a later call to {@link #getClusters}.
+     */
+    @Override
+    public boolean updateItem(T item) {
+        synchronized (mPendingMoves) {
+            if (!mItems.contains(item)) {
+                // Don't add items that were never added (to help prevent accidental duplicates on map)
+                return false;
+            }
+            mPendingMoves.put(item, item);
+        }
+        return true;
+    }
+
+    /**
+     * Queues moves of the items, applied by later calls to {@link #getClusters}.
+     *
+     * @return true if any of the items was in the algorithm
+     */
+    public boolean updateItems(Collection<T> items) {
+        boolean result = false;
+        synchronized (mPendingMoves) {
+            for (T item : items) {
+                if (mItems.contains(item)) {
+                    mPendingMoves.put(item, item);
+                    result = true;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Applies the removals and additions of a batch at once, and queues its updates as moves.
+     */
+    @Override
+    public boolean applyBatch(ItemBatch<T> batch) {
+        boolean result = false;
+        synchronized (mLevels) {
+            List<T> removed = batch.getRemovedItems();
+            if (!removed.isEmpty()) {
+                result = removeItems(removed);
+            }
+            List<T> added = batch.getAddedItems();
+            if (!added.isEmpty()) {
+                result |= addItems(added);
+            }
+        }
+        return updateItems(batch.getUpdatedItems()) || result;
+    }
+
+    /**
+     * @return the number of moves queued and not applied yet
+     */
+    public int getPendingMoveCount() {
+        synchronized (mPendingMoves) {
+            return mPendingMoves.size();
+        }
+    }
+
+    @Override
+    public boolean canUpdateConcurrently() {
+        return true;
+    }
+
+    @Override
+    public Set<? extends Cluster<T>> getClusters(float zoom) {
+        int discreteZoom = (int) zoom;
+        synchronized (mLevels) {
+            CachedClusters<T> level = mLevels.get(discreteZoom);
+            if (level == null) {
+                applyMoves(Integer.MAX_VALUE);
+                level = new CachedClusters<>(mAlgorithm.getClusters(discreteZoom), discreteZoom,
+                        mAlgorithm.getMaxDistanceBetweenClusteredItems());
+                mLevels.put(discreteZoom, level);
+            } else {
+                applyMoves(mMaxMovesPerPass);
+            }
+            synchronized (level) {
+                return level.getClusters();
+            }
+        }
+    }
+
+    /**
+     * Applies up to the given number of queued moves, oldest first. Must be called while holding
+     * the lock on mLevels.
+     */
+    private void applyMoves(int maxMoves) {
+        List<T> moves = new ArrayList<>();
+        synchronized (mPendingMoves) {
+            Iterator<T> pending = mPendingMoves.values().iterator();
+            while (pending.hasNext() && moves.size() < maxMoves) {
+                moves.add(pending.next());
+                pending.remove();
+            }
+        }
+        if (moves.isEmpty()) {
+            return;
+        }
+        for (T item : moves) {
+            mAlgorithm.updateItem(item);
+        }
+        for (CachedClusters<T> level : mLevels.snapshot().values()) {
+            synchronized (level) {
+                for (T item : moves) {
+                    level.updateItem(item);
+                }
+            }
+        }
+    }
+
+    @Override
+    public Collection<T> getItems() {
+        return mAlgorithm.getItems();
+    }
+
+    @Override
+    public void setMaxDistanceBetweenClusteredItems(int maxDistance) {
+        synchronized (mLevels) {
+            mAlgorithm.setMaxDistanceBetweenClusteredItems(maxDistance);
+            mLevels.evictAll();
+        }
+    }
+
+    @Override
+    public int getMaxDistanceBetweenClusteredItems() {
+        return mAlgorithm.getMaxDistanceBetweenClusteredItems();
+    }
+}
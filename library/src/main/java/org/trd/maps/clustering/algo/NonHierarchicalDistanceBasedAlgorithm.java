@@ -16,22 +16,26 @@
 
 package org.trd.maps.clustering.algo;
 
+import androidx.annotation.Nullable;
+
 import com.huawei.hms.maps.model.LatLng;
 
 import org.trd.maps.clustering.Cluster;
 import org.trd.maps.clustering.ClusterItem;
-import org.trd.maps.geometry.Bounds;
 import org.trd.maps.geometry.Point;
 import org.trd.maps.projection.SphericalMercatorProjection;
 import org.trd.maps.quadtree.PointQuadTree;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
-import java.util.Map;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Executor;
 
 /**
  * A simple clustering algorithm with O(nlog n) performance. Resulting clusters are not
@@ -45,6 +49,18 @@ import java.util.Set;
  * 5. Remove those items from the list of candidate clusters.
  * <p/>
  * Clusters have the center of the first element (not the centroid of the items within it).
+ * <p/>
+ * Clustering runs against a snapshot of the items, so items can be added and removed while a
+ * clustering pass is in progress; the changes are seen by the next pass.
+ * <p/>
+ * Given an executor (see {@link #setExecutor}), the world is split into vertical strips holding
+ * about as many candidates each, which are clustered concurrently as above. Clusters near the
+ * strip borders are then stitched together: of two clusters whose centers are within reach of
+ * each other, the later one is dropped, any of its items that no other cluster reaches become
+ * candidates again, and items near the borders move to their nearest cluster. The result keeps
+ * the guarantees of clustering on one thread (every candidate is in the cluster of a center that
+ * reaches it, no center reaches another, and items belong to the nearest center that reaches
+ * them), but the clusters near the borders may differ from it.
  */
 public class NonHierarchicalDistanceBasedAlgorithm<T extends ClusterItem> extends AbstractAlgorithm<T> {
     private static final int DEFAULT_MAX_DISTANCE_AT_ZOOM = 100; // essentially 100 dp.
@@ -52,16 +68,49 @@ public class NonHierarchicalDistanceBasedAlgorithm<T extends ClusterItem> extend
     private int mMaxDistance = DEFAULT_MAX_DISTANCE_AT_ZOOM;
 
     /**
-     * Any modifications should be synchronized on mQuadTree.
+     * The items, wrapped in QuadItems.
      */
-    private final Collection<QuadItem<T>> mItems = new LinkedHashSet<>();
+    private final SnapshotItemStore<T, QuadItem<T>> mStore = new SnapshotItemStore<T, QuadItem<T>>() {
+        @Override
+        QuadItem<T> wrap(T item, int id) {
+            return new QuadItem<>(item, id);
+        }
+
+        @Override
+        T itemOf(QuadItem<T> wrapper) {
+            return wrapper.mClusterItem;
+        }
+
+        @Override
+        int idOf(QuadItem<T> wrapper) {
+            return wrapper.mId;
+        }
+
+        @Override
+        LatLng positionOf(QuadItem<T> wrapper) {
+            return wrapper.mPosition;
+        }
+    };
+
+    private static final SphericalMercatorProjection PROJECTION = new SphericalMercatorProjection(1);
 
     /**
-     * Any modifications should be synchronized on mQuadTree.
+     * Fewer candidates than this are clustered on the calling thread, even given an executor.
      */
-    private final PointQuadTree<QuadItem<T>> mQuadTree = new PointQuadTree<>(0, 1, 0, 1);
+    private static final int MIN_CANDIDATES_PER_PARTITION = 1000;
 
-    private static final SphericalMercatorProjection PROJECTION = new SphericalMercatorProjection(1);
+    /**
+     * Partitions are at least this many cluster spans wide, so that stitching, which runs on the
+     * calling thread, only looks at a small part of each.
+     */
+    private static final int MIN_PARTITION_SPANS = 8;
+
+    /**
+     * Runs partitions of a clustering pass, or null to cluster on the calling thread.
+     */
+    private volatile Executor mExecutor;
+    private volatile int mPartitions;
+    private volatile boolean mStitchPartitions = true;
 
     /**
      * Adds an item to the algorithm
@@ -70,15 +119,7 @@ public class NonHierarchicalDistanceBasedAlgorithm<T extends ClusterItem> extend
      */
     @Override
     public boolean addItem(T item) {
-        boolean result;
-        final QuadItem<T> quadItem = new QuadItem<>(item);
-        synchronized (mQuadTree) {
-            result = mItems.add(quadItem);
-            if (result) {
-                mQuadTree.add(quadItem);
-            }
-        }
-        return result;
+        return mStore.add(item);
     }
 
     /**
@@ -88,22 +129,12 @@ public class NonHierarchicalDistanceBasedAlgorithm<T extends ClusterItem> extend
      */
     @Override
     public boolean addItems(Collection<T> items) {
-        boolean result = false;
-        for (T item : items) {
-            boolean individualResult = addItem(item);
-            if (individualResult) {
-                result = true;
-            }
-        }
-        return result;
+        return mStore.addAll(items);
     }
 
     @Override
     public void clearItems() {
-        synchronized (mQuadTree) {
-            mItems.clear();
-            mQuadTree.clear();
-        }
+        mStore.clear();
     }
 
     /**
@@ -114,17 +145,7 @@ public class NonHierarchicalDistanceBasedAlgorithm<T extends ClusterItem> extend
      */
     @Override
     public boolean removeItem(T item) {
-        boolean result;
-        // QuadItem delegates hashcode() and equals() to its item so,
-        //   removing any QuadItem to that item will remove the item
-        final QuadItem<T> quadItem = new QuadItem<>(item);
-        synchronized (mQuadTree) {
-            result = mItems.remove(quadItem);
-            if (result) {
-                mQuadTree.remove(quadItem);
-            }
-        }
-        return result;
+        return mStore.remove(item);
     }
 
     /**
@@ -134,20 +155,7 @@ public class NonHierarchicalDistanceBasedAlgorithm<T extends ClusterItem> extend
      */
     @Override
     public boolean removeItems(Collection<T> items) {
-        boolean result = false;
-        synchronized (mQuadTree) {
-            for (T item : items) {
-                // QuadItem delegates hashcode() and equals() to its item so,
-                //   removing any QuadItem to that item will remove the item
-                final QuadItem<T> quadItem = new QuadItem<>(item);
-                boolean individualResult = mItems.remove(quadItem);
-                if (individualResult) {
-                    mQuadTree.remove(quadItem);
-                    result = true;
-                }
-            }
-        }
-        return result;
+        return mStore.removeAll(items);
     }
 
     /**
@@ -158,16 +166,27 @@ public class NonHierarchicalDistanceBasedAlgorithm<T extends ClusterItem> extend
      */
     @Override
     public boolean updateItem(T item) {
-        // TODO - Can this be optimized to update the item in-place if the location hasn't changed?
-        boolean result;
-        synchronized (mQuadTree) {
-            result = removeItem(item);
-            if (result) {
-                // Only add the item if it was removed (to help prevent accidental duplicates on map)
-                result = addItem(item);
-            }
+        // Items that were never added are not added (to help prevent accidental duplicates on map)
+        return mStore.update(item);
+    }
+
+    /**
+     * Applies a batch of changes under a single lock, so that no clustering pass sees only some
+     * of them, and adds the new items to the quad tree in bulk.
+     */
+    @Override
+    public boolean applyBatch(ItemBatch<T> batch) {
+        synchronized (mStore) {
+            return super.applyBatch(batch);
         }
-        return result;
+    }
+
+    /**
+     * @return true, as clustering runs against a snapshot of the items
+     */
+    @Override
+    public boolean canClusterConcurrently() {
+        return true;
     }
 
     @Override
@@ -176,65 +195,125 @@ public class NonHierarchicalDistanceBasedAlgorithm<T extends ClusterItem> extend
 
         final double zoomSpecificSpan = mMaxDistance / Math.pow(2, discreteZoom) / 256;
 
-        final Set<QuadItem<T>> visitedCandidates = new HashSet<>();
+        // TODO: Use a span that takes into account the visual size of the marker, not just its
+        // LatLng.
+        final double halfSpan = zoomSpecificSpan / 2;
+
         final Set<Cluster<T>> results = new HashSet<>();
-        final Map<QuadItem<T>, Double> distanceToCluster = new HashMap<>();
-        final Map<QuadItem<T>, StaticCluster<T>> itemToCluster = new HashMap<>();
+        // Reused for every candidate's search to avoid allocating a result list per candidate.
+        final List<QuadItem<T>> clusterItems = new ArrayList<>();
+
+        final PointQuadTree<QuadItem<T>> quadTree;
+        final Collection<QuadItem<T>> candidates;
+        final int idCount;
+        synchronized (mStore) {
+            SnapshotItemStore.Snapshot<QuadItem<T>> snapshot = mStore.snapshot();
+            quadTree = snapshot.mQuadTree;
+            candidates = getClusteringItems(quadTree, zoom);
+            idCount = snapshot.mIdCount;
+        }
 
-        synchronized (mQuadTree) {
-            for (QuadItem<T> candidate : getClusteringItems(mQuadTree, zoom)) {
-                if (visitedCandidates.contains(candidate)) {
-                    // Candidate is already part of another cluster.
-                    continue;
-                }
+        // The snapshot is immutable, so the rest runs without blocking writers.
+        Executor executor = mExecutor;
+        int partitions = Math.min(mPartitions, candidates.size() / MIN_CANDIDATES_PER_PARTITION);
+        if (executor != null && partitions > 1) {
+            return new PartitionedClustering(quadTree, candidates, idCount, halfSpan, partitions)
+                    .run(executor, mStitchPartitions);
+        }
 
-                Bounds searchBounds = createBoundsFromSpan(candidate.getPoint(), zoomSpecificSpan);
-                Collection<QuadItem<T>> clusterItems;
-                clusterItems = mQuadTree.search(searchBounds);
-                if (clusterItems.size() == 1) {
-                    // Only the current marker is in range. Just add the single item to the results.
-                    results.add(candidate);
-                    visitedCandidates.add(candidate);
-                    distanceToCluster.put(candidate, 0d);
-                    continue;
-                }
-                StaticCluster<T> cluster = new StaticCluster<>(candidate.mClusterItem.getPosition());
-                results.add(cluster);
-
-                for (QuadItem<T> clusterItem : clusterItems) {
-                    Double existingDistance = distanceToCluster.get(clusterItem);
-                    double distance = distanceSquared(clusterItem.getPoint(), candidate.getPoint());
-                    if (existingDistance != null) {
-                        // Item already belongs to another cluster. Check if it's closer to this cluster.
-                        if (existingDistance < distance) {
-                            continue;
-                        }
-                        // Move item to the closer cluster.
-                        itemToCluster.get(clusterItem).remove(clusterItem.mClusterItem);
+        // Indexed by QuadItem id. clusterIndex holds the position in seeds plus one, or 0 for an
+        // item returned on its own.
+        final boolean[] visited = new boolean[idCount];
+        final double[] distanceToCluster = new double[idCount];
+        final int[] clusterIndex = new int[idCount];
+        // The first item of each cluster, and every item added to a cluster, once.
+        final List<QuadItem<T>> seeds = new ArrayList<>();
+        final List<QuadItem<T>> members = new ArrayList<>();
+        for (QuadItem<T> candidate : candidates) {
+            if (visited[candidate.mId]) {
+                // Candidate is already part of another cluster.
+                continue;
+            }
+
+            Point p = candidate.getPoint();
+            clusterItems.clear();
+            quadTree.search(p.x - halfSpan, p.x + halfSpan, p.y - halfSpan, p.y + halfSpan, clusterItems);
+            if (clusterItems.size() == 1) {
+                // Only the current marker is in range. Just add the single item to the results.
+                results.add(candidate);
+                visited[candidate.mId] = true;
+                distanceToCluster[candidate.mId] = 0;
+                continue;
+            }
+            seeds.add(candidate);
+
+            for (QuadItem<T> clusterItem : clusterItems) {
+                int id = clusterItem.mId;
+                double distance = distanceSquared(clusterItem.getPoint(), candidate.getPoint());
+                if (visited[id]) {
+                    // Item already belongs to another cluster. Check if it's closer to this cluster.
+                    if (distanceToCluster[id] < distance || clusterIndex[id] == 0) {
+                        continue;
                     }
-                    distanceToCluster.put(clusterItem, distance);
-                    cluster.add(clusterItem.mClusterItem);
-                    itemToCluster.put(clusterItem, cluster);
+                    // Move item to the closer cluster.
+                } else {
+                    members.add(clusterItem);
                 }
-                visitedCandidates.addAll(clusterItems);
+                visited[id] = true;
+                distanceToCluster[id] = distance;
+                clusterIndex[id] = seeds.size();
             }
         }
+        results.addAll(toSliceClusters(seeds, members, clusterIndex));
         return results;
     }
 
+    /**
+     * Groups the items of the clusters in one array, which each cluster holds a slice of.
+     *
+     * @param clusterIndex the position in seeds plus one of the cluster of each member, by id
+     */
+    private List<SliceCluster<T>> toSliceClusters(List<QuadItem<T>> seeds, List<QuadItem<T>> members,
+                                                  int[] clusterIndex) {
+        int[] ends = new int[seeds.size() + 1];
+        for (QuadItem<T> member : members) {
+            ends[clusterIndex[member.mId]]++;
+        }
+        for (int i = 1; i < ends.length; i++) {
+            ends[i] += ends[i - 1];
+        }
+        // Filled from the end of each slice, so that ends[i] becomes the start of cluster i + 1.
+        Object[] items = new Object[members.size()];
+        int[] hashCodes = new int[seeds.size()];
+        for (int i = members.size() - 1; i >= 0; i--) {
+            QuadItem<T> member = members.get(i);
+            int index = clusterIndex[member.mId];
+            items[--ends[index]] = member.mClusterItem;
+            hashCodes[index - 1] += member.mClusterItem.hashCode();
+        }
+        List<SliceCluster<T>> clusters = new ArrayList<>(seeds.size());
+        for (int i = 0; i < seeds.size(); i++) {
+            int end = i + 1 < seeds.size() ? ends[i + 2] : items.length;
+            clusters.add(new SliceCluster<T>(seeds.get(i).mClusterItem.getPosition(), items, ends[i + 1], end,
+                    hashCodes[i]));
+        }
+        return clusters;
+    }
+
+    /**
+     * Returns the candidate clusters, in the order they should be considered. Called while holding
+     * the lock on the items, with a snapshot of the quad tree; the returned collection must not
+     * change once the lock is released.
+     *
+     * @param quadTree a snapshot of the quad tree
+     */
     protected Collection<QuadItem<T>> getClusteringItems(PointQuadTree<QuadItem<T>> quadTree, float zoom) {
-        return mItems;
+        return mStore.snapshot().mItems;
     }
 
     @Override
     public Collection<T> getItems() {
-        final Set<T> items = new LinkedHashSet<>();
-        synchronized (mQuadTree) {
-            for (QuadItem<T> quadItem : mItems) {
-                items.add(quadItem.mClusterItem);
-            }
-        }
-        return items;
+        return mStore.getItems();
     }
 
     @Override
@@ -247,27 +326,390 @@ public class NonHierarchicalDistanceBasedAlgorithm<T extends ClusterItem> extend
         return mMaxDistance;
     }
 
+    /**
+     * Clusters on several threads. Each clustering pass is split into at most {@code partitions}
+     * parts, all but one of which are run by {@code executor} while the calling thread runs the
+     * last. Small passes still run on the calling thread alone.
+     *
+     * @param executor   runs the partitions, or null to cluster on the calling thread
+     * @param partitions the number of partitions, usually the number of available processors
+     */
+    public void setExecutor(@Nullable Executor executor, int partitions) {
+        mExecutor = executor;
+        mPartitions = partitions;
+    }
+
+    /**
+     * Sets whether clusters that meet at the borders of partitions are stitched together (the
+     * default). Without stitching, parallel clustering is faster, but clusters from either side of
+     * a border may overlap, and items near a border only join clusters on their own side.
+     */
+    public void setStitchPartitions(boolean stitch) {
+        mStitchPartitions = stitch;
+    }
+
     private double distanceSquared(Point a, Point b) {
         return (a.x - b.x) * (a.x - b.x) + (a.y - b.y) * (a.y - b.y);
     }
 
-    private Bounds createBoundsFromSpan(Point p, double span) {
-        // TODO: Use a span that takes into account the visual size of the marker, not just its
-        // LatLng.
-        double halfSpan = span / 2;
-        return new Bounds(
-                p.x - halfSpan, p.x + halfSpan,
-                p.y - halfSpan, p.y + halfSpan);
+    /**
+     * A clustering pass split into vertical strips, as described in the class documentation.
+     */
+    private class PartitionedClustering {
+        private final PointQuadTree<QuadItem<T>> mTree;
+        private final double mHalfSpan;
+
+        /**
+         * The x coordinates at which the strips meet, in increasing order.
+         */
+        private final double[] mEdges;
+        private final List<Partition> mPartitions = new ArrayList<>();
+
+        /**
+         * Indexed by QuadItem id. Each partition only writes the entries of its own items.
+         */
+        private final boolean[] mVisited;
+        private final double[] mDistanceToSeed;
+        private final Object[] mSeedOf;
+
+        /**
+         * Indexed by QuadItem id: the position among the candidates plus one, or 0 for items that
+         * are not candidates.
+         */
+        private final int[] mOrderOf;
+
+        /**
+         * Reused by each search for seeds while stitching.
+         */
+        private final List<Seed> mNearbySeeds = new ArrayList<>();
+
+        /**
+         * The items that first joined a cluster while stitching.
+         */
+        private final List<QuadItem<T>> mStitched = new ArrayList<>();
+
+        private PartitionedClustering(PointQuadTree<QuadItem<T>> tree, Collection<QuadItem<T>> candidates,
+                                      int idCount, double halfSpan, int partitions) {
+            mTree = tree;
+            mHalfSpan = halfSpan;
+            mVisited = new boolean[idCount];
+            mDistanceToSeed = new double[idCount];
+            mSeedOf = new Object[idCount];
+            mOrderOf = new int[idCount];
+            mEdges = edges(candidates, partitions, MIN_PARTITION_SPANS * 2 * halfSpan);
+            for (int i = 0; i <= mEdges.length; i++) {
+                mPartitions.add(new Partition(i == 0 ? Double.NEGATIVE_INFINITY : mEdges[i - 1],
+                        i == mEdges.length ? Double.POSITIVE_INFINITY : mEdges[i]));
+            }
+            int order = 0;
+            for (QuadItem<T> candidate : candidates) {
+                mOrderOf[candidate.mId] = ++order;
+                partitionOf(candidate.mPoint.x).mCandidates.add(candidate);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private Seed seedOf(QuadItem<T> item) {
+            return (Seed) mSeedOf[item.mId];
+        }
+
+        /**
+         * @return strip borders that leave about as many candidates in each strip, estimated
+         * from a sample of them, and leave strips at least {@code minWidth} wide.
+         */
+        private double[] edges(Collection<QuadItem<T>> candidates, int partitions, double minWidth) {
+            int stride = Math.max(1, candidates.size() / (partitions * 64));
+            double[] sample = new double[(candidates.size() + stride - 1) / stride];
+            int size = 0;
+            int i = 0;
+            for (QuadItem<T> candidate : candidates) {
+                if (i++ % stride == 0) {
+                    sample[size++] = candidate.mPoint.x;
+                }
+            }
+            Arrays.sort(sample, 0, size);
+            double[] edges = new double[partitions - 1];
+            int count = 0;
+            for (int partition = 1; partition < partitions; partition++) {
+                double edge = sample[partition * size / partitions];
+                if (count == 0 || edge >= edges[count - 1] + minWidth) {
+                    edges[count++] = edge;
+                }
+            }
+            return Arrays.copyOf(edges, count);
+        }
+
+        private Partition partitionOf(double x) {
+            int index = Arrays.binarySearch(mEdges, x);
+            // Points on a border belong to the strip to its right.
+            return mPartitions.get(index >= 0 ? index + 1 : -(index + 1));
+        }
+
+        private Set<Cluster<T>> run(Executor executor, boolean stitch) {
+            ParallelTasks.run(executor, mPartitions, "Clustering a partition failed");
+
+            if (stitch) {
+                stitch();
+            }
+            Set<Cluster<T>> results = new HashSet<>();
+            List<QuadItem<T>> seeds = new ArrayList<>();
+            for (Partition partition : mPartitions) {
+                for (Seed seed : partition.mSeeds) {
+                    if (seed.mDropped) {
+                        continue;
+                    }
+                    if (seed.mAlone) {
+                        results.add(seed.mItem);
+                    } else {
+                        seeds.add(seed.mItem);
+                        seed.mIndex = seeds.size();
+                    }
+                }
+            }
+
+            // The items of the clusters, each once, as in the pass on one thread.
+            int[] clusterIndex = new int[mSeedOf.length];
+            List<QuadItem<T>> members = new ArrayList<>();
+            for (Partition partition : mPartitions) {
+                addMembers(partition.mMembers, members, clusterIndex);
+            }
+            addMembers(mStitched, members, clusterIndex);
+            for (SliceCluster<T> cluster : toSliceClusters(seeds, members, clusterIndex)) {
+                if (cluster.getSize() > 0) {
+                    results.add(cluster);
+                }
+            }
+            return results;
+        }
+
+        /**
+         * Adds the items that are in a cluster, rather than returned on their own, to members.
+         *
+         * @param clusterIndex receives the position in seeds plus one of the cluster of each
+         *                     member, by id
+         */
+        private void addMembers(List<QuadItem<T>> items, List<QuadItem<T>> members, int[] clusterIndex) {
+            for (QuadItem<T> item : items) {
+                Seed seed = seedOf(item);
+                if (seed != null && seed.mIndex > 0) {
+                    members.add(item);
+                    clusterIndex[item.mId] = seed.mIndex;
+                }
+            }
+        }
+
+        /**
+         * Reconciles the clusters of neighbouring strips. Only clusters within reach of a border
+         * can conflict, and only items within reach of a border, of a dropped seed or of a new
+         * one can change clusters, so the rest of each strip is left as it is.
+         */
+        private void stitch() {
+            // Seeds that clusters near a border could be made of.
+            List<Seed> nearBorder = new ArrayList<>();
+            for (Partition partition : mPartitions) {
+                for (Seed seed : partition.mSeeds) {
+                    if (partition.isNearBorder(seed.getPoint().x, 4 * mHalfSpan)) {
+                        nearBorder.add(seed);
+                    }
+                }
+            }
+            Comparator<Seed> byOrder = new Comparator<Seed>() {
+                @Override
+                public int compare(Seed a, Seed b) {
+                    return a.mOrder < b.mOrder ? -1 : (a.mOrder == b.mOrder ? 0 : 1);
+                }
+            };
+            Collections.sort(nearBorder, byOrder);
+
+            // Seeds within reach of an earlier one, which must be in another strip, are dropped.
+            PointQuadTree<Seed> seeds = new PointQuadTree<>(0, 1, 0, 1);
+            List<Seed> dropped = new ArrayList<>();
+            for (Seed seed : nearBorder) {
+                if (seed.mPartition.isNearBorder(seed.getPoint().x, mHalfSpan)
+                        && closestSeed(seeds, seed.getPoint()) != null) {
+                    seed.mDropped = true;
+                    dropped.add(seed);
+                } else {
+                    seeds.add(seed);
+                }
+            }
+
+            // Candidates of dropped clusters that no seed reaches become seeds in turn, in order.
+            // Items that may change clusters.
+            Set<QuadItem<T>> affected = new LinkedHashSet<>();
+            for (double edge : mEdges) {
+                mTree.search(edge - mHalfSpan, edge + mHalfSpan, 0, 1, affected);
+            }
+            List<Seed> orphans = new ArrayList<>();
+            List<QuadItem<T>> found = new ArrayList<>();
+            for (Seed seed : dropped) {
+                Point p = seed.getPoint();
+                found.clear();
+                mTree.search(p.x - mHalfSpan, p.x + mHalfSpan, p.y - mHalfSpan, p.y + mHalfSpan, found);
+                affected.addAll(found);
+                for (QuadItem<T> item : found) {
+                    int order = mOrderOf[item.mId] - 1;
+                    if (order >= 0 && seedOf(item) == seed && closestSeed(seeds, item.mPoint) == null) {
+                        orphans.add(new Seed(item, order, partitionOf(item.mPoint.x)));
+                    }
+                }
+            }
+            Collections.sort(orphans, byOrder);
+            for (Seed orphan : orphans) {
+                Point p = orphan.getPoint();
+                if (closestSeed(seeds, p) == null) {
+                    orphan.mPartition.mSeeds.add(orphan);
+                    seeds.add(orphan);
+                    mTree.search(p.x - mHalfSpan, p.x + mHalfSpan, p.y - mHalfSpan, p.y + mHalfSpan, affected);
+                }
+            }
+
+            // These items join the closest seed that reaches them, if any.
+            for (QuadItem<T> item : affected) {
+                Seed current = seedOf(item);
+                Seed closest = closestSeed(seeds, item.mPoint);
+                if (closest == current) {
+                    continue;
+                }
+                if (current == null) {
+                    mStitched.add(item);
+                }
+                mSeedOf[item.mId] = closest;
+            }
+
+            // Whether a seed is alone may have changed if its reach crosses a border.
+            mNearbySeeds.clear();
+            seeds.search(0, 1, 0, 1, mNearbySeeds);
+            for (Seed seed : mNearbySeeds) {
+                Point p = seed.getPoint();
+                seed.mAlone = mTree.count(p.x - mHalfSpan, p.x + mHalfSpan, p.y - mHalfSpan, p.y + mHalfSpan) == 1;
+            }
+        }
+
+        /**
+         * @return the closest seed that reaches the point, the latest one if several are as
+         * close, as when clustering on one thread; or null if none does.
+         */
+        private Seed closestSeed(PointQuadTree<Seed> seeds, Point point) {
+            Seed closest = null;
+            double closestDistance = Double.POSITIVE_INFINITY;
+            mNearbySeeds.clear();
+            seeds.search(point.x - mHalfSpan, point.x + mHalfSpan, point.y - mHalfSpan, point.y + mHalfSpan,
+                    mNearbySeeds);
+            for (Seed seed : mNearbySeeds) {
+                double distance = distanceSquared(seed.getPoint(), point);
+                if (distance < closestDistance || (distance == closestDistance && seed.mOrder > closest.mOrder)) {
+                    closest = seed;
+                    closestDistance = distance;
+                }
+            }
+            return closest;
+        }
+
+        /**
+         * The candidates in one strip, clustered as on one thread but seeing only the strip.
+         */
+        private class Partition implements Runnable {
+            private final double mMinX;
+            private final double mMaxX;
+            private final List<QuadItem<T>> mCandidates = new ArrayList<>();
+            private final List<Seed> mSeeds = new ArrayList<>();
+
+            /**
+             * The items that first joined a cluster of this strip.
+             */
+            private final List<QuadItem<T>> mMembers = new ArrayList<>();
+
+            private Partition(double minX, double maxX) {
+                mMinX = minX;
+                mMaxX = maxX;
+            }
+
+            private boolean isNearBorder(double x, double distance) {
+                return x - mMinX <= distance || mMaxX - x <= distance;
+            }
+
+            @Override
+            public void run() {
+                List<QuadItem<T>> clusterItems = new ArrayList<>();
+                for (QuadItem<T> candidate : mCandidates) {
+                    if (mVisited[candidate.mId]) {
+                        // Candidate is already part of another cluster.
+                        continue;
+                    }
+                    Point p = candidate.mPoint;
+                    clusterItems.clear();
+                    mTree.search(Math.max(p.x - mHalfSpan, mMinX), Math.min(p.x + mHalfSpan, mMaxX),
+                            p.y - mHalfSpan, p.y + mHalfSpan, clusterItems);
+                    Seed seed = new Seed(candidate, mOrderOf[candidate.mId] - 1, this);
+                    mSeeds.add(seed);
+                    int inStrip = 0;
+                    for (QuadItem<T> clusterItem : clusterItems) {
+                        if (clusterItem.mPoint.x >= mMaxX) {
+                            continue;
+                        }
+                        inStrip++;
+                        int id = clusterItem.mId;
+                        double distance = distanceSquared(clusterItem.mPoint, p);
+                        if (mVisited[id]) {
+                            // Already part of another cluster; move it if this one is closer.
+                            if (mDistanceToSeed[id] < distance) {
+                                continue;
+                            }
+                        } else {
+                            mMembers.add(clusterItem);
+                        }
+                        mVisited[id] = true;
+                        mDistanceToSeed[id] = distance;
+                        mSeedOf[id] = seed;
+                    }
+                    seed.mAlone = inStrip == 1;
+                }
+            }
+        }
+
+        /**
+         * The candidate a cluster is centered on.
+         */
+        private class Seed implements PointQuadTree.Item {
+            private final QuadItem<T> mItem;
+            private final int mOrder;
+            private final Partition mPartition;
+
+            /**
+             * Whether no other item is within reach, so that the seed is returned on its own.
+             */
+            private boolean mAlone;
+            private boolean mDropped;
+
+            /**
+             * The position of the cluster among those returned plus one, once known, or 0.
+             */
+            private int mIndex;
+
+            private Seed(QuadItem<T> item, int order, Partition partition) {
+                mItem = item;
+                mOrder = order;
+                mPartition = partition;
+            }
+
+            @Override
+            public Point getPoint() {
+                return mItem.mPoint;
+            }
+        }
     }
 
     protected static class QuadItem<T extends ClusterItem> implements PointQuadTree.Item, Cluster<T> {
         private final T mClusterItem;
+        private final int mId;
         private final Point mPoint;
         private final LatLng mPosition;
         private Set<T> singletonSet;
 
-        private QuadItem(T item) {
+        private QuadItem(T item, int id) {
             mClusterItem = item;
+            mId = id;
             mPosition = item.getPosition();
             mPoint = PROJECTION.toPoint(mPosition);
             singletonSet = Collections.singleton(mClusterItem);
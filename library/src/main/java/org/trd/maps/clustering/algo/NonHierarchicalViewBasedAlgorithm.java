@@ -64,17 +64,8 @@ public class NonHierarchicalViewBasedAlgorithm<T extends ClusterItem>
         Collection<QuadItem<T>> items = new ArrayList<>();
 
         // Handle wrapping around international date line
-        if (visibleBounds.minX < 0) {
-            Bounds wrappedBounds = new Bounds(visibleBounds.minX + 1, 1, visibleBounds.minY, visibleBounds.maxY);
-            items.addAll(quadTree.search(wrappedBounds));
-            visibleBounds = new Bounds(0, visibleBounds.maxX, visibleBounds.minY, visibleBounds.maxY);
-        }
-        if (visibleBounds.maxX > 1) {
-            Bounds wrappedBounds = new Bounds(0, visibleBounds.maxX - 1, visibleBounds.minY, visibleBounds.maxY);
-            items.addAll(quadTree.search(wrappedBounds));
-            visibleBounds = new Bounds(visibleBounds.minX, 1, visibleBounds.minY, visibleBounds.maxY);
-        }
-        items.addAll(quadTree.search(visibleBounds));
+        quadTree.searchWrapped(visibleBounds.minX, visibleBounds.maxX, visibleBounds.minY, visibleBounds.maxY,
+                1, items);
 
         return items;
     }
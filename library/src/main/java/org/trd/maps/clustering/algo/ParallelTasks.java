@@ -0,0 +1,82 @@
+/*
+ * Copyright 2020 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.trd.maps.clustering.algo;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs the parts of a clustering pass that algorithms split across threads.
+ */
+final class ParallelTasks {
+    private ParallelTasks() {
+    }
+
+    /**
+     * Runs all but the first task on the executor, or on the calling thread if it rejects them,
+     * and the first on the calling thread, then waits for all of them. Interrupts do not cut the
+     * wait short, as the results of every task are needed; they are only passed on.
+     *
+     * @param failure describes the failure of a task, thrown as an IllegalStateException
+     */
+    static void run(Executor executor, List<? extends Runnable> tasks, String failure) {
+        final Throwable[] failures = new Throwable[tasks.size()];
+        final CountDownLatch done = new CountDownLatch(tasks.size() - 1);
+        for (int i = 1; i < tasks.size(); i++) {
+            final int index = i;
+            final Runnable task = tasks.get(i);
+            Runnable runnable = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } catch (RuntimeException | Error e) {
+                        failures[index] = e;
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            };
+            try {
+                executor.execute(runnable);
+            } catch (RejectedExecutionException e) {
+                runnable.run();
+            }
+        }
+        tasks.get(0).run();
+
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        for (Throwable cause : failures) {
+            if (cause != null) {
+                throw new IllegalStateException(failure, cause);
+            }
+        }
+    }
+}
@@ -21,33 +21,106 @@ import androidx.collection.LruCache;
 import org.trd.maps.clustering.Cluster;
 import org.trd.maps.clustering.ClusterItem;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Optimistically fetch clusters for adjacent zoom levels, caching them as necessary.
+ * <p/>
+ * By default any change to the items clears the cache. In incremental mode, changes are instead
+ * applied to the cached clusters of each zoom level (see {@link CachedClusters}), so that the
+ * cache stays warm while items are continuously updated. Changes made while a zoom level is
+ * being computed are applied to its clusters too before they are cached.
+ * <p/>
+ * Zoom levels within the prefetch radius of the requested one are computed on a bounded pool of
+ * worker threads, nearest first. Each zoom level is computed at most once at a time: callers
+ * asking for a zoom level being computed wait for that computation, and one asking for a zoom
+ * level whose prefetch has not started yet computes it right away instead. Prefetches that have
+ * not started are dropped once the requested zoom level moves too far from them.
  */
 public class PreCachingAlgorithmDecorator<T extends ClusterItem> extends AbstractAlgorithm<T> {
+    private static final int DEFAULT_PREFETCH_RADIUS = 1;
+    private static final int DEFAULT_PREFETCH_THREADS = 1;
+    private static final long PREFETCH_THREAD_KEEP_ALIVE_SECONDS = 30;
+
     private final Algorithm<T> mAlgorithm;
+    private final boolean mIncremental;
 
     // TODO: evaluate maxSize parameter for LruCache.
-    private final LruCache<Integer, Set<? extends Cluster<T>>> mCache = new LruCache<Integer, Set<? extends Cluster<T>>>(5);
+    private final LruCache<Integer, CachedClusters<T>> mCache = new LruCache<Integer, CachedClusters<T>>(5);
     private final ReadWriteLock mCacheLock = new ReentrantReadWriteLock();
-    private final Executor mExecutor = Executors.newCachedThreadPool();
+
+    /**
+     * Incremented whenever the cache is cleared, so that computations started before are not
+     * cached. Guarded by mCacheLock.
+     */
+    private int mGeneration;
+
+    /**
+     * In incremental mode, the computations clustering the decorated algorithm, which record the
+     * changes to the items meanwhile. Guarded by mCacheLock.
+     */
+    private final Set<Computation> mComputing = new HashSet<>();
+
+    private final int mPrefetchRadius;
+    private final ThreadPoolExecutor mExecutor;
+
+    /**
+     * The computations of each zoom level that are queued or running. Any access should be
+     * synchronized on mInFlight.
+     */
+    private final Map<Integer, Computation> mInFlight = new HashMap<>();
+    private long mNextSequence;
 
     public PreCachingAlgorithmDecorator(Algorithm<T> algorithm) {
+        this(algorithm, false);
+    }
+
+    /**
+     * @param incremental whether changes to the items should be applied to the cached clusters
+     *                    rather than clear them. The cached clusters then only approximate those
+     *                    of {@code algorithm}, as in {@link NonHierarchicalDistanceBasedAlgorithm}.
+     */
+    public PreCachingAlgorithmDecorator(Algorithm<T> algorithm, boolean incremental) {
+        this(algorithm, incremental, DEFAULT_PREFETCH_RADIUS, DEFAULT_PREFETCH_THREADS);
+    }
+
+    /**
+     * @param incremental     see {@link #PreCachingAlgorithmDecorator(Algorithm, boolean)}
+     * @param prefetchRadius  how many zoom levels above and below the requested one to prefetch,
+     *                        or 0 not to prefetch
+     * @param prefetchThreads the maximum number of threads prefetching at a time
+     */
+    public PreCachingAlgorithmDecorator(Algorithm<T> algorithm, boolean incremental, int prefetchRadius,
+                                        int prefetchThreads) {
+        if (prefetchRadius < 0 || prefetchThreads < 1) {
+            throw new IllegalArgumentException("Invalid prefetch radius or thread count");
+        }
         mAlgorithm = algorithm;
+        mIncremental = incremental;
+        mPrefetchRadius = prefetchRadius;
+        mExecutor = new ThreadPoolExecutor(prefetchThreads, prefetchThreads,
+                PREFETCH_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>());
+        mExecutor.allowCoreThreadTimeOut(true);
     }
 
     @Override
     public boolean addItem(T item) {
         boolean result = mAlgorithm.addItem(item);
         if (result) {
-            clearCache();
+            onItemsChanged(Collections.<T>emptyList(), Collections.singleton(item), Collections.<T>emptyList());
         }
         return result;
     }
@@ -56,7 +129,7 @@ public class PreCachingAlgorithmDecorator<T extends ClusterItem> extends Abstrac
     public boolean addItems(Collection<T> items) {
         boolean result = mAlgorithm.addItems(items);
         if (result) {
-            clearCache();
+            onItemsChanged(Collections.<T>emptyList(), items, Collections.<T>emptyList());
         }
         return result;
     }
@@ -71,7 +144,7 @@ public class PreCachingAlgorithmDecorator<T extends ClusterItem> extends Abstrac
     public boolean removeItem(T item) {
         boolean result = mAlgorithm.removeItem(item);
         if (result) {
-            clearCache();
+            onItemsChanged(Collections.singleton(item), Collections.<T>emptyList(), Collections.<T>emptyList());
         }
         return result;
     }
@@ -80,7 +153,7 @@ public class PreCachingAlgorithmDecorator<T extends ClusterItem> extends Abstrac
     public boolean removeItems(Collection<T> items) {
         boolean result = mAlgorithm.removeItems(items);
         if (result) {
-            clearCache();
+            onItemsChanged(items, Collections.<T>emptyList(), Collections.<T>emptyList());
         }
         return result;
     }
@@ -89,26 +162,81 @@ public class PreCachingAlgorithmDecorator<T extends ClusterItem> extends Abstrac
     public boolean updateItem(T item) {
         boolean result = mAlgorithm.updateItem(item);
         if (result) {
-            clearCache();
+            onItemsChanged(Collections.<T>emptyList(), Collections.<T>emptyList(), Collections.singleton(item));
         }
         return result;
     }
 
+    /**
+     * Applies the whole batch to the decorated algorithm, then brings the cache up to date once.
+     */
+    @Override
+    public boolean applyBatch(ItemBatch<T> batch) {
+        boolean result = batch.applyTo(mAlgorithm);
+        if (result) {
+            onItemsChanged(batch.getRemovedItems(), batch.getAddedItems(), batch.getUpdatedItems());
+        }
+        return result;
+    }
+
+    /**
+     * Brings the cache up to date after the given items were removed, then added, then updated in
+     * the algorithm.
+     */
+    private void onItemsChanged(Collection<T> removed, Collection<T> added, Collection<T> updated) {
+        if (!mIncremental) {
+            clearCache();
+            return;
+        }
+        mCacheLock.writeLock().lock();
+        try {
+            for (CachedClusters<T> clusters : mCache.snapshot().values()) {
+                apply(clusters, removed, added, updated);
+            }
+            if (!mComputing.isEmpty()) {
+                // Copied, as the caller may reuse the collections.
+                ItemChanges<T> changes = new ItemChanges<>(removed, added, updated);
+                for (Computation computation : mComputing) {
+                    computation.mChanges.add(changes);
+                }
+            }
+        } finally {
+            mCacheLock.writeLock().unlock();
+        }
+    }
+
+    private static <T extends ClusterItem> void apply(CachedClusters<T> clusters, Collection<T> removed,
+                                                      Collection<T> added, Collection<T> updated) {
+        synchronized (clusters) {
+            for (T item : removed) {
+                clusters.removeItem(item);
+            }
+            for (T item : added) {
+                clusters.addItem(item);
+            }
+            for (T item : updated) {
+                clusters.updateItem(item);
+            }
+        }
+    }
+
     private void clearCache() {
-        mCache.evictAll();
+        mCacheLock.writeLock().lock();
+        try {
+            mGeneration++;
+            mCache.evictAll();
+        } finally {
+            mCacheLock.writeLock().unlock();
+        }
     }
 
     @Override
     public Set<? extends Cluster<T>> getClusters(float zoom) {
         int discreteZoom = (int) zoom;
+        // Leaves the workers free for the zoom levels around this one.
+        cancelPrefetches(discreteZoom);
         Set<? extends Cluster<T>> results = getClustersInternal(discreteZoom);
-        // TODO: Check if requests are already in-flight.
-        if (mCache.get(discreteZoom + 1) == null) {
-            mExecutor.execute(new PrecacheRunnable(discreteZoom + 1));
-        }
-        if (mCache.get(discreteZoom - 1) == null) {
-            mExecutor.execute(new PrecacheRunnable(discreteZoom - 1));
-        }
+        schedulePrefetches(discreteZoom);
         return results;
     }
 
@@ -128,40 +256,242 @@ public class PreCachingAlgorithmDecorator<T extends ClusterItem> extends Abstrac
         return mAlgorithm.getMaxDistanceBetweenClusteredItems();
     }
 
-    private Set<? extends Cluster<T>> getClustersInternal(int discreteZoom) {
-        Set<? extends Cluster<T>> results;
-        mCacheLock.readLock().lock();
-        results = mCache.get(discreteZoom);
-        mCacheLock.readLock().unlock();
+    /**
+     * @return whether the decorated algorithm can cluster concurrently; the cache has locks of its
+     * own
+     */
+    @Override
+    public boolean canClusterConcurrently() {
+        return mAlgorithm instanceof AbstractAlgorithm
+                && ((AbstractAlgorithm<T>) mAlgorithm).canClusterConcurrently();
+    }
 
+    private Set<? extends Cluster<T>> getClustersInternal(int discreteZoom) {
+        CachedClusters<T> results = getCached(discreteZoom);
         if (results == null) {
-            mCacheLock.writeLock().lock();
-            results = mCache.get(discreteZoom);
+            Computation computation;
+            boolean claimed;
+            synchronized (mInFlight) {
+                computation = mInFlight.get(discreteZoom);
+                if (computation == null) {
+                    // May have completed since the cache was checked
+                    results = getCached(discreteZoom);
+                    if (results == null) {
+                        computation = new Computation(discreteZoom, 0);
+                        mInFlight.put(discreteZoom, computation);
+                    }
+                }
+                claimed = computation != null && computation.claim();
+            }
+            if (claimed) {
+                // Not worth waiting for a worker, if it was queued
+                mExecutor.remove(computation);
+                computation.compute();
+            }
             if (results == null) {
-                results = mAlgorithm.getClusters(discreteZoom);
-                mCache.put(discreteZoom, results);
+                results = computation.await();
             }
-            mCacheLock.writeLock().unlock();
         }
-        return results;
+        synchronized (results) {
+            return results.getClusters();
+        }
+    }
+
+    private CachedClusters<T> getCached(int discreteZoom) {
+        mCacheLock.readLock().lock();
+        try {
+            return mCache.get(discreteZoom);
+        } finally {
+            mCacheLock.readLock().unlock();
+        }
     }
 
-    private class PrecacheRunnable implements Runnable {
+    /**
+     * Queues the zoom levels within the prefetch radius that are neither cached nor in flight.
+     */
+    private void schedulePrefetches(int discreteZoom) {
+        List<Computation> scheduled = new ArrayList<>();
+        synchronized (mInFlight) {
+            for (int distance = 1; distance <= mPrefetchRadius; distance++) {
+                for (int zoom : new int[]{discreteZoom + distance, discreteZoom - distance}) {
+                    if (zoom < 0 || mInFlight.containsKey(zoom) || getCached(zoom) != null) {
+                        continue;
+                    }
+                    Computation computation = new Computation(zoom, distance);
+                    mInFlight.put(zoom, computation);
+                    scheduled.add(computation);
+                }
+            }
+        }
+        for (Computation computation : scheduled) {
+            mExecutor.execute(computation);
+        }
+    }
+
+    /**
+     * Drops the prefetches that have not started and are out of the prefetch radius of the given
+     * zoom level.
+     */
+    private void cancelPrefetches(int discreteZoom) {
+        List<Computation> cancelled = new ArrayList<>();
+        synchronized (mInFlight) {
+            for (Computation computation : mInFlight.values()) {
+                if (Math.abs(computation.mZoom - discreteZoom) > mPrefetchRadius && computation.claim()) {
+                    cancelled.add(computation);
+                }
+            }
+            for (Computation computation : cancelled) {
+                mInFlight.remove(computation.mZoom);
+            }
+        }
+        for (Computation computation : cancelled) {
+            mExecutor.remove(computation);
+        }
+    }
+
+    /**
+     * The computation of the clusters of one zoom level, shared by every caller asking for them
+     * meanwhile. Run by whichever claims it first: a worker, or a caller that needs it now.
+     */
+    private class Computation implements Runnable, Comparable<Computation> {
         private final int mZoom;
+        private final int mPriority;
+        private final long mSequence;
+        private final CountDownLatch mDone = new CountDownLatch(1);
+
+        /**
+         * Guarded by mInFlight.
+         */
+        private boolean mClaimed;
+
+        private CachedClusters<T> mResult;
+        private RuntimeException mFailure;
 
-        public PrecacheRunnable(int zoom) {
+        /**
+         * In incremental mode, the changes to the items since the computation started, to apply
+         * to the result before caching it. Guarded by mCacheLock.
+         */
+        private final List<ItemChanges<T>> mChanges = new ArrayList<>();
+
+        /**
+         * @param priority lower values run first
+         */
+        Computation(int zoom, int priority) {
             mZoom = zoom;
+            mPriority = priority;
+            mSequence = mNextSequence++;
+        }
+
+        /**
+         * Must be called while holding the lock on mInFlight.
+         *
+         * @return whether the caller should compute the zoom level, or else wait for it
+         */
+        boolean claim() {
+            if (mClaimed) {
+                return false;
+            }
+            mClaimed = true;
+            return true;
         }
 
         @Override
         public void run() {
+            boolean claimed;
+            synchronized (mInFlight) {
+                claimed = claim();
+            }
+            if (claimed) {
+                compute();
+            }
+        }
+
+        void compute() {
+            int generation;
+            mCacheLock.writeLock().lock();
+            try {
+                generation = mGeneration;
+                if (mIncremental) {
+                    mComputing.add(this);
+                }
+            } finally {
+                mCacheLock.writeLock().unlock();
+            }
+            CachedClusters<T> result = null;
             try {
-                // Wait between 500 - 1000 ms.
-                Thread.sleep((long) (Math.random() * 500 + 500));
-            } catch (InterruptedException e) {
-                // ignore. keep going.
+                result = new CachedClusters<>(mAlgorithm.getClusters(mZoom), mZoom,
+                        mAlgorithm.getMaxDistanceBetweenClusteredItems());
+            } catch (RuntimeException e) {
+                mFailure = e;
+            } finally {
+                mCacheLock.writeLock().lock();
+                try {
+                    mComputing.remove(this);
+                    if (result != null) {
+                        // Brings the result up to date with the changes made while computing it.
+                        // Those the decorated algorithm already saw leave the clusters as they are.
+                        for (ItemChanges<T> changes : mChanges) {
+                            apply(result, changes.mRemoved, changes.mAdded, changes.mUpdated);
+                        }
+                        // Otherwise the cache was cleared meanwhile, and the result may be stale.
+                        if (generation == mGeneration) {
+                            mCache.put(mZoom, result);
+                        }
+                    }
+                    mChanges.clear();
+                } finally {
+                    mCacheLock.writeLock().unlock();
+                }
+                mResult = result;
+                synchronized (mInFlight) {
+                    if (mInFlight.get(mZoom) == this) {
+                        mInFlight.remove(mZoom);
+                    }
+                }
+                mDone.countDown();
+            }
+        }
+
+        CachedClusters<T> await() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    mDone.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (mFailure != null) {
+                throw mFailure;
             }
-            getClustersInternal(mZoom);
+            return mResult;
+        }
+
+        @Override
+        public int compareTo(Computation other) {
+            if (mPriority != other.mPriority) {
+                return mPriority < other.mPriority ? -1 : 1;
+            }
+            return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+    }
+
+    /**
+     * Changes to the items: removals, then additions, then updates.
+     */
+    private static class ItemChanges<T extends ClusterItem> {
+        private final List<T> mRemoved;
+        private final List<T> mAdded;
+        private final List<T> mUpdated;
+
+        ItemChanges(Collection<T> removed, Collection<T> added, Collection<T> updated) {
+            mRemoved = new ArrayList<>(removed);
+            mAdded = new ArrayList<>(added);
+            mUpdated = new ArrayList<>(updated);
         }
     }
 }
@@ -67,6 +67,23 @@ public class ScreenBasedAlgorithmAdapter<T extends ClusterItem> extends Abstract
         return mAlgorithm.updateItem(item);
     }
 
+    @Override
+    public boolean applyBatch(ItemBatch<T> batch) {
+        return batch.applyTo(mAlgorithm);
+    }
+
+    @Override
+    public boolean canClusterConcurrently() {
+        return mAlgorithm instanceof AbstractAlgorithm
+                && ((AbstractAlgorithm<T>) mAlgorithm).canClusterConcurrently();
+    }
+
+    @Override
+    public boolean canUpdateConcurrently() {
+        return mAlgorithm instanceof AbstractAlgorithm
+                && ((AbstractAlgorithm<T>) mAlgorithm).canUpdateConcurrently();
+    }
+
     @Override
     public Set<? extends Cluster<T>> getClusters(float zoom) {
         return mAlgorithm.getClusters(zoom);
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2020 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.trd.maps.clustering.algo;
+
+import com.huawei.hms.maps.model.LatLng;
+
+import org.trd.maps.clustering.Cluster;
+import org.trd.maps.clustering.ClusterItem;
+
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable cluster whose items are a slice of an array shared by all the clusters of a
+ * clustering pass, which holds their items grouped by cluster. Its hash code is computed once,
+ * when the clusters are built.
+ */
+public class SliceCluster<T extends ClusterItem> implements Cluster<T> {
+    private final LatLng mCenter;
+    private final Object[] mItems;
+    private final int mStart;
+    private final int mEnd;
+    private final int mHashCode;
+
+    /**
+     * @param items    the items of every cluster of the pass, grouped by cluster; never modified
+     *                 afterwards
+     * @param start    the index of the first item of this cluster
+     * @param end      the index after the last item of this cluster
+     * @param hashCode the sum of the hash codes of the items of this cluster
+     */
+    SliceCluster(LatLng center, Object[] items, int start, int end, int hashCode) {
+        mCenter = center;
+        mItems = items;
+        mStart = start;
+        mEnd = end;
+        mHashCode = center.hashCode() + hashCode;
+    }
+
+    @Override
+    public LatLng getPosition() {
+        return mCenter;
+    }
+
+    /**
+     * @return a view of the items. Its {@code contains} takes linear time.
+     */
+    @Override
+    public Collection<T> getItems() {
+        return new AbstractCollection<T>() {
+            @Override
+            public Iterator<T> iterator() {
+                return new Iterator<T>() {
+                    private int mNext = mStart;
+
+                    @Override
+                    public boolean hasNext() {
+                        return mNext < mEnd;
+                    }
+
+                    @SuppressWarnings("unchecked")
+                    @Override
+                    public T next() {
+                        if (mNext >= mEnd) {
+                            throw new NoSuchElementException();
+                        }
+                        return (T) mItems[mNext++];
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return mEnd - mStart;
+            }
+        };
+    }
+
+    @Override
+    public int getSize() {
+        return mEnd - mStart;
+    }
+
+    @Override
+    public String toString() {
+        return "SliceCluster{" +
+                "mCenter=" + mCenter +
+                ", mItems.size=" + getSize() +
+                '}';
+    }
+
+    @Override
+    public int hashCode() {
+        return mHashCode;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof SliceCluster<?>)) {
+            return false;
+        }
+        SliceCluster<?> cluster = (SliceCluster<?>) other;
+        if (cluster.mHashCode != mHashCode || cluster.getSize() != getSize()
+                || !cluster.mCenter.equals(mCenter)) {
+            return false;
+        }
+        if (cluster.mItems == mItems && cluster.mStart == mStart) {
+            return true;
+        }
+        // Most likely equal, so only now are the items compared.
+        return new HashSet<>(getItems()).containsAll(cluster.getItems());
+    }
+}
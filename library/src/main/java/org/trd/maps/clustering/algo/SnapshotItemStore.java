@@ -0,0 +1,347 @@
+/*
+ * Copyright 2020 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.trd.maps.clustering.algo;
+
+import com.huawei.hms.maps.model.LatLng;
+
+import org.trd.maps.clustering.ClusterItem;
+import org.trd.maps.quadtree.PointQuadTree;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * The items of an algorithm that clusters snapshots of them, wrapped in the algorithm's own item
+ * type and indexed in a quad tree. Each wrapper has a dense id, so that a clustering pass can
+ * keep its state in arrays indexed by them; the ids of removed items are reused.
+ * <p/>
+ * All methods synchronize on the store, which callers can also lock to make several changes at
+ * once.
+ *
+ * @param <T> the type of the items
+ * @param <I> the type of the wrappers
+ */
+abstract class SnapshotItemStore<T extends ClusterItem, I extends PointQuadTree.Item> {
+    /**
+     * The number of wrappers in each chunk of the log.
+     */
+    private static final int CHUNK_SIZE = 1024;
+
+    /**
+     * The position in the log of the wrapper of each item.
+     */
+    private final Map<T, Integer> mPositions = new HashMap<>();
+    private final PointQuadTree<I> mQuadTree = new PointQuadTree<>(0, 1, 0, 1);
+
+    /**
+     * The wrappers in the order their items were added, in chunks of CHUNK_SIZE, with null where
+     * an item was removed, so that an updated item keeps its place. Snapshots share the chunks,
+     * copy on write like the quad tree: a chunk created before the last snapshot is copied before
+     * it is written to.
+     */
+    private Object[][] mChunks = new Object[4][];
+    private int[] mChunkGenerations = new int[4];
+    private int mChunkCount;
+    private int mGeneration;
+    private int mSlotCount;
+    private int mRemovedCount;
+
+    /**
+     * Shared by clustering passes until the items change; null when out of date.
+     */
+    private Snapshot<I> mSnapshot;
+
+    private int mIdCount;
+    private int[] mFreeIds = new int[16];
+    private int mFreeIdCount;
+
+    /**
+     * @return a wrapper of the item, at its current position
+     */
+    abstract I wrap(T item, int id);
+
+    abstract T itemOf(I wrapper);
+
+    abstract int idOf(I wrapper);
+
+    abstract LatLng positionOf(I wrapper);
+
+    synchronized boolean add(T item) {
+        if (mPositions.containsKey(item)) {
+            return false;
+        }
+        I wrapper = wrap(item, newId());
+        append(item, wrapper);
+        mQuadTree.add(wrapper);
+        mSnapshot = null;
+        return true;
+    }
+
+    synchronized boolean addAll(Collection<T> items) {
+        List<I> added = new ArrayList<>(items.size());
+        for (T item : items) {
+            if (!mPositions.containsKey(item)) {
+                I wrapper = wrap(item, newId());
+                append(item, wrapper);
+                added.add(wrapper);
+            }
+        }
+        if (added.isEmpty()) {
+            return false;
+        }
+        mQuadTree.addAll(added);
+        mSnapshot = null;
+        return true;
+    }
+
+    synchronized boolean remove(T item) {
+        Integer position = mPositions.remove(item);
+        if (position == null) {
+            return false;
+        }
+        // The stored wrapper is filed under the position the item had when it was stored
+        I stored = wrapperAt(position);
+        set(position, null);
+        mRemovedCount++;
+        mQuadTree.remove(stored);
+        releaseId(stored);
+        mSnapshot = null;
+        if (mRemovedCount > CHUNK_SIZE && mRemovedCount * 2 > mSlotCount) {
+            compact();
+        }
+        return true;
+    }
+
+    synchronized boolean removeAll(Collection<T> items) {
+        boolean result = false;
+        for (T item : items) {
+            result |= remove(item);
+        }
+        return result;
+    }
+
+    /**
+     * @return whether the item was stored
+     */
+    synchronized boolean update(T item) {
+        Integer position = mPositions.get(item);
+        if (position == null) {
+            return false;
+        }
+        I stored = wrapperAt(position);
+        if (itemOf(stored) == item && positionOf(stored).equals(item.getPosition())) {
+            // Nothing clustering depends on has changed.
+            return true;
+        }
+        I updated = wrap(item, idOf(stored));
+        // Keeps the item's place in the clustering order
+        set(position, updated);
+        mQuadTree.move(stored, updated);
+        mSnapshot = null;
+        return true;
+    }
+
+    synchronized void clear() {
+        mPositions.clear();
+        mQuadTree.clear();
+        // Snapshots keep the old chunks.
+        mChunks = new Object[4][];
+        mChunkGenerations = new int[4];
+        mChunkCount = 0;
+        mSlotCount = 0;
+        mRemovedCount = 0;
+        mIdCount = 0;
+        mFreeIdCount = 0;
+        mSnapshot = null;
+    }
+
+    /**
+     * @return the latest instance of each item, in the order they were added
+     */
+    synchronized Collection<T> getItems() {
+        Collection<T> items = new LinkedHashSet<>();
+        for (int i = 0; i < mSlotCount; i++) {
+            I wrapper = wrapperAt(i);
+            if (wrapper != null) {
+                items.add(itemOf(wrapper));
+            }
+        }
+        return items;
+    }
+
+    /**
+     * Takes an immutable copy of the items, or returns the last one if the items have not changed
+     * since. Taking it only copies the references to the chunks of the log, one per
+     * {@value #CHUNK_SIZE} items, so writers are hardly held up; the list of wrappers is gathered
+     * from the chunks when first used, outside the lock.
+     */
+    synchronized Snapshot<I> snapshot() {
+        if (mSnapshot == null) {
+            mSnapshot = new Snapshot<>(mQuadTree.snapshot(),
+                    new SnapshotList<I>(Arrays.copyOf(mChunks, mChunkCount), mSlotCount, mPositions.size()),
+                    mIdCount);
+            // Every chunk now belongs to an older generation than the store.
+            mGeneration++;
+        }
+        return mSnapshot;
+    }
+
+    @SuppressWarnings("unchecked")
+    private I wrapperAt(int position) {
+        return (I) mChunks[position / CHUNK_SIZE][position % CHUNK_SIZE];
+    }
+
+    private void set(int position, I wrapper) {
+        int chunk = position / CHUNK_SIZE;
+        if (mChunkGenerations[chunk] != mGeneration) {
+            // A snapshot may hold the chunk.
+            mChunks[chunk] = mChunks[chunk].clone();
+            mChunkGenerations[chunk] = mGeneration;
+        }
+        mChunks[chunk][position % CHUNK_SIZE] = wrapper;
+    }
+
+    private void append(T item, I wrapper) {
+        if (mSlotCount == mChunkCount * CHUNK_SIZE) {
+            if (mChunkCount == mChunks.length) {
+                mChunks = Arrays.copyOf(mChunks, mChunkCount * 2);
+                mChunkGenerations = Arrays.copyOf(mChunkGenerations, mChunkCount * 2);
+            }
+            mChunks[mChunkCount] = new Object[CHUNK_SIZE];
+            mChunkGenerations[mChunkCount] = mGeneration;
+            mChunkCount++;
+        }
+        mPositions.put(item, mSlotCount);
+        set(mSlotCount++, wrapper);
+    }
+
+    /**
+     * Drops the slots of removed items once they are the majority, so that the log stays
+     * proportional to the number of items. This copies every wrapper, which the removals that
+     * made it necessary pay for.
+     */
+    private void compact() {
+        Object[][] chunks = mChunks;
+        int slotCount = mSlotCount;
+        mChunks = new Object[4][];
+        mChunkGenerations = new int[4];
+        mChunkCount = 0;
+        mSlotCount = 0;
+        mRemovedCount = 0;
+        for (int i = 0; i < slotCount; i++) {
+            @SuppressWarnings("unchecked")
+            I wrapper = (I) chunks[i / CHUNK_SIZE][i % CHUNK_SIZE];
+            if (wrapper != null) {
+                append(itemOf(wrapper), wrapper);
+            }
+        }
+    }
+
+    private int newId() {
+        return mFreeIdCount > 0 ? mFreeIds[--mFreeIdCount] : mIdCount++;
+    }
+
+    /**
+     * Makes the id of a removed wrapper available again. Passes that are still clustering a
+     * snapshot holding it are unaffected, as a snapshot never holds two wrappers with the same id.
+     */
+    private void releaseId(I removed) {
+        if (mFreeIdCount == mFreeIds.length) {
+            mFreeIds = Arrays.copyOf(mFreeIds, mFreeIds.length * 2);
+        }
+        mFreeIds[mFreeIdCount++] = idOf(removed);
+    }
+
+    static final class Snapshot<I extends PointQuadTree.Item> {
+        final PointQuadTree<I> mQuadTree;
+
+        /**
+         * The wrappers, in the order their items were added.
+         */
+        final List<I> mItems;
+
+        /**
+         * An upper bound of the ids of the wrappers.
+         */
+        final int mIdCount;
+
+        private Snapshot(PointQuadTree<I> quadTree, List<I> items, int idCount) {
+            mQuadTree = quadTree;
+            mItems = items;
+            mIdCount = idCount;
+        }
+    }
+
+    /**
+     * The wrappers held by the chunks of a snapshot, gathered into an array on first access.
+     */
+    private static final class SnapshotList<I> extends AbstractList<I> implements RandomAccess {
+        private Object[][] mChunks;
+        private final int mSlotCount;
+        private final int mSize;
+        private volatile Object[] mItems;
+
+        private SnapshotList(Object[][] chunks, int slotCount, int size) {
+            mChunks = chunks;
+            mSlotCount = slotCount;
+            mSize = size;
+        }
+
+        @Override
+        public int size() {
+            return mSize;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public I get(int index) {
+            if (index < 0 || index >= mSize) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + mSize);
+            }
+            return (I) items()[index];
+        }
+
+        private Object[] items() {
+            Object[] items = mItems;
+            if (items == null) {
+                synchronized (this) {
+                    items = mItems;
+                    if (items == null) {
+                        items = new Object[mSize];
+                        int count = 0;
+                        for (int i = 0; i < mSlotCount; i++) {
+                            Object wrapper = mChunks[i / CHUNK_SIZE][i % CHUNK_SIZE];
+                            if (wrapper != null) {
+                                items[count++] = wrapper;
+                            }
+                        }
+                        mItems = items;
+                        mChunks = null;
+                    }
+                }
+            }
+            return items;
+        }
+    }
+}
@@ -0,0 +1,618 @@
+/*
+ * Copyright 2020 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.trd.maps.clustering.algo;
+
+import androidx.collection.LruCache;
+
+import com.huawei.hms.maps.model.CameraPosition;
+import com.huawei.hms.maps.model.LatLng;
+
+import org.trd.maps.clustering.Cluster;
+import org.trd.maps.clustering.ClusterItem;
+import org.trd.maps.geometry.Point;
+import org.trd.maps.projection.SphericalMercatorProjection;
+import org.trd.maps.quadtree.PointQuadTree;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A view based algorithm that clusters the map one tile at a time and caches the clusters of each
+ * tile, so that panning only clusters the tiles that come into view, and changing an item only
+ * clusters its tiles again.
+ * <p/>
+ * Tiles are those of the usual z/x/y scheme at the integer zoom level. The items of each tile are
+ * clustered as in {@link NonHierarchicalDistanceBasedAlgorithm}, in the order they were added.
+ * Clusters of neighbouring tiles are then merged: each cluster is merged into the largest cluster
+ * of a neighbouring tile within reach that is larger than it (or as large and seeded by an
+ * earlier item), unless that one is itself merged into another. The result for a tile only
+ * depends on the items of the tiles around it, never on which tiles are visible.
+ */
+public class TileBasedAlgorithm<T extends ClusterItem> extends AbstractAlgorithm<T>
+        implements ScreenBasedAlgorithm<T> {
+    private static final int DEFAULT_MAX_DISTANCE_AT_ZOOM = 100; // essentially 100 dp.
+
+    private static final int DEFAULT_CACHED_TILES = 512;
+
+    /**
+     * Tile coordinates must fit in 28 bits of a tile key.
+     */
+    private static final int MAX_TILE_ZOOM = 28;
+
+    /**
+     * How many tiles around the visible ones are clustered, so that the merging of clusters in
+     * visible tiles can be decided.
+     */
+    private static final int MARGIN_TILES = 2;
+
+    private static final SphericalMercatorProjection PROJECTION = new SphericalMercatorProjection(1);
+
+    private volatile int mMaxDistance = DEFAULT_MAX_DISTANCE_AT_ZOOM;
+
+    private int mViewWidth;
+    private int mViewHeight;
+
+    private volatile LatLng mMapCenter;
+
+    /**
+     * The items, keyed by themselves, in the order they were added. Any access should be
+     * synchronized on mTree.
+     */
+    private final Map<T, TileItem<T>> mItems = new LinkedHashMap<>();
+    private final PointQuadTree<TileItem<T>> mTree = new PointQuadTree<>(0, 1, 0, 1);
+    private long mNextSequence;
+
+    /**
+     * The clusters of each tile, keyed by tile key, before merging with neighbouring tiles.
+     */
+    private final LruCache<Long, List<TileCluster<T>>> mTiles;
+
+    /**
+     * The number of tiles being clustered, and the keys of tiles invalidated meanwhile, whose
+     * clusters must not be cached. Guarded by mTree.
+     */
+    private int mTilesInProgress;
+    private final Set<Long> mInvalidatedInProgress = new HashSet<>();
+
+    /**
+     * @param screenWidth  map width in dp
+     * @param screenHeight map height in dp
+     */
+    public TileBasedAlgorithm(int screenWidth, int screenHeight) {
+        this(screenWidth, screenHeight, DEFAULT_CACHED_TILES);
+    }
+
+    /**
+     * @param screenWidth  map width in dp
+     * @param screenHeight map height in dp
+     * @param cachedTiles  the number of tiles whose clusters are kept
+     */
+    public TileBasedAlgorithm(int screenWidth, int screenHeight, int cachedTiles) {
+        mViewWidth = screenWidth;
+        mViewHeight = screenHeight;
+        mTiles = new LruCache<>(cachedTiles);
+    }
+
+    @Override
+    public boolean addItem(T item) {
+        synchronized (mTree) {
+            return add(item);
+        }
+    }
+
+    @Override
+    public boolean addItems(Collection<T> items) {
+        boolean result = false;
+        synchronized (mTree) {
+            for (T item : items) {
+                result |= add(item);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void clearItems() {
+        synchronized (mTree) {
+            mItems.clear();
+            mTree.clear();
+            invalidateAll();
+        }
+    }
+
+    @Override
+    public boolean removeItem(T item) {
+        synchronized (mTree) {
+            return remove(item);
+        }
+    }
+
+    @Override
+    public boolean removeItems(Collection<T> items) {
+        boolean result = false;
+        synchronized (mTree) {
+            for (T item : items) {
+                result |= remove(item);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public boolean updateItem(T item) {
+        synchronized (mTree) {
+            TileItem<T> stored = mItems.get(item);
+            if (stored == null) {
+                // Don't add items that were never added (to help prevent accidental duplicates on map)
+                return false;
+            }
+            if (stored.mItem == item && stored.mPosition.equals(item.getPosition())) {
+                // Nothing the algorithm depends on has changed.
+                return true;
+            }
+            // Keeps the item's place in the clustering order
+            TileItem<T> updated = new TileItem<>(item, stored.mSequence);
+            mItems.put(item, updated);
+            mTree.move(stored, updated);
+            invalidateTiles(stored.mPoint);
+            invalidateTiles(updated.mPoint);
+        }
+        return true;
+    }
+
+    /**
+     * Must be called while holding the lock on mTree.
+     */
+    private boolean add(T item) {
+        if (mItems.containsKey(item)) {
+            return false;
+        }
+        TileItem<T> added = new TileItem<>(item, mNextSequence++);
+        mItems.put(item, added);
+        mTree.add(added);
+        invalidateTiles(added.mPoint);
+        return true;
+    }
+
+    /**
+     * Must be called while holding the lock on mTree.
+     */
+    private boolean remove(T item) {
+        TileItem<T> stored = mItems.remove(item);
+        if (stored == null) {
+            return false;
+        }
+        mTree.remove(stored);
+        invalidateTiles(stored.mPoint);
+        return true;
+    }
+
+    /**
+     * Drops the cached clusters of the tiles holding the given point at every zoom level. Must
+     * be called while holding the lock on mTree.
+     */
+    private void invalidateTiles(Point point) {
+        for (int zoom = 0; zoom <= MAX_TILE_ZOOM; zoom++) {
+            int tiles = 1 << zoom;
+            long key = tileKey(zoom, tileOf(point.x, tiles), tileOf(point.y, tiles));
+            mTiles.remove(key);
+            if (mTilesInProgress > 0) {
+                mInvalidatedInProgress.add(key);
+            }
+        }
+    }
+
+    /**
+     * Must be called while holding the lock on mTree.
+     */
+    private void invalidateAll() {
+        mTiles.evictAll();
+        if (mTilesInProgress > 0) {
+            // Nothing being clustered can be cached.
+            mInvalidatedInProgress.add(null);
+        }
+    }
+
+    /**
+     * Applies a batch of changes under a single lock, so that no clustering pass sees only some
+     * of them.
+     */
+    @Override
+    public boolean applyBatch(ItemBatch<T> batch) {
+        synchronized (mTree) {
+            return super.applyBatch(batch);
+        }
+    }
+
+    @Override
+    public Set<? extends Cluster<T>> getClusters(float zoom) {
+        LatLng center = mMapCenter;
+        if (center == null) {
+            return Collections.emptySet();
+        }
+        int tileZoom = Math.max(0, Math.min(MAX_TILE_ZOOM, (int) zoom));
+        int tiles = 1 << tileZoom;
+        double halfSpan = mMaxDistance / Math.pow(2, tileZoom) / 256 / 2;
+
+        // The visible tiles, with x unwrapped so that it increases across the antimeridian
+        Point p = PROJECTION.toPoint(center);
+        double halfWidth = mViewWidth / Math.pow(2, zoom) / 256 / 2;
+        double halfHeight = mViewHeight / Math.pow(2, zoom) / 256 / 2;
+        int minX = (int) Math.floor((p.x - halfWidth) * tiles);
+        int maxX = (int) Math.floor((p.x + halfWidth) * tiles);
+        if (maxX - minX + 1 >= tiles) {
+            minX = 0;
+            maxX = tiles - 1;
+        }
+        int minY = Math.max(0, (int) Math.floor((p.y - halfHeight) * tiles));
+        int maxY = Math.min(tiles - 1, (int) Math.floor((p.y + halfHeight) * tiles));
+
+        Map<Long, List<TileCluster<T>>> loaded = new HashMap<>();
+        for (int x = minX - MARGIN_TILES; x <= maxX + MARGIN_TILES; x++) {
+            for (int y = Math.max(0, minY - MARGIN_TILES); y <= Math.min(tiles - 1, maxY + MARGIN_TILES); y++) {
+                int tileX = wrap(x, tiles);
+                long key = tileKey(tileZoom, tileX, y);
+                if (!loaded.containsKey(key)) {
+                    loaded.put(key, getTile(tileZoom, tileX, y, halfSpan));
+                }
+            }
+        }
+
+        Merger merger = new Merger(loaded, tileZoom, halfSpan);
+        Set<Cluster<T>> results = new HashSet<>();
+        Set<Long> visited = new HashSet<>();
+        for (int x = minX; x <= maxX; x++) {
+            for (int y = minY; y <= maxY; y++) {
+                long key = tileKey(tileZoom, wrap(x, tiles), y);
+                if (!visited.add(key)) {
+                    continue;
+                }
+                for (TileCluster<T> cluster : loaded.get(key)) {
+                    Cluster<T> merged = merger.merged(cluster);
+                    if (merged != null) {
+                        results.add(merged);
+                    }
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * @return the clusters of a tile, from the cache or clustered now.
+     */
+    private List<TileCluster<T>> getTile(int zoom, int tileX, int tileY, double halfSpan) {
+        long key = tileKey(zoom, tileX, tileY);
+        List<TileCluster<T>> clusters = mTiles.get(key);
+        if (clusters != null) {
+            return clusters;
+        }
+
+        int tiles = 1 << zoom;
+        List<TileItem<T>> items = new ArrayList<>();
+        synchronized (mTree) {
+            mTilesInProgress++;
+            mTree.search((double) tileX / tiles, (double) (tileX + 1) / tiles,
+                    (double) tileY / tiles, (double) (tileY + 1) / tiles, items);
+        }
+        try {
+            clusters = clusterTile(items, tiles, tileX, tileY, halfSpan);
+        } finally {
+            synchronized (mTree) {
+                // Only cached if no item of the tile changed meanwhile.
+                if (!mInvalidatedInProgress.contains(key) && !mInvalidatedInProgress.contains(null)) {
+                    mTiles.put(key, clusters);
+                }
+                if (--mTilesInProgress == 0) {
+                    mInvalidatedInProgress.clear();
+                }
+            }
+        }
+        return clusters;
+    }
+
+    /**
+     * Clusters the items of one tile, as {@link NonHierarchicalDistanceBasedAlgorithm} does.
+     *
+     * @param items the items found in the tile's bounds, which includes its edges
+     */
+    private List<TileCluster<T>> clusterTile(List<TileItem<T>> items, int tiles, int tileX, int tileY,
+                                             double halfSpan) {
+        List<TileItem<T>> inTile = new ArrayList<>(items.size());
+        for (TileItem<T> item : items) {
+            if (tileOf(item.mPoint.x, tiles) == tileX && tileOf(item.mPoint.y, tiles) == tileY) {
+                inTile.add(item);
+            }
+        }
+        Collections.sort(inTile, new Comparator<TileItem<T>>() {
+            @Override
+            public int compare(TileItem<T> a, TileItem<T> b) {
+                return a.mSequence < b.mSequence ? -1 : (a.mSequence == b.mSequence ? 0 : 1);
+            }
+        });
+
+        PointQuadTree<TileItem<T>> tree = new PointQuadTree<>((double) tileX / tiles, (double) (tileX + 1) / tiles,
+                (double) tileY / tiles, (double) (tileY + 1) / tiles);
+        tree.addAll(inTile);
+        List<TileCluster<T>> clusters = new ArrayList<>();
+        Map<TileItem<T>, Double> distanceToCluster = new IdentityHashMap<>();
+        Map<TileItem<T>, TileCluster<T>> itemToCluster = new IdentityHashMap<>();
+        List<TileItem<T>> clusterItems = new ArrayList<>();
+        for (TileItem<T> candidate : inTile) {
+            if (distanceToCluster.containsKey(candidate)) {
+                // Candidate is already part of another cluster.
+                continue;
+            }
+            Point p = candidate.mPoint;
+            clusterItems.clear();
+            tree.search(p.x - halfSpan, p.x + halfSpan, p.y - halfSpan, p.y + halfSpan, clusterItems);
+            TileCluster<T> cluster = new TileCluster<>(candidate, tileX, tileY);
+            clusters.add(cluster);
+            for (TileItem<T> clusterItem : clusterItems) {
+                Double existingDistance = distanceToCluster.get(clusterItem);
+                double distance = distanceSquared(clusterItem.mPoint, p);
+                if (existingDistance != null) {
+                    if (existingDistance < distance) {
+                        continue;
+                    }
+                    // Move item to the closer cluster.
+                    itemToCluster.get(clusterItem).mCluster.remove(clusterItem.mItem);
+                }
+                distanceToCluster.put(clusterItem, distance);
+                itemToCluster.put(clusterItem, cluster);
+                cluster.mCluster.add(clusterItem.mItem);
+            }
+        }
+        return clusters;
+    }
+
+    /**
+     * Merges clusters of neighbouring tiles, as described in the class documentation.
+     */
+    private class Merger {
+        private final Map<Long, List<TileCluster<T>>> mLoaded;
+        private final int mZoom;
+        private final double mHalfSpan;
+
+        /**
+         * The cluster each cluster would be merged into, or a cluster mapped to itself if it
+         * would not be.
+         */
+        private final Map<TileCluster<T>, TileCluster<T>> mTargets = new IdentityHashMap<>();
+
+        private Merger(Map<Long, List<TileCluster<T>>> loaded, int zoom, double halfSpan) {
+            mLoaded = loaded;
+            mZoom = zoom;
+            mHalfSpan = halfSpan;
+        }
+
+        /**
+         * @return the cluster to show for the given one once merged with its neighbours, or null
+         * if it is merged into another cluster.
+         */
+        private Cluster<T> merged(TileCluster<T> cluster) {
+            if (isMergedAway(cluster)) {
+                return null;
+            }
+            List<TileCluster<T>> absorbed = new ArrayList<>();
+            if (target(cluster) == cluster) {
+                for (TileCluster<T> neighbor : neighbors(cluster)) {
+                    if (target(neighbor) == cluster) {
+                        absorbed.add(neighbor);
+                    }
+                }
+            }
+            if (absorbed.isEmpty()) {
+                return cluster.mCluster;
+            }
+            StaticCluster<T> merged = new StaticCluster<>(cluster.mCluster.getPosition());
+            for (T item : cluster.mCluster.getItems()) {
+                merged.add(item);
+            }
+            for (TileCluster<T> neighbor : absorbed) {
+                for (T item : neighbor.mCluster.getItems()) {
+                    merged.add(item);
+                }
+            }
+            return merged;
+        }
+
+        private boolean isMergedAway(TileCluster<T> cluster) {
+            TileCluster<T> target = target(cluster);
+            return target != cluster && target(target) == target;
+        }
+
+        /**
+         * @return the largest neighbouring cluster within reach that is larger than the given
+         * one, or the given cluster if there is none.
+         */
+        private TileCluster<T> target(TileCluster<T> cluster) {
+            TileCluster<T> target = mTargets.get(cluster);
+            if (target == null) {
+                target = cluster;
+                for (TileCluster<T> neighbor : neighbors(cluster)) {
+                    if (neighbor.isLargerThan(target)) {
+                        target = neighbor;
+                    }
+                }
+                mTargets.put(cluster, target);
+            }
+            return target;
+        }
+
+        /**
+         * @return the clusters of the surrounding tiles within reach of the given cluster.
+         */
+        private List<TileCluster<T>> neighbors(TileCluster<T> cluster) {
+            List<TileCluster<T>> neighbors = new ArrayList<>();
+            int tiles = 1 << mZoom;
+            Set<Long> seen = new HashSet<>();
+            for (int dx = -1; dx <= 1; dx++) {
+                for (int dy = -1; dy <= 1; dy++) {
+                    int y = cluster.mTileY + dy;
+                    if ((dx == 0 && dy == 0) || y < 0 || y >= tiles) {
+                        continue;
+                    }
+                    long key = tileKey(mZoom, wrap(cluster.mTileX + dx, tiles), y);
+                    List<TileCluster<T>> tile = mLoaded.get(key);
+                    if (tile == null || key == tileKey(mZoom, cluster.mTileX, cluster.mTileY) || !seen.add(key)) {
+                        continue;
+                    }
+                    for (TileCluster<T> other : tile) {
+                        if (reaches(cluster.mPoint, other.mPoint)) {
+                            neighbors.add(other);
+                        }
+                    }
+                }
+            }
+            return neighbors;
+        }
+
+        private boolean reaches(Point a, Point b) {
+            double dx = Math.abs(a.x - b.x);
+            // Across the antimeridian
+            dx = Math.min(dx, 1 - dx);
+            return dx <= mHalfSpan && Math.abs(a.y - b.y) <= mHalfSpan;
+        }
+    }
+
+    @Override
+    public Collection<T> getItems() {
+        synchronized (mTree) {
+            return new LinkedHashSet<>(mItems.keySet());
+        }
+    }
+
+    @Override
+    public void setMaxDistanceBetweenClusteredItems(int maxDistance) {
+        synchronized (mTree) {
+            mMaxDistance = maxDistance;
+            invalidateAll();
+        }
+    }
+
+    @Override
+    public int getMaxDistanceBetweenClusteredItems() {
+        return mMaxDistance;
+    }
+
+    @Override
+    public boolean shouldReclusterOnMapMovement() {
+        return true;
+    }
+
+    @Override
+    public void onCameraChange(CameraPosition cameraPosition) {
+        mMapCenter = cameraPosition.target;
+    }
+
+    /**
+     * Update view width and height in case map size was changed.
+     *
+     * @param width  map width in dp
+     * @param height map height in dp
+     */
+    public void updateViewSize(int width, int height) {
+        mViewWidth = width;
+        mViewHeight = height;
+    }
+
+    private static long tileKey(int zoom, int x, int y) {
+        return ((long) zoom << 56) | ((long) x << 28) | y;
+    }
+
+    /**
+     * @return the tile holding the given coordinate, keeping the far edge of the world in the
+     * last tile.
+     */
+    private static int tileOf(double coordinate, int tiles) {
+        return Math.max(0, Math.min(tiles - 1, (int) Math.floor(coordinate * tiles)));
+    }
+
+    private static int wrap(int tile, int tiles) {
+        return ((tile % tiles) + tiles) % tiles;
+    }
+
+    private static double distanceSquared(Point a, Point b) {
+        return (a.x - b.x) * (a.x - b.x) + (a.y - b.y) * (a.y - b.y);
+    }
+
+    private static class TileItem<T extends ClusterItem> implements PointQuadTree.Item {
+        private final T mItem;
+        private final LatLng mPosition;
+        private final Point mPoint;
+
+        /**
+         * When the item was first added, which orders the candidates of each tile.
+         */
+        private final long mSequence;
+
+        private TileItem(T item, long sequence) {
+            mItem = item;
+            mPosition = item.getPosition();
+            mSequence = sequence;
+            Point point = PROJECTION.toPoint(mPosition);
+            // Items beyond the mercator limits are kept at the top or bottom edge of the world.
+            mPoint = point.y >= 0 && point.y <= 1 ? point : new Point(point.x, point.y > 0 ? 1 : 0);
+        }
+
+        @Override
+        public Point getPoint() {
+            return mPoint;
+        }
+    }
+
+    /**
+     * A cluster of one tile, centered on its first item. Never modified once the tile is
+     * clustered.
+     */
+    private static class TileCluster<T extends ClusterItem> {
+        private final Point mPoint;
+        private final long mSequence;
+        private final int mTileX;
+        private final int mTileY;
+        private final StaticCluster<T> mCluster;
+
+        private TileCluster(TileItem<T> seed, int tileX, int tileY) {
+            mPoint = seed.mPoint;
+            mSequence = seed.mSequence;
+            mTileX = tileX;
+            mTileY = tileY;
+            mCluster = new StaticCluster<>(seed.mPosition);
+        }
+
+        /**
+         * @return whether this cluster would absorb the other: if it is larger, or as large and
+         * seeded by an earlier item.
+         */
+        private boolean isLargerThan(TileCluster<T> other) {
+            int size = mCluster.getSize();
+            int otherSize = other.mCluster.getSize();
+            return size > otherSize || (size == otherSize && mSequence < other.mSequence);
+        }
+    }
+}
@@ -55,6 +55,7 @@ import org.trd.maps.clustering.ClusterManager;
 import org.trd.maps.collections.MarkerManager;
 import org.trd.maps.geometry.Point;
 import org.trd.maps.projection.SphericalMercatorProjection;
+import org.trd.maps.quadtree.PointQuadTree;
 import org.trd.maps.ui.IconGenerator;
 import org.trd.maps.ui.SquareTextView;
 
@@ -459,15 +460,16 @@ public class DefaultClusterRenderer<T extends ClusterItem> implements ClusterRen
 
             // Find all of the existing clusters that are on-screen. These are candidates for
             // markers to animate from.
-            List<Point> existingClustersOnScreen = null;
+            PointQuadTree<ClusterPoint> existingClustersOnScreen = null;
             if (DefaultClusterRenderer.this.mClusters != null && mAnimate) {
-                existingClustersOnScreen = new ArrayList<>();
+                List<ClusterPoint> points = new ArrayList<>();
                 for (Cluster<T> c : DefaultClusterRenderer.this.mClusters) {
                     if (shouldRenderAsCluster(c) && visibleBounds.contains(c.getPosition())) {
                         Point point = mSphericalMercatorProjection.toPoint(c.getPosition());
-                        existingClustersOnScreen.add(point);
+                        points.add(new ClusterPoint(point));
                     }
                 }
+                existingClustersOnScreen = buildClusterIndex(points);
             }
 
             // Create the new markers and animate them to their new positions.
@@ -498,15 +500,16 @@ public class DefaultClusterRenderer<T extends ClusterItem> implements ClusterRen
 
             // Find all of the new clusters that were added on-screen. These are candidates for
             // markers to animate from.
-            List<Point> newClustersOnScreen = null;
+            PointQuadTree<ClusterPoint> newClustersOnScreen = null;
             if (mAnimate) {
-                newClustersOnScreen = new ArrayList<>();
+                List<ClusterPoint> points = new ArrayList<>();
                 for (Cluster<T> c : clusters) {
                     if (shouldRenderAsCluster(c) && visibleBounds.contains(c.getPosition())) {
                         Point p = mSphericalMercatorProjection.toPoint(c.getPosition());
-                        newClustersOnScreen.add(p);
+                        points.add(new ClusterPoint(p));
                     }
                 }
+                newClustersOnScreen = buildClusterIndex(points);
             }
 
             // Remove the old markers, animating them into clusters if zooming out.
@@ -591,24 +594,53 @@ public class DefaultClusterRenderer<T extends ClusterItem> implements ClusterRen
         return clusters != null ? Collections.unmodifiableSet(clusters) : Collections.emptySet();
     }
 
-    private static double distanceSquared(Point a, Point b) {
-        return (a.x - b.x) * (a.x - b.x) + (a.y - b.y) * (a.y - b.y);
+    private Point findClosestCluster(PointQuadTree<ClusterPoint> markers, Point point) {
+        if (markers == null) return null;
+
+        int maxDistance = mClusterManager.getAlgorithm().getMaxDistanceBetweenClusteredItems();
+        ClusterPoint closest = markers.nearest(point.x, point.y, maxDistance);
+        return closest != null ? closest.getPoint() : null;
+    }
+
+    /**
+     * Indexes on-screen cluster positions so each marker can find its closest cluster without
+     * scanning all of them.
+     *
+     * @return the index, or null if there are no points
+     */
+    private static PointQuadTree<ClusterPoint> buildClusterIndex(List<ClusterPoint> points) {
+        if (points.isEmpty()) return null;
+
+        Point first = points.get(0).getPoint();
+        double minX = first.x, maxX = first.x, minY = first.y, maxY = first.y;
+        for (ClusterPoint clusterPoint : points) {
+            Point p = clusterPoint.getPoint();
+            minX = Math.min(minX, p.x);
+            maxX = Math.max(maxX, p.x);
+            minY = Math.min(minY, p.y);
+            maxY = Math.max(maxY, p.y);
+        }
+        PointQuadTree<ClusterPoint> index = new PointQuadTree<>(minX, maxX, minY, maxY);
+        for (ClusterPoint clusterPoint : points) {
+            index.add(clusterPoint);
+        }
+        return index;
     }
 
-    private Point findClosestCluster(List<Point> markers, Point point) {
-        if (markers == null || markers.isEmpty()) return null;
+    /**
+     * Projected position of a rendered cluster, as stored in the closest-cluster index.
+     */
+    private static class ClusterPoint implements PointQuadTree.Item {
+        private final Point mPoint;
 
-        int maxDistance = mClusterManager.getAlgorithm().getMaxDistanceBetweenClusteredItems();
-        double minDistSquared = maxDistance * maxDistance;
-        Point closest = null;
-        for (Point candidate : markers) {
-            double dist = distanceSquared(candidate, point);
-            if (dist < minDistSquared) {
-                closest = candidate;
-                minDistSquared = dist;
-            }
+        private ClusterPoint(Point point) {
+            mPoint = point;
+        }
+
+        @Override
+        public Point getPoint() {
+            return mPoint;
         }
-        return closest;
     }
 
     /**
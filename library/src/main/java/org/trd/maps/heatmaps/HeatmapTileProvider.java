@@ -27,6 +27,7 @@ import com.huawei.hms.maps.model.TileProvider;
 
 import org.trd.maps.geometry.Bounds;
 import org.trd.maps.geometry.Point;
+import org.trd.maps.quadtree.PackedPointQuadTree;
 import org.trd.maps.quadtree.PointQuadTree;
 
 import java.io.ByteArrayOutputStream;
@@ -115,9 +116,11 @@ public class HeatmapTileProvider implements TileProvider {
     private static final int MAX_RADIUS = 50;
 
     /**
-     * Quad tree of all the points to display in the heatmap
+     * Quad tree of all the points to display in the heatmap.
+     * The data set never changes once the tree is built, so the packed tree is used to keep
+     * large data sets off the object heap.
      */
-    private PointQuadTree<WeightedLatLng> mTree;
+    private PackedPointQuadTree<WeightedLatLng> mTree;
 
     /**
      * Collection of all the data.
@@ -307,8 +310,7 @@ public class HeatmapTileProvider implements TileProvider {
      *
      * @param data Data set of points to use in the heatmap, as LatLngs.
      *             Note: Editing data without calling setWeightedData again will not update the data
-     *             displayed on the map, but will impact calculation of max intensity values,
-     *             as the collection you pass in is stored.
+     *             displayed on the map, nor the calculated max intensity values.
      *             Outside of changing the data, max intensity values are calculated only upon
      *             changing the radius.
      */
@@ -329,12 +331,10 @@ public class HeatmapTileProvider implements TileProvider {
         // Make the quad tree
         mBounds = getBounds(mData);
 
-        mTree = new PointQuadTree<WeightedLatLng>(mBounds);
+        mTree = new PackedPointQuadTree<WeightedLatLng>(mBounds);
 
-        // Add points to quad tree
-        for (WeightedLatLng l : mData) {
-            mTree.add(l);
-        }
+        // Add points to quad tree in one pass
+        mTree.addAll(mData);
 
         // Calculate reasonable maximum intensity for color scale (user can also specify)
         // Get max intensities
@@ -407,65 +407,25 @@ public class HeatmapTileProvider implements TileProvider {
         double minY = y * tileWidth - padding;
         double maxY = (y + 1) * tileWidth + padding;
 
-        // Deal with overlap across lat = 180
-        // Need to make it wrap around both ways
-        // However, maximum tile size is such that you wont ever have to deal with both, so
-        // hence, the else
-        // Note: Tile must remain square, so cant optimise by editing bounds
-        double xOffset = 0;
-        Collection<WeightedLatLng> wrappedPoints = new ArrayList<WeightedLatLng>();
-        if (minX < 0) {
-            // Need to consider "negative" points
-            // (minX to 0) ->  (512+minX to 512) ie +512
-            // add 512 to search bounds and subtract 512 from actual points
-            Bounds overlapBounds = new Bounds(minX + WORLD_WIDTH, WORLD_WIDTH, minY, maxY);
-            xOffset = -WORLD_WIDTH;
-            wrappedPoints = mTree.search(overlapBounds);
-        } else if (maxX > WORLD_WIDTH) {
-            // Cant both be true as then tile covers whole world
-            // Need to consider "overflow" points
-            // (512 to maxX) -> (0 to maxX-512) ie -512
-            // subtract 512 from search bounds and add 512 to actual points
-            Bounds overlapBounds = new Bounds(0, maxX - WORLD_WIDTH, minY, maxY);
-            xOffset = WORLD_WIDTH;
-            wrappedPoints = mTree.search(overlapBounds);
-        }
-
-        // Main tile bounds to search
-        Bounds tileBounds = new Bounds(minX, maxX, minY, maxY);
-
         // If outside of *padded* quadtree bounds, return blank tile
         // This is comparing our bounds to the padded bounds of all points in the quadtree
         // ie tiles that don't touch the heatmap at all
-        Bounds paddedBounds = new Bounds(mBounds.minX - padding, mBounds.maxX + padding,
-                mBounds.minY - padding, mBounds.maxY + padding);
-        if (!tileBounds.intersects(paddedBounds)) {
+        // Only y is compared, as the tile may reach points in x across lat = 180
+        if (!(minY < mBounds.maxY + padding && mBounds.minY - padding < maxY)) {
             return TileProvider.NO_TILE;
         }
 
-        // Search for all points within tile bounds
-        Collection<WeightedLatLng> points = mTree.search(tileBounds);
-
-        // If no points, return blank tile
-        if (points.isEmpty()) {
+        // If no points within tile bounds, return blank tile
+        // Points across lat = 180 count too, as the padded tile may overlap it on either side
+        if (mTree.countWrapped(minX, maxX, minY, maxY, WORLD_WIDTH) == 0) {
             return TileProvider.NO_TILE;
         }
 
-        // Quantize points
+        // Quantize points, wrapping them around lat = 180 where the tile overlaps it
+        // Note: Tile must remain square, so cant optimise by editing bounds
         double[][] intensity = new double[TILE_DIM + mRadius * 2][TILE_DIM + mRadius * 2];
-        for (WeightedLatLng w : points) {
-            Point p = w.getPoint();
-            int bucketX = (int) ((p.x - minX) / bucketWidth);
-            int bucketY = (int) ((p.y - minY) / bucketWidth);
-            intensity[bucketX][bucketY] += w.getIntensity();
-        }
-        // Quantize wraparound points (taking xOffset into account)
-        for (WeightedLatLng w : wrappedPoints) {
-            Point p = w.getPoint();
-            int bucketX = (int) ((p.x + xOffset - minX) / bucketWidth);
-            int bucketY = (int) ((p.y - minY) / bucketWidth);
-            intensity[bucketX][bucketY] += w.getIntensity();
-        }
+        IntensityAccumulator accumulator = new IntensityAccumulator(intensity, minX, maxX, minY, bucketWidth);
+        mTree.searchWrapped(minX, maxX, minY, maxY, WORLD_WIDTH, accumulator);
 
         // Convolve it ("smoothen" it out)
         double[][] convolved = convolve(intensity, mKernel);
@@ -526,6 +486,41 @@ public class HeatmapTileProvider implements TileProvider {
         setWeightedData(mData);
     }
 
+    /**
+     * Adds the intensity of each visited point to its bucket in the tile's intensity grid.
+     */
+    private static class IntensityAccumulator implements PointQuadTree.Visitor<WeightedLatLng> {
+        private final double[][] mIntensity;
+        private final double mMinX;
+        private final double mMaxX;
+        private final double mMinY;
+        private final double mBucketWidth;
+
+        private IntensityAccumulator(double[][] intensity, double minX, double maxX, double minY, double bucketWidth) {
+            mIntensity = intensity;
+            mMinX = minX;
+            mMaxX = maxX;
+            mMinY = minY;
+            mBucketWidth = bucketWidth;
+        }
+
+        @Override
+        public void visit(WeightedLatLng w) {
+            Point p = w.getPoint();
+            int bucketY = (int) ((p.y - mMinY) / mBucketWidth);
+            // Points may be found across lat = 180 from the tile: (1+minX to 1) -> (minX to 0) and
+            // (0 to maxX-1) -> (1 to maxX). At zoom 0 the padded tile is wider than the world, so
+            // a point can land in the tile more than once.
+            for (int wrap = -1; wrap <= 1; wrap++) {
+                double x = p.x + wrap * WORLD_WIDTH;
+                if (mMinX <= x && x <= mMaxX) {
+                    int bucketX = (int) ((x - mMinX) / mBucketWidth);
+                    mIntensity[bucketX][bucketY] += w.getIntensity();
+                }
+            }
+        }
+    }
+
     /**
      * Gets array of maximum intensity values to use with the heatmap for each zoom level
      * This is the value that the highest color on the color map corresponds to
@@ -550,7 +545,7 @@ public class HeatmapTileProvider implements TileProvider {
         // Calculate max intensity for each zoom level
         for (int i = DEFAULT_MIN_ZOOM; i < DEFAULT_MAX_ZOOM; i++) {
             // Each zoom level multiplies viewable size by 2
-            maxIntensityArray[i] = getMaxValue(mData, mBounds, radius,
+            maxIntensityArray[i] = getMaxValue(mTree, mBounds, radius,
                     (int) (SCREEN_SIZE * Math.pow(2, i - 3)));
             if (i == DEFAULT_MIN_ZOOM) {
                 for (int j = 0; j < i; j++) maxIntensityArray[j] = maxIntensityArray[i];
@@ -756,60 +751,73 @@ public class HeatmapTileProvider implements TileProvider {
     /**
      * Calculate a reasonable maximum intensity value to map to maximum color intensity
      *
-     * @param points    Collection of LatLngs to put into buckets
+     * @param tree      Quad tree of the points to put into buckets
      * @param bounds    Bucket boundaries
      * @param radius    radius of convolution
      * @param screenDim larger dimension of screen in pixels (for scale)
      * @return Approximate max value
      */
-    static double getMaxValue(Collection<WeightedLatLng> points, Bounds bounds, int radius,
+    static double getMaxValue(PackedPointQuadTree<WeightedLatLng> tree, Bounds bounds, int radius,
                               int screenDim) {
         // Approximate scale as if entire heatmap is on the screen
         // ie scale dimensions to larger of width or height (screenDim)
-        double minX = bounds.minX;
+        final double minX = bounds.minX;
         double maxX = bounds.maxX;
-        double minY = bounds.minY;
+        final double minY = bounds.minY;
         double maxY = bounds.maxY;
         double boundsDim = (maxX - minX > maxY - minY) ? maxX - minX : maxY - minY;
 
         // Number of buckets: have diameter sized buckets
         int nBuckets = (int) (screenDim / (2 * radius) + 0.5);
         // Scaling factor to convert width in terms of point distance, to which bucket
-        double scale = nBuckets / boundsDim;
+        final double scale = nBuckets / boundsDim;
 
         // Make buckets
         // Use a sparse array - use LongSparseArray just in case
-        LongSparseArray<LongSparseArray<Double>> buckets = new LongSparseArray<LongSparseArray<Double>>();
-        //double[][] buckets = new double[nBuckets][nBuckets];
-
-        // Assign into buckets + find max value as we go along
-        double x, y;
-        double max = 0;
-        for (WeightedLatLng l : points) {
-            x = l.getPoint().x;
-            y = l.getPoint().y;
-
-            int xBucket = (int) ((x - minX) * scale);
-            int yBucket = (int) ((y - minY) * scale);
-
-            // Check if x bucket exists, if not make it
-            LongSparseArray<Double> column = buckets.get(xBucket);
-            if (column == null) {
-                column = new LongSparseArray<Double>();
-                buckets.put(xBucket, column);
+        final LongSparseArray<LongSparseArray<double[]>> buckets = new LongSparseArray<LongSparseArray<double[]>>();
+        final double[] max = {0};
+
+        // Assign into buckets + find max value as we go along.
+        // A quad that falls entirely within one bucket is added using its total weight, without
+        // visiting its points.
+        tree.visitAggregates(new PackedPointQuadTree.AggregateVisitor() {
+            @Override
+            public boolean visitQuad(double quadMinX, double quadMaxX, double quadMinY, double quadMaxY,
+                                     int count, double weight) {
+                int xBucket = (int) ((quadMinX - minX) * scale);
+                int yBucket = (int) ((quadMinY - minY) * scale);
+                if (xBucket != (int) ((quadMaxX - minX) * scale)
+                        || yBucket != (int) ((quadMaxY - minY) * scale)) {
+                    return false;
+                }
+                add(xBucket, yBucket, weight);
+                return true;
             }
-            // Check if there is already a y value there
-            Double value = column.get(yBucket);
-            if (value == null) {
-                value = 0.0;
+
+            @Override
+            public void visitPoint(double x, double y, double weight) {
+                add((int) ((x - minX) * scale), (int) ((y - minY) * scale), weight);
             }
-            value += l.getIntensity();
-            // Yes, do need to update it, despite it being a Double.
-            column.put(yBucket, value);
 
-            if (value > max) max = value;
-        }
+            private void add(int xBucket, int yBucket, double weight) {
+                // Check if x bucket exists, if not make it
+                LongSparseArray<double[]> column = buckets.get(xBucket);
+                if (column == null) {
+                    column = new LongSparseArray<double[]>();
+                    buckets.put(xBucket, column);
+                }
+                // Check if there is already a y value there
+                double[] value = column.get(yBucket);
+                if (value == null) {
+                    value = new double[1];
+                    column.put(yBucket, value);
+                }
+                value[0] += weight;
+
+                if (value[0] > max[0]) max[0] = value[0];
+            }
+        });
 
-        return max;
+        return max[0];
     }
 }
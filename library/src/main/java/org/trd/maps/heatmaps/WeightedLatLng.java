@@ -27,7 +27,7 @@ import org.trd.maps.quadtree.PointQuadTree;
  * Created from a LatLng and optional intensity: point coordinates of the LatLng and the intensity
  * value can be accessed from it later.
  */
-public class WeightedLatLng implements PointQuadTree.Item {
+public class WeightedLatLng implements PointQuadTree.WeightedItem {
 
     /**
      * Default intensity to use when intensity not specified
@@ -79,4 +79,12 @@ public class WeightedLatLng implements PointQuadTree.Item {
         return mIntensity;
     }
 
+    /**
+     * @return the intensity, so quad trees can aggregate it.
+     */
+    @Override
+    public double getWeight() {
+        return mIntensity;
+    }
+
 }
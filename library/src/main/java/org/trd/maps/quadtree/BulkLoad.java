@@ -0,0 +1,150 @@
+/*
+ * Copyright 2020 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.trd.maps.quadtree;
+
+import org.trd.maps.geometry.Bounds;
+import org.trd.maps.geometry.Point;
+
+import java.util.Collection;
+
+/**
+ * Scratch space for loading many items into a quad tree at once.
+ * <p/>
+ * Items are sorted into the tree's Z-order (Morton order) one level at a time: each call to
+ * {@link #partition} splits a contiguous run of items into the runs belonging to the four child
+ * quads, so every quad is built from its own run without ever being split and refilled.
+ * Partitioning uses the same mid-point comparisons as insertion, rather than quantized Morton
+ * keys, so the resulting tree is identical to one built by adding the items one at a time.
+ */
+final class BulkLoad {
+    final Object[] items;
+    final double[] xs;
+    final double[] ys;
+    final double[] weights;
+    final int size;
+
+    private final Object[] mScratchItems;
+    private final double[] mScratchXs;
+    private final double[] mScratchYs;
+    private final double[] mScratchWeights;
+
+    /**
+     * Copies the items that lie within the given bounds, preserving their order.
+     */
+    BulkLoad(Collection<? extends PointQuadTree.Item> source, Bounds bounds) {
+        int capacity = source.size();
+        items = new Object[capacity];
+        xs = new double[capacity];
+        ys = new double[capacity];
+        weights = new double[capacity];
+        int size = 0;
+        for (PointQuadTree.Item item : source) {
+            Point point = item.getPoint();
+            if (bounds.contains(point.x, point.y)) {
+                items[size] = item;
+                xs[size] = point.x;
+                ys[size] = point.y;
+                weights[size] = weightOf(item);
+                size++;
+            }
+        }
+        this.size = size;
+        mScratchItems = new Object[size];
+        mScratchXs = new double[size];
+        mScratchYs = new double[size];
+        mScratchWeights = new double[size];
+    }
+
+    /**
+     * Stable partition of the run {@code [from, to)} into the four child quads, in child order
+     * (top left, top right, bottom left, bottom right).
+     *
+     * @param ends receives the end of each child's run; child {@code i} starts at
+     *             {@code i == 0 ? from : ends[i - 1]}
+     */
+    void partition(int from, int to, double midX, double midY, int[] ends) {
+        int[] starts = new int[4];
+        for (int i = from; i < to; i++) {
+            starts[childIndex(xs[i], ys[i], midX, midY)]++;
+        }
+        int offset = from;
+        for (int child = 0; child < 4; child++) {
+            int count = starts[child];
+            starts[child] = offset;
+            offset += count;
+            ends[child] = offset;
+        }
+        for (int i = from; i < to; i++) {
+            int slot = starts[childIndex(xs[i], ys[i], midX, midY)]++;
+            mScratchItems[slot] = items[i];
+            mScratchXs[slot] = xs[i];
+            mScratchYs[slot] = ys[i];
+            mScratchWeights[slot] = weights[i];
+        }
+        System.arraycopy(mScratchItems, from, items, from, to - from);
+        System.arraycopy(mScratchXs, from, xs, from, to - from);
+        System.arraycopy(mScratchYs, from, ys, from, to - from);
+        System.arraycopy(mScratchWeights, from, weights, from, to - from);
+    }
+
+    /**
+     * @return the item's weight if it is a {@link PointQuadTree.WeightedItem}, otherwise 1.
+     */
+    static double weightOf(PointQuadTree.Item item) {
+        return item instanceof PointQuadTree.WeightedItem
+                ? ((PointQuadTree.WeightedItem) item).getWeight() : 1;
+    }
+
+    /**
+     * Same routing rule as {@link PointQuadTree}: points on a mid line belong to the right/bottom.
+     */
+    static int childIndex(double x, double y, double midX, double midY) {
+        return (y < midY ? 0 : 2) + (x < midX ? 0 : 1);
+    }
+
+    /**
+     * Whether two points in a quad at {@code depth} with the given bounds would be routed to the
+     * same child at every level down to {@code maxDepth}, so that no split can separate them.
+     * Being routed together is transitive, so a whole leaf can be checked against one of its points.
+     */
+    static boolean isInseparable(double x1, double y1, double x2, double y2,
+                                 double minX, double maxX, double minY, double maxY,
+                                 int depth, int maxDepth) {
+        if (x1 == x2 && y1 == y2) {
+            return true;
+        }
+        for (; depth < maxDepth; depth++) {
+            double midX = (minX + maxX) / 2;
+            double midY = (minY + maxY) / 2;
+            int child = childIndex(x1, y1, midX, midY);
+            if (child != childIndex(x2, y2, midX, midY)) {
+                return false;
+            }
+            if ((child & 1) == 0) {
+                maxX = midX;
+            } else {
+                minX = midX;
+            }
+            if ((child & 2) == 0) {
+                maxY = midY;
+            } else {
+                minY = midY;
+            }
+        }
+        return true;
+    }
+}
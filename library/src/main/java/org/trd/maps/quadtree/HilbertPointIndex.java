@@ -0,0 +1,370 @@
+/*
+ * Copyright 2020 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.trd.maps.quadtree;
+
+import org.trd.maps.geometry.Bounds;
+import org.trd.maps.geometry.Point;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A linear quad tree: items are kept in flat primitive arrays, sorted by the position of their
+ * point along a Hilbert curve, with no per-quad objects at all.
+ * <p/>
+ * Every quad of the implicit tree is a contiguous run of the sorted keys, so a search descends
+ * quads by binary searching for the runs of their children, and then reads matching items
+ * sequentially. Neighbouring items in the arrays are close together on the map, which keeps
+ * searches cache friendly. Searches include every item within the bounds, edges included.
+ * <p/>
+ * Adding or removing a single item shifts the arrays, so this index suits data that is loaded in
+ * bulk with {@link #addAll} and changes rarely. Like {@link PackedPointQuadTree}, adding the same
+ * item twice stores it twice.
+ * This class is not thread safe.
+ */
+public class HilbertPointIndex<T extends PointQuadTree.Item> {
+    /**
+     * Bits per coordinate of the grid that points are snapped to; keys use twice as many.
+     */
+    final static int ORDER = 31;
+
+    final static long GRID_SIZE = 1L << ORDER;
+
+    /**
+     * Quads holding no more items than this are scanned instead of being subdivided.
+     */
+    final static int SCAN_THRESHOLD = 32;
+
+    private final Bounds mBounds;
+    private final HilbertSearch<PointQuadTree.Visitor<? super T>> mSearch;
+
+    private long[] mKeys = new long[16];
+    private double[] mXs = new double[16];
+    private double[] mYs = new double[16];
+    private Object[] mItems = new Object[16];
+    private int mSize;
+
+    /**
+     * Creates a new index with specified bounds.
+     *
+     * @param minX
+     * @param maxX
+     * @param minY
+     * @param maxY
+     */
+    public HilbertPointIndex(double minX, double maxX, double minY, double maxY) {
+        this(new Bounds(minX, maxX, minY, maxY));
+    }
+
+    public HilbertPointIndex(Bounds bounds) {
+        mBounds = bounds;
+        mSearch = new HilbertSearch<>(bounds, new HilbertSearch.Columns<PointQuadTree.Visitor<? super T>>() {
+            @Override
+            public long keyAt(int index) {
+                return mKeys[index];
+            }
+
+            @Override
+            public double xAt(int index) {
+                return mXs[index];
+            }
+
+            @Override
+            public double yAt(int index) {
+                return mYs[index];
+            }
+
+            @SuppressWarnings("unchecked")
+            @Override
+            public void visit(PointQuadTree.Visitor<? super T> visitor, int index) {
+                visitor.visit((T) mItems[index]);
+            }
+        });
+    }
+
+    /**
+     * Insert an item.
+     */
+    public void add(T item) {
+        Point point = item.getPoint();
+        if (!mBounds.contains(point.x, point.y)) {
+            return;
+        }
+        long key = mSearch.keyOf(point.x, point.y);
+        // After any items with the same key, so that they stay in insertion order
+        int index = mSearch.lowerBound(key + 1, 0, mSize);
+        ensureCapacity(mSize + 1);
+        int tail = mSize - index;
+        System.arraycopy(mKeys, index, mKeys, index + 1, tail);
+        System.arraycopy(mXs, index, mXs, index + 1, tail);
+        System.arraycopy(mYs, index, mYs, index + 1, tail);
+        System.arraycopy(mItems, index, mItems, index + 1, tail);
+        mKeys[index] = key;
+        mXs[index] = point.x;
+        mYs[index] = point.y;
+        mItems[index] = item;
+        mSize++;
+    }
+
+    /**
+     * Insert many items at once. The new items are sorted by key and merged into the existing
+     * ones in a single pass.
+     */
+    public void addAll(Collection<? extends T> items) {
+        int capacity = items.size();
+        long[] keys = new long[capacity];
+        double[] xs = new double[capacity];
+        double[] ys = new double[capacity];
+        Object[] added = new Object[capacity];
+        int count = 0;
+        for (T item : items) {
+            Point point = item.getPoint();
+            if (mBounds.contains(point.x, point.y)) {
+                keys[count] = mSearch.keyOf(point.x, point.y);
+                xs[count] = point.x;
+                ys[count] = point.y;
+                added[count] = item;
+                count++;
+            }
+        }
+        if (count == 0) {
+            return;
+        }
+        int[] order = sortedOrder(keys, count);
+
+        int size = mSize + count;
+        long[] mergedKeys = new long[size];
+        double[] mergedXs = new double[size];
+        double[] mergedYs = new double[size];
+        Object[] mergedItems = new Object[size];
+        int existing = 0;
+        int next = 0;
+        for (int i = 0; i < size; i++) {
+            // Existing items go first among equal keys, as if the new ones were added one by one
+            if (next == count || (existing < mSize && mKeys[existing] <= keys[order[next]])) {
+                mergedKeys[i] = mKeys[existing];
+                mergedXs[i] = mXs[existing];
+                mergedYs[i] = mYs[existing];
+                mergedItems[i] = mItems[existing];
+                existing++;
+            } else {
+                int source = order[next++];
+                mergedKeys[i] = keys[source];
+                mergedXs[i] = xs[source];
+                mergedYs[i] = ys[source];
+                mergedItems[i] = added[source];
+            }
+        }
+        mKeys = mergedKeys;
+        mXs = mergedXs;
+        mYs = mergedYs;
+        mItems = mergedItems;
+        mSize = size;
+    }
+
+    /**
+     * Remove the given item from the index.
+     *
+     * @return whether the item was removed.
+     */
+    public boolean remove(T item) {
+        Point point = item.getPoint();
+        if (!mBounds.contains(point.x, point.y)) {
+            return false;
+        }
+        long key = mSearch.keyOf(point.x, point.y);
+        for (int i = mSearch.lowerBound(key, 0, mSize); i < mSize && mKeys[i] == key; i++) {
+            if (item.equals(mItems[i])) {
+                int tail = mSize - i - 1;
+                System.arraycopy(mKeys, i + 1, mKeys, i, tail);
+                System.arraycopy(mXs, i + 1, mXs, i, tail);
+                System.arraycopy(mYs, i + 1, mYs, i, tail);
+                System.arraycopy(mItems, i + 1, mItems, i, tail);
+                mSize--;
+                mItems[mSize] = null;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Removes all points from the index.
+     */
+    public void clear() {
+        Arrays.fill(mItems, 0, mSize, null);
+        mSize = 0;
+    }
+
+    /**
+     * @return the number of items in the index.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Search for all items within a given bounds.
+     */
+    public Collection<T> search(Bounds searchBounds) {
+        final List<T> results = new ArrayList<T>();
+        search(searchBounds.minX, searchBounds.maxX, searchBounds.minY, searchBounds.maxY, results);
+        return results;
+    }
+
+    /**
+     * Search for all items within the given bounds, adding them to a caller-owned collection.
+     * The collection is not cleared first, so it can be reused across searches without
+     * allocating.
+     */
+    public void search(double minX, double maxX, double minY, double maxY, final Collection<? super T> results) {
+        search(minX, maxX, minY, maxY, new PointQuadTree.Visitor<T>() {
+            @Override
+            public void visit(T item) {
+                results.add(item);
+            }
+        });
+    }
+
+    /**
+     * Search for all items within the given bounds, passing each one to the visitor instead of
+     * collecting them. Items are visited in Hilbert order.
+     */
+    public void search(double minX, double maxX, double minY, double maxY,
+                       PointQuadTree.Visitor<? super T> visitor) {
+        mSearch.search(minX, maxX, minY, maxY, mSize, visitor);
+    }
+
+    /**
+     * @return the number of items within the given bounds.
+     */
+    public int count(double minX, double maxX, double minY, double maxY) {
+        return mSearch.search(minX, maxX, minY, maxY, mSize, null);
+    }
+
+    /**
+     * Search for all items within the given bounds on a world that wraps around in x every
+     * {@code worldWidth}, as {@link PointQuadTree#searchWrapped} does.
+     */
+    public void searchWrapped(double minX, double maxX, double minY, double maxY, double worldWidth,
+                              final Collection<? super T> results) {
+        searchWrapped(minX, maxX, minY, maxY, worldWidth, new PointQuadTree.Visitor<T>() {
+            @Override
+            public void visit(T item) {
+                results.add(item);
+            }
+        });
+    }
+
+    /**
+     * Search for all items within the given bounds on a world that wraps around in x every
+     * {@code worldWidth}, passing each one to the visitor.
+     */
+    public void searchWrapped(double minX, double maxX, double minY, double maxY, double worldWidth,
+                              PointQuadTree.Visitor<? super T> visitor) {
+        if (maxX - minX >= worldWidth) {
+            search(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, minY, maxY, visitor);
+            return;
+        }
+        double shift = Math.floor((minX - mBounds.minX) / worldWidth) * worldWidth;
+        mSearch.search(minX - shift, maxX - shift, minX - shift - worldWidth, maxX - shift - worldWidth,
+                minY, maxY, mSize, visitor);
+    }
+
+    /**
+     * @return the number of items within the given bounds on a world that wraps around in x every
+     * {@code worldWidth}.
+     */
+    public int countWrapped(double minX, double maxX, double minY, double maxY, double worldWidth) {
+        if (maxX - minX >= worldWidth) {
+            return count(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, minY, maxY);
+        }
+        double shift = Math.floor((minX - mBounds.minX) / worldWidth) * worldWidth;
+        return mSearch.search(minX - shift, maxX - shift, minX - shift - worldWidth, maxX - shift - worldWidth,
+                minY, maxY, mSize, null);
+    }
+
+    static long cell(double offset, double cellSize) {
+        long cell = (long) (offset / cellSize);
+        return Math.max(0, Math.min(GRID_SIZE - 1, cell));
+    }
+
+    /**
+     * Distance along the Hilbert curve of the given grid cell. Each level contributes two bits,
+     * taken from the cell's position within its parent after undoing the parent's orientation.
+     */
+    static long hilbertKey(long x, long y) {
+        long key = 0;
+        int flip = 0;
+        int swap = 0;
+        for (int level = ORDER - 1; level >= 0; level--) {
+            int gx = (int) (x >>> level) & 1;
+            int gy = (int) (y >>> level) & 1;
+            int rx = (swap == 1 ? gy : gx) ^ flip;
+            int ry = (swap == 1 ? gx : gy) ^ flip;
+            key = (key << 2) | ((3 * rx) ^ ry);
+            if (ry == 0) {
+                flip ^= rx;
+                swap ^= 1;
+            }
+        }
+        return key;
+    }
+
+    /**
+     * Stable LSD radix sort of the first {@code count} keys, 16 bits at a time.
+     *
+     * @return the indexes of the keys in sorted order.
+     */
+    static int[] sortedOrder(long[] keys, int count) {
+        int[] order = new int[count];
+        int[] scratch = new int[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        int[] offsets = new int[(1 << 16) + 1];
+        for (int shift = 0; shift < 2 * ORDER; shift += 16) {
+            Arrays.fill(offsets, 0);
+            for (int i = 0; i < count; i++) {
+                offsets[((int) (keys[i] >>> shift) & 0xFFFF) + 1]++;
+            }
+            for (int bucket = 0; bucket < 1 << 16; bucket++) {
+                offsets[bucket + 1] += offsets[bucket];
+            }
+            for (int i = 0; i < count; i++) {
+                int index = order[i];
+                scratch[offsets[(int) (keys[index] >>> shift) & 0xFFFF]++] = index;
+            }
+            int[] swap = order;
+            order = scratch;
+            scratch = swap;
+        }
+        return order;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > mKeys.length) {
+            int length = Math.max(capacity, mKeys.length * 2);
+            mKeys = Arrays.copyOf(mKeys, length);
+            mXs = Arrays.copyOf(mXs, length);
+            mYs = Arrays.copyOf(mYs, length);
+            mItems = Arrays.copyOf(mItems, length);
+        }
+    }
+}
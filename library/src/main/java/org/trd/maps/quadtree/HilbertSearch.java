@@ -0,0 +1,232 @@
+/*
+ * Copyright 2020 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.trd.maps.quadtree;
+
+import org.trd.maps.geometry.Bounds;
+
+import static org.trd.maps.quadtree.HilbertPointIndex.GRID_SIZE;
+import static org.trd.maps.quadtree.HilbertPointIndex.ORDER;
+import static org.trd.maps.quadtree.HilbertPointIndex.SCAN_THRESHOLD;
+import static org.trd.maps.quadtree.HilbertPointIndex.cell;
+import static org.trd.maps.quadtree.HilbertPointIndex.hilbertKey;
+
+/**
+ * Searches the implicit quad tree of items sorted by Hilbert key, shared by
+ * {@link HilbertPointIndex} and {@link MappedPointIndex}, which only differ in where their
+ * columns are stored.
+ *
+ * @param <V> the type of the visitor that matching items are reported to
+ */
+final class HilbertSearch<V> {
+    /**
+     * The columns of the items, sorted by key.
+     */
+    interface Columns<V> {
+        long keyAt(int index);
+
+        double xAt(int index);
+
+        double yAt(int index);
+
+        /**
+         * Reports the item at the given index to the visitor.
+         */
+        void visit(V visitor, int index);
+    }
+
+    private final Bounds mBounds;
+
+    /**
+     * Size of one grid cell. Items are only snapped to the grid for ordering; searches compare
+     * their exact coordinates, widening quad tests by a cell to allow for rounding.
+     */
+    private final double mCellWidth;
+    private final double mCellHeight;
+
+    private final Columns<V> mColumns;
+
+    HilbertSearch(Bounds bounds, Columns<V> columns) {
+        mBounds = bounds;
+        mCellWidth = (bounds.maxX - bounds.minX) / GRID_SIZE;
+        mCellHeight = (bounds.maxY - bounds.minY) / GRID_SIZE;
+        mColumns = columns;
+    }
+
+    /**
+     * @return the key of the grid cell of the given point.
+     */
+    long keyOf(double x, double y) {
+        return hilbertKey(cell(x - mBounds.minX, mCellWidth), cell(y - mBounds.minY, mCellHeight));
+    }
+
+    /**
+     * Searches the first {@code size} items for those within the given bounds, edges included.
+     *
+     * @param visitor receives the matching items in Hilbert order, or null to only count them
+     * @return the number of matching items
+     */
+    int search(double minX, double maxX, double minY, double maxY, int size, V visitor) {
+        return search(minX, maxX, Double.NaN, Double.NaN, minY, maxY, size, visitor);
+    }
+
+    /**
+     * Searches the first {@code size} items for those within the union of two x ranges, which
+     * must not overlap, so that wrapped searches take a single pass and report each item once. An
+     * unused range is NaN, which no comparison matches.
+     * <p/>
+     * Both ranges are clamped to the bounds, then the search starts at the smallest quad that
+     * encloses them, found from the leading bits its corner cells share, instead of descending to
+     * it from the root. Every matching item lies in that quad, as cells are monotonic in the
+     * coordinates.
+     *
+     * @param visitor receives the matching items in Hilbert order, or null to only count them
+     * @return the number of matching items
+     */
+    int search(double minX, double maxX, double wrappedMinX, double wrappedMaxX, double minY, double maxY,
+               int size, V visitor) {
+        boolean first = minX <= maxX && minX <= mBounds.maxX && mBounds.minX <= maxX;
+        boolean second = wrappedMinX <= wrappedMaxX && wrappedMinX <= mBounds.maxX && mBounds.minX <= wrappedMaxX;
+        if (!(minY <= maxY) || !(first || second)) {
+            return 0;
+        }
+        if (!first) {
+            minX = wrappedMinX;
+            maxX = wrappedMaxX;
+        }
+        boolean both = first && second;
+        if (!both) {
+            wrappedMinX = Double.NaN;
+            wrappedMaxX = Double.NaN;
+        }
+        double enclosingMinX = Math.max(mBounds.minX, both ? Math.min(minX, wrappedMinX) : minX);
+        double enclosingMaxX = Math.min(mBounds.maxX, both ? Math.max(maxX, wrappedMaxX) : maxX);
+
+        long minCellX = cell(enclosingMinX - mBounds.minX, mCellWidth);
+        long maxCellX = cell(enclosingMaxX - mBounds.minX, mCellWidth);
+        long minCellY = cell(minY - mBounds.minY, mCellHeight);
+        long maxCellY = cell(maxY - mBounds.minY, mCellHeight);
+        int level = Math.min(Long.numberOfLeadingZeros(minCellX ^ maxCellX),
+                Long.numberOfLeadingZeros(minCellY ^ maxCellY)) - (64 - ORDER);
+        long cx = minCellX >>> (ORDER - level);
+        long cy = minCellY >>> (ORDER - level);
+
+        // The quad's key digits and curve orientation, as in hilbertKey
+        long prefix = 0;
+        int flip = 0;
+        int swap = 0;
+        for (int bit = level - 1; bit >= 0; bit--) {
+            int gx = (int) (cx >>> bit) & 1;
+            int gy = (int) (cy >>> bit) & 1;
+            int rx = (swap == 1 ? gy : gx) ^ flip;
+            int ry = (swap == 1 ? gx : gy) ^ flip;
+            prefix = (prefix << 2) | ((3 * rx) ^ ry);
+            if (ry == 0) {
+                flip ^= rx;
+                swap ^= 1;
+            }
+        }
+        int shift = 2 * (ORDER - level);
+        int from = lowerBound(prefix << shift, 0, size);
+        int to = lowerBound((prefix + 1) << shift, from, size);
+        return search(level, cx, cy, prefix, flip, swap, from, to,
+                minX, maxX, wrappedMinX, wrappedMaxX, minY, maxY, visitor);
+    }
+
+    /**
+     * Searches the quad at {@code level} whose grid position is {@code (cx, cy)} and whose key
+     * digits so far are {@code prefix}. {@code flip} and {@code swap} give the orientation of the
+     * curve within the quad, and {@code [from, to)} is the run of items in it.
+     */
+    private int search(int level, long cx, long cy, long prefix, int flip, int swap, int from, int to,
+                       double minX, double maxX, double wrappedMinX, double wrappedMaxX,
+                       double minY, double maxY, V visitor) {
+        if (from == to) {
+            return 0;
+        }
+        double quadWidth = mCellWidth * (1L << (ORDER - level));
+        double quadHeight = mCellHeight * (1L << (ORDER - level));
+        double quadMinX = mBounds.minX + cx * quadWidth;
+        double quadMinY = mBounds.minY + cy * quadHeight;
+        double quadMaxX = quadMinX + quadWidth;
+        double quadMaxY = quadMinY + quadHeight;
+        if (!(minY <= quadMaxY + mCellHeight && quadMinY - mCellHeight <= maxY
+                && (minX <= quadMaxX + mCellWidth && quadMinX - mCellWidth <= maxX
+                || wrappedMinX <= quadMaxX + mCellWidth && quadMinX - mCellWidth <= wrappedMaxX))) {
+            return 0;
+        }
+        if (minY <= quadMinY - mCellHeight && quadMaxY + mCellHeight <= maxY
+                && (minX <= quadMinX - mCellWidth && quadMaxX + mCellWidth <= maxX
+                || wrappedMinX <= quadMinX - mCellWidth && quadMaxX + mCellWidth <= wrappedMaxX)) {
+            if (visitor != null) {
+                for (int i = from; i < to; i++) {
+                    mColumns.visit(visitor, i);
+                }
+            }
+            return to - from;
+        }
+        if (to - from <= SCAN_THRESHOLD || level == ORDER) {
+            int count = 0;
+            for (int i = from; i < to; i++) {
+                double x = mColumns.xAt(i);
+                double y = mColumns.yAt(i);
+                if (minY <= y && y <= maxY && (minX <= x && x <= maxX || wrappedMinX <= x && x <= wrappedMaxX)) {
+                    if (visitor != null) {
+                        mColumns.visit(visitor, i);
+                    }
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        // Visit the children in curve order, which is also the order of their runs.
+        int shift = 2 * (ORDER - level - 1);
+        long childPrefix = prefix << 2;
+        int count = 0;
+        int start = from;
+        for (int digit = 0; digit < 4; digit++) {
+            int end = digit == 3 ? to : lowerBound((childPrefix | (digit + 1)) << shift, start, to);
+            if (start < end) {
+                int rx = digit >> 1;
+                int ry = (digit ^ rx) & 1;
+                int gx = (swap == 1 ? ry : rx) ^ flip;
+                int gy = (swap == 1 ? rx : ry) ^ flip;
+                int childFlip = ry == 0 ? flip ^ rx : flip;
+                int childSwap = ry == 0 ? swap ^ 1 : swap;
+                count += search(level + 1, cx * 2 + gx, cy * 2 + gy, childPrefix | digit, childFlip, childSwap,
+                        start, end, minX, maxX, wrappedMinX, wrappedMaxX, minY, maxY, visitor);
+            }
+            start = end;
+        }
+        return count;
+    }
+
+    /**
+     * @return the first index in {@code [from, to)} whose key is at least {@code key}.
+     */
+    int lowerBound(long key, int from, int to) {
+        while (from < to) {
+            int mid = (from + to) >>> 1;
+            if (mColumns.keyAt(mid) < key) {
+                from = mid + 1;
+            } else {
+                to = mid;
+            }
+        }
+        return from;
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2020 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.trd.maps.quadtree;
+
+import org.trd.maps.geometry.Bounds;
+import org.trd.maps.geometry.Point;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+import static org.trd.maps.quadtree.HilbertPointIndex.GRID_SIZE;
+import static org.trd.maps.quadtree.HilbertPointIndex.ORDER;
+
+/**
+ * A read-only point index stored in a file and searched in place through a memory mapping, so
+ * that opening it costs no parsing and its contents live outside the Java heap.
+ * <p/>
+ * The file holds the columns of a {@link HilbertPointIndex}: a header, then the items' Hilbert
+ * keys, x and y coordinates and ids, each as a little-endian primitive array sorted by key. Quads
+ * are implicit runs of keys, so no nodes need to be stored. Items themselves are not stored;
+ * {@link #write} records each item's position in the list it was given as its id, and searches
+ * report those ids.
+ */
+public final class MappedPointIndex {
+    /**
+     * Receives the ids of the items found by a search.
+     */
+    public interface Visitor {
+        void visit(int id);
+    }
+
+    private final static int MAGIC = 0x54524449; // "TRDI"
+    private final static int VERSION = 1;
+    private final static int HEADER_SIZE = 48;
+
+    private final Bounds mBounds;
+    private final int mSize;
+    private final LongBuffer mKeys;
+    private final DoubleBuffer mXs;
+    private final DoubleBuffer mYs;
+    private final IntBuffer mIds;
+    private final HilbertSearch<Visitor> mSearch;
+
+    private MappedPointIndex(ByteBuffer buffer) throws IOException {
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a point index file");
+        }
+        if (buffer.getInt(4) != VERSION || buffer.getInt(12) != ORDER) {
+            throw new IOException("Unsupported point index version " + buffer.getInt(4));
+        }
+        mSize = buffer.getInt(8);
+        if (mSize < 0 || buffer.capacity() != HEADER_SIZE + (long) mSize * 28) {
+            throw new IOException("Truncated point index file");
+        }
+        mBounds = new Bounds(buffer.getDouble(16), buffer.getDouble(24), buffer.getDouble(32), buffer.getDouble(40));
+        mKeys = column(buffer, HEADER_SIZE).asLongBuffer();
+        mXs = column(buffer, HEADER_SIZE + mSize * 8).asDoubleBuffer();
+        mYs = column(buffer, HEADER_SIZE + mSize * 16).asDoubleBuffer();
+        mIds = column(buffer, HEADER_SIZE + mSize * 24).asIntBuffer();
+        mSearch = new HilbertSearch<>(mBounds, new HilbertSearch.Columns<Visitor>() {
+            @Override
+            public long keyAt(int index) {
+                return mKeys.get(index);
+            }
+
+            @Override
+            public double xAt(int index) {
+                return mXs.get(index);
+            }
+
+            @Override
+            public double yAt(int index) {
+                return mYs.get(index);
+            }
+
+            @Override
+            public void visit(Visitor visitor, int index) {
+                visitor.visit(mIds.get(index));
+            }
+        });
+    }
+
+    private static ByteBuffer column(ByteBuffer buffer, int offset) {
+        buffer.position(offset);
+        return buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Maps an index file written by {@link #write}. The file must not be modified while the
+     * index is in use.
+     *
+     * @throws IOException if the file cannot be read or is not a point index.
+     */
+    public static MappedPointIndex open(File file) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = input.getChannel();
+            // The mapping stays valid after the channel is closed.
+            return new MappedPointIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Writes an index of the given items to a file. Items outside {@code bounds} are left out;
+     * the others are identified by their position in {@code items}.
+     */
+    public static void write(File file, Bounds bounds, List<? extends PointQuadTree.Item> items) throws IOException {
+        double cellWidth = (bounds.maxX - bounds.minX) / GRID_SIZE;
+        double cellHeight = (bounds.maxY - bounds.minY) / GRID_SIZE;
+        int capacity = items.size();
+        long[] keys = new long[capacity];
+        double[] xs = new double[capacity];
+        double[] ys = new double[capacity];
+        int[] ids = new int[capacity];
+        int size = 0;
+        for (int i = 0; i < capacity; i++) {
+            Point point = items.get(i).getPoint();
+            if (bounds.contains(point.x, point.y)) {
+                keys[size] = HilbertPointIndex.hilbertKey(
+                        HilbertPointIndex.cell(point.x - bounds.minX, cellWidth),
+                        HilbertPointIndex.cell(point.y - bounds.minY, cellHeight));
+                xs[size] = point.x;
+                ys[size] = point.y;
+                ids[size] = i;
+                size++;
+            }
+        }
+        int[] order = HilbertPointIndex.sortedOrder(keys, size);
+
+        FileOutputStream output = new FileOutputStream(file);
+        try {
+            FileChannel channel = output.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(size).putInt(ORDER);
+            buffer.putDouble(bounds.minX).putDouble(bounds.maxX).putDouble(bounds.minY).putDouble(bounds.maxY);
+            for (int i = 0; i < size; i++) {
+                buffer = flushIfFull(channel, buffer, 8).putLong(keys[order[i]]);
+            }
+            for (int i = 0; i < size; i++) {
+                buffer = flushIfFull(channel, buffer, 8).putDouble(xs[order[i]]);
+            }
+            for (int i = 0; i < size; i++) {
+                buffer = flushIfFull(channel, buffer, 8).putDouble(ys[order[i]]);
+            }
+            for (int i = 0; i < size; i++) {
+                buffer = flushIfFull(channel, buffer, 4).putInt(ids[order[i]]);
+            }
+            flush(channel, buffer);
+        } finally {
+            output.close();
+        }
+    }
+
+    private static ByteBuffer flushIfFull(FileChannel channel, ByteBuffer buffer, int needed) throws IOException {
+        if (buffer.remaining() < needed) {
+            flush(channel, buffer);
+        }
+        return buffer;
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * @return the bounds the index was written with.
+     */
+    public Bounds getBounds() {
+        return mBounds;
+    }
+
+    /**
+     * @return the number of items in the index.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Search for all items within the given bounds, passing the id of each one to the visitor.
+     * Like {@link HilbertPointIndex}, items on the edges of the bounds are included.
+     */
+    public void search(double minX, double maxX, double minY, double maxY, Visitor visitor) {
+        mSearch.search(minX, maxX, minY, maxY, mSize, visitor);
+    }
+
+    /**
+     * @return the number of items within the given bounds.
+     */
+    public int count(double minX, double maxX, double minY, double maxY) {
+        return mSearch.search(minX, maxX, minY, maxY, mSize, null);
+    }
+}
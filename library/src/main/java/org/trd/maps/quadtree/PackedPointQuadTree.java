@@ -0,0 +1,803 @@
+/*
+ * Copyright 2020 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.trd.maps.quadtree;
+
+import org.trd.maps.geometry.Bounds;
+import org.trd.maps.geometry.Point;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A memory-compact alternative to {@link PointQuadTree} for very large point sets.
+ * <p/>
+ * Instead of one object per quad and a hash set per leaf, the whole tree is stored in a handful
+ * of primitive columns: item coordinates live in {@code double[]} arrays and every leaf owns a
+ * contiguous slice of those arrays. Quads are addressed by index and their bounds are derived
+ * while descending, so no {@link Bounds} objects are kept per node.
+ * <p/>
+ * The tree splits and routes points exactly like {@link PointQuadTree}, so {@link #search(Bounds)}
+ * returns the same items. Unlike {@link PointQuadTree}, adding the same item twice stores it twice,
+ * which avoids scanning a leaf on every insert.
+ * <p/>
+ * Every quad also keeps the count, total weight and weighted centroid of the items below it, so
+ * {@link #count} and {@link #aggregate} answer from fully covered quads without visiting their
+ * items. Items implementing {@link PointQuadTree.WeightedItem} contribute their weight; any other
+ * item weighs 1.
+ * This class is not thread safe.
+ */
+public class PackedPointQuadTree<T extends PointQuadTree.Item> {
+    /**
+     * Maximum number of elements to store in a quad before splitting, unless the quad is a bucket
+     * of inseparable points, as in {@link PointQuadTree}.
+     */
+    private final int mMaxElements;
+
+    /**
+     * Maximum depth.
+     */
+    private final int mMaxDepth;
+
+    /**
+     * Smallest slice handed out to a leaf. Slice sizes are always powers of two.
+     */
+    private final static int MIN_SLICE = 4;
+
+    private final static int NO_CHILDREN = -1;
+
+    /**
+     * The bounds of the root quad.
+     */
+    private final Bounds mBounds;
+
+    /**
+     * Per-quad columns. Children of a quad are always stored as four consecutive quads, in the
+     * same order as {@link PointQuadTree}: top left, top right, bottom left, bottom right.
+     */
+    private int[] mFirstChild;
+    private int[] mSliceStart;
+    private int[] mSliceLength;
+    private int[] mCount;
+    private int mQuadCount;
+
+    /**
+     * Per-quad aggregates over every item in the quad, including those in child quads.
+     */
+    private int[] mTotalCount;
+    private double[] mWeightSum;
+    private double[] mWeightedXSum;
+    private double[] mWeightedYSum;
+
+    /**
+     * Per-item columns. Leaf {@code q} owns the slots
+     * {@code [mSliceStart[q], mSliceStart[q] + mSliceLength[q])}, of which the first
+     * {@code mCount[q]} are in use.
+     */
+    private double[] mXs;
+    private double[] mYs;
+    private double[] mWeights;
+    private Object[] mItems;
+    private int mSlotCount;
+
+    /**
+     * Released slices, bucketed by log2 of their length.
+     */
+    private int[][] mFreeSlices = new int[32][];
+    private final int[] mFreeSliceCount = new int[32];
+
+    private int mSize;
+
+    /**
+     * Creates a new quad tree with specified bounds.
+     *
+     * @param minX
+     * @param maxX
+     * @param minY
+     * @param maxY
+     */
+    public PackedPointQuadTree(double minX, double maxX, double minY, double maxY) {
+        this(new Bounds(minX, maxX, minY, maxY));
+    }
+
+    public PackedPointQuadTree(Bounds bounds) {
+        this(bounds, PointQuadTree.DEFAULT_MAX_ELEMENTS, PointQuadTree.DEFAULT_MAX_DEPTH);
+    }
+
+    /**
+     * Creates a new quad tree with specified bounds, splitting quads that hold more than
+     * {@code maxElements} items until they reach {@code maxDepth}.
+     */
+    public PackedPointQuadTree(double minX, double maxX, double minY, double maxY, int maxElements, int maxDepth) {
+        this(new Bounds(minX, maxX, minY, maxY), maxElements, maxDepth);
+    }
+
+    public PackedPointQuadTree(Bounds bounds, int maxElements, int maxDepth) {
+        if (maxElements < 1) {
+            throw new IllegalArgumentException("maxElements must be at least 1");
+        }
+        if (maxDepth < 0) {
+            throw new IllegalArgumentException("maxDepth must not be negative");
+        }
+        mBounds = bounds;
+        mMaxElements = maxElements;
+        mMaxDepth = maxDepth;
+        mFirstChild = new int[16];
+        mSliceStart = new int[16];
+        mSliceLength = new int[16];
+        mCount = new int[16];
+        mTotalCount = new int[16];
+        mWeightSum = new double[16];
+        mWeightedXSum = new double[16];
+        mWeightedYSum = new double[16];
+        mXs = new double[maxElements + 1];
+        mYs = new double[maxElements + 1];
+        mWeights = new double[maxElements + 1];
+        mItems = new Object[maxElements + 1];
+        reset();
+    }
+
+    private void reset() {
+        mQuadCount = 0;
+        mSlotCount = 0;
+        mSize = 0;
+        Arrays.fill(mFreeSliceCount, 0);
+        newLeaf(MIN_SLICE);
+    }
+
+    /**
+     * Insert an item.
+     */
+    public void add(T item) {
+        Point point = item.getPoint();
+        if (mBounds.contains(point.x, point.y)) {
+            insert(point.x, point.y, BulkLoad.weightOf(item), item);
+            mSize++;
+        }
+    }
+
+    private void insert(double x, double y, double weight, Object item) {
+        double minX = mBounds.minX;
+        double maxX = mBounds.maxX;
+        double minY = mBounds.minY;
+        double maxY = mBounds.maxY;
+        int quad = 0;
+        int depth = 0;
+        accumulate(quad, 1, weight, x, y);
+        while (mFirstChild[quad] != NO_CHILDREN) {
+            double midX = (minX + maxX) / 2;
+            double midY = (minY + maxY) / 2;
+            int child = BulkLoad.childIndex(x, y, midX, midY);
+            if ((child & 1) == 0) {
+                maxX = midX;
+            } else {
+                minX = midX;
+            }
+            if ((child & 2) == 0) {
+                maxY = midY;
+            } else {
+                minY = midY;
+            }
+            quad = mFirstChild[quad] + child;
+            accumulate(quad, 1, weight, x, y);
+            depth++;
+        }
+        append(quad, x, y, weight, item);
+        if (mCount[quad] > mMaxElements && depth < mMaxDepth) {
+            int first = mSliceStart[quad];
+            boolean bucket = mCount[quad] > mMaxElements + 1
+                    // Already a bucket before this point was added
+                    ? BulkLoad.isInseparable(mXs[first], mYs[first], x, y, minX, maxX, minY, maxY, depth, mMaxDepth)
+                    : isBucket(quad, minX, maxX, minY, maxY, depth);
+            if (!bucket) {
+                split(quad, minX, maxX, minY, maxY, depth);
+            }
+        }
+    }
+
+    /**
+     * Insert many items at once. This is equivalent to calling {@link #add} for each item, but
+     * items are routed a whole quad at a time and each leaf is split at most once.
+     */
+    public void addAll(Collection<? extends T> items) {
+        BulkLoad load = new BulkLoad(items, mBounds);
+        addAll(load, 0, load.size, 0, mBounds.minX, mBounds.maxX, mBounds.minY, mBounds.maxY, 0);
+        mSize += load.size;
+    }
+
+    private void addAll(BulkLoad load, int from, int to, int quad,
+                        double minX, double maxX, double minY, double maxY, int depth) {
+        if (from == to) {
+            return;
+        }
+        for (int i = from; i < to; i++) {
+            accumulate(quad, 1, load.weights[i], load.xs[i], load.ys[i]);
+        }
+        if (mFirstChild[quad] == NO_CHILDREN) {
+            if (mCount[quad] + to - from <= mMaxElements || depth >= mMaxDepth
+                    || isBucket(load, from, to, quad, minX, maxX, minY, maxY, depth)) {
+                for (int i = from; i < to; i++) {
+                    append(quad, load.xs[i], load.ys[i], load.weights[i], load.items[i]);
+                }
+                return;
+            }
+            split(quad, minX, maxX, minY, maxY, depth);
+        }
+        double midX = (minX + maxX) / 2;
+        double midY = (minY + maxY) / 2;
+        int[] ends = new int[4];
+        load.partition(from, to, midX, midY, ends);
+        int firstChild = mFirstChild[quad];
+        addAll(load, from, ends[0], firstChild, minX, midX, minY, midY, depth + 1);
+        addAll(load, ends[0], ends[1], firstChild + 1, midX, maxX, minY, midY, depth + 1);
+        addAll(load, ends[1], ends[2], firstChild + 2, minX, midX, midY, maxY, depth + 1);
+        addAll(load, ends[2], ends[3], firstChild + 3, midX, maxX, midY, maxY, depth + 1);
+    }
+
+    /**
+     * Whether all items in a leaf are too close together for any split down to the maximum depth
+     * to separate them, in which case the leaf is kept whole.
+     */
+    private boolean isBucket(int quad, double minX, double maxX, double minY, double maxY, int depth) {
+        int first = mSliceStart[quad];
+        for (int i = first + 1; i < first + mCount[quad]; i++) {
+            if (!BulkLoad.isInseparable(mXs[first], mYs[first], mXs[i], mYs[i],
+                    minX, maxX, minY, maxY, depth, mMaxDepth)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether a leaf would be a bucket once the given run of items is added to it.
+     */
+    private boolean isBucket(BulkLoad load, int from, int to, int quad,
+                             double minX, double maxX, double minY, double maxY, int depth) {
+        if (!isBucket(quad, minX, maxX, minY, maxY, depth)) {
+            return false;
+        }
+        double x = mCount[quad] > 0 ? mXs[mSliceStart[quad]] : load.xs[from];
+        double y = mCount[quad] > 0 ? mYs[mSliceStart[quad]] : load.ys[from];
+        for (int i = from; i < to; i++) {
+            if (!BulkLoad.isInseparable(x, y, load.xs[i], load.ys[i], minX, maxX, minY, maxY, depth, mMaxDepth)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds (or, with a negative count and weight, removes) items to a quad's aggregates.
+     */
+    private void accumulate(int quad, int count, double weight, double x, double y) {
+        mTotalCount[quad] += count;
+        mWeightSum[quad] += weight;
+        mWeightedXSum[quad] += weight * x;
+        mWeightedYSum[quad] += weight * y;
+    }
+
+    private void append(int quad, double x, double y, double weight, Object item) {
+        int count = mCount[quad];
+        if (count == mSliceLength[quad]) {
+            int oldStart = mSliceStart[quad];
+            int oldLength = mSliceLength[quad];
+            int newStart = allocateSlice(oldLength * 2);
+            System.arraycopy(mXs, oldStart, mXs, newStart, count);
+            System.arraycopy(mYs, oldStart, mYs, newStart, count);
+            System.arraycopy(mWeights, oldStart, mWeights, newStart, count);
+            System.arraycopy(mItems, oldStart, mItems, newStart, count);
+            releaseSlice(oldStart, oldLength);
+            mSliceStart[quad] = newStart;
+            mSliceLength[quad] = oldLength * 2;
+        }
+        int slot = mSliceStart[quad] + count;
+        mXs[slot] = x;
+        mYs[slot] = y;
+        mWeights[slot] = weight;
+        mItems[slot] = item;
+        mCount[quad] = count + 1;
+    }
+
+    /**
+     * Split a leaf quad, moving its slice into four freshly allocated child slices.
+     */
+    private void split(int quad, double minX, double maxX, double minY, double maxY, int depth) {
+        double midX = (minX + maxX) / 2;
+        double midY = (minY + maxY) / 2;
+        int start = mSliceStart[quad];
+        int count = mCount[quad];
+
+        int[] childCounts = new int[4];
+        for (int i = start; i < start + count; i++) {
+            childCounts[BulkLoad.childIndex(mXs[i], mYs[i], midX, midY)]++;
+        }
+
+        // newLeaf may grow the quad columns, so allocate before caching anything else.
+        int firstChild = newLeaf(sliceLengthFor(childCounts[0]));
+        newLeaf(sliceLengthFor(childCounts[1]));
+        newLeaf(sliceLengthFor(childCounts[2]));
+        newLeaf(sliceLengthFor(childCounts[3]));
+
+        for (int i = start; i < start + count; i++) {
+            int child = firstChild + BulkLoad.childIndex(mXs[i], mYs[i], midX, midY);
+            int slot = mSliceStart[child] + mCount[child]++;
+            mXs[slot] = mXs[i];
+            mYs[slot] = mYs[i];
+            mWeights[slot] = mWeights[i];
+            mItems[slot] = mItems[i];
+            accumulate(child, 1, mWeights[i], mXs[i], mYs[i]);
+        }
+        Arrays.fill(mItems, start, start + count, null);
+        releaseSlice(start, mSliceLength[quad]);
+        mFirstChild[quad] = firstChild;
+        mSliceLength[quad] = 0;
+        mCount[quad] = 0;
+
+        // All items may have landed in the same child.
+        for (int child = 0; child < 4; child++) {
+            double childMinX = (child & 1) == 0 ? minX : midX;
+            double childMaxX = (child & 1) == 0 ? midX : maxX;
+            double childMinY = (child & 2) == 0 ? minY : midY;
+            double childMaxY = (child & 2) == 0 ? midY : maxY;
+            if (mCount[firstChild + child] > mMaxElements && depth + 1 < mMaxDepth
+                    && !isBucket(firstChild + child, childMinX, childMaxX, childMinY, childMaxY, depth + 1)) {
+                split(firstChild + child, childMinX, childMaxX, childMinY, childMaxY, depth + 1);
+            }
+        }
+    }
+
+    private static int sliceLengthFor(int count) {
+        int length = MIN_SLICE;
+        while (length < count) {
+            length <<= 1;
+        }
+        return length;
+    }
+
+    private int newLeaf(int sliceLength) {
+        if (mQuadCount == mFirstChild.length) {
+            int capacity = mQuadCount * 2;
+            mFirstChild = Arrays.copyOf(mFirstChild, capacity);
+            mSliceStart = Arrays.copyOf(mSliceStart, capacity);
+            mSliceLength = Arrays.copyOf(mSliceLength, capacity);
+            mCount = Arrays.copyOf(mCount, capacity);
+            mTotalCount = Arrays.copyOf(mTotalCount, capacity);
+            mWeightSum = Arrays.copyOf(mWeightSum, capacity);
+            mWeightedXSum = Arrays.copyOf(mWeightedXSum, capacity);
+            mWeightedYSum = Arrays.copyOf(mWeightedYSum, capacity);
+        }
+        int quad = mQuadCount++;
+        mFirstChild[quad] = NO_CHILDREN;
+        mSliceStart[quad] = allocateSlice(sliceLength);
+        mSliceLength[quad] = sliceLength;
+        mCount[quad] = 0;
+        mTotalCount[quad] = 0;
+        mWeightSum[quad] = 0;
+        mWeightedXSum[quad] = 0;
+        mWeightedYSum[quad] = 0;
+        return quad;
+    }
+
+    private int allocateSlice(int length) {
+        int bucket = Integer.numberOfTrailingZeros(length);
+        if (mFreeSliceCount[bucket] > 0) {
+            return mFreeSlices[bucket][--mFreeSliceCount[bucket]];
+        }
+        int start = mSlotCount;
+        if (start + length > mXs.length) {
+            int capacity = Math.max(mXs.length * 2, start + length);
+            mXs = Arrays.copyOf(mXs, capacity);
+            mYs = Arrays.copyOf(mYs, capacity);
+            mWeights = Arrays.copyOf(mWeights, capacity);
+            mItems = Arrays.copyOf(mItems, capacity);
+        }
+        mSlotCount += length;
+        return start;
+    }
+
+    private void releaseSlice(int start, int length) {
+        int bucket = Integer.numberOfTrailingZeros(length);
+        int[] free = mFreeSlices[bucket];
+        if (free == null) {
+            free = mFreeSlices[bucket] = new int[8];
+        } else if (mFreeSliceCount[bucket] == free.length) {
+            free = mFreeSlices[bucket] = Arrays.copyOf(free, free.length * 2);
+        }
+        free[mFreeSliceCount[bucket]++] = start;
+    }
+
+    /**
+     * Remove the given item from the set.
+     *
+     * @return whether the item was removed.
+     */
+    public boolean remove(T item) {
+        Point point = item.getPoint();
+        if (!mBounds.contains(point.x, point.y)) {
+            return false;
+        }
+        int quad = leafFor(point.x, point.y, 0, 0);
+        int start = mSliceStart[quad];
+        int end = start + mCount[quad];
+        for (int i = start; i < end; i++) {
+            if (item.equals(mItems[i])) {
+                // Walk the path again, this time taking the item out of each quad's aggregates.
+                leafFor(mXs[i], mYs[i], mWeights[i], -1);
+                // Shift the tail down to keep insertion order within the leaf.
+                int tail = end - i - 1;
+                System.arraycopy(mXs, i + 1, mXs, i, tail);
+                System.arraycopy(mYs, i + 1, mYs, i, tail);
+                System.arraycopy(mWeights, i + 1, mWeights, i, tail);
+                System.arraycopy(mItems, i + 1, mItems, i, tail);
+                mItems[end - 1] = null;
+                mCount[quad]--;
+                mSize--;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Finds the leaf a point is routed to, optionally adding {@code count} items of the given
+     * weight to the aggregates of every quad on the way.
+     */
+    private int leafFor(double x, double y, double weight, int count) {
+        double minX = mBounds.minX;
+        double maxX = mBounds.maxX;
+        double minY = mBounds.minY;
+        double maxY = mBounds.maxY;
+        int quad = 0;
+        while (true) {
+            if (count != 0) {
+                accumulate(quad, count, count * weight, x, y);
+            }
+            if (mFirstChild[quad] == NO_CHILDREN) {
+                return quad;
+            }
+            double midX = (minX + maxX) / 2;
+            double midY = (minY + maxY) / 2;
+            int child = BulkLoad.childIndex(x, y, midX, midY);
+            if ((child & 1) == 0) {
+                maxX = midX;
+            } else {
+                minX = midX;
+            }
+            if ((child & 2) == 0) {
+                maxY = midY;
+            } else {
+                minY = midY;
+            }
+            quad = mFirstChild[quad] + child;
+        }
+    }
+
+    /**
+     * Removes all points from the quadTree
+     */
+    public void clear() {
+        Arrays.fill(mItems, 0, mSlotCount, null);
+        reset();
+    }
+
+    /**
+     * @return the number of items in the tree.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @return the number of quads in the tree, which is what a search has to walk.
+     */
+    public int getQuadCount() {
+        return mQuadCount;
+    }
+
+    /**
+     * Search for all items within a given bounds.
+     */
+    public Collection<T> search(Bounds searchBounds) {
+        final List<T> results = new ArrayList<T>();
+        search(searchBounds.minX, searchBounds.maxX, searchBounds.minY, searchBounds.maxY, results);
+        return results;
+    }
+
+    /**
+     * Search for all items within the given bounds, adding them to a caller-owned collection.
+     * The collection is not cleared first, so it can be reused across searches without
+     * allocating.
+     */
+    public void search(double minX, double maxX, double minY, double maxY, final Collection<? super T> results) {
+        search(minX, maxX, minY, maxY, new PointQuadTree.Visitor<T>() {
+            @Override
+            public void visit(T item) {
+                results.add(item);
+            }
+        });
+    }
+
+    /**
+     * Search for all items within the given bounds, passing each one to the visitor instead of
+     * collecting them.
+     */
+    public void search(double minX, double maxX, double minY, double maxY,
+                       PointQuadTree.Visitor<? super T> visitor) {
+        search(0, mBounds.minX, mBounds.maxX, mBounds.minY, mBounds.maxY,
+                minX, maxX, Double.NaN, Double.NaN, minY, maxY, visitor);
+    }
+
+    /**
+     * Search for all items within the given bounds on a world that wraps around in x every
+     * {@code worldWidth}, as {@link PointQuadTree#searchWrapped} does.
+     */
+    public void searchWrapped(double minX, double maxX, double minY, double maxY, double worldWidth,
+                              final Collection<? super T> results) {
+        searchWrapped(minX, maxX, minY, maxY, worldWidth, new PointQuadTree.Visitor<T>() {
+            @Override
+            public void visit(T item) {
+                results.add(item);
+            }
+        });
+    }
+
+    /**
+     * Search for all items within the given bounds on a world that wraps around in x every
+     * {@code worldWidth}, passing each one to the visitor.
+     */
+    public void searchWrapped(double minX, double maxX, double minY, double maxY, double worldWidth,
+                              PointQuadTree.Visitor<? super T> visitor) {
+        if (maxX - minX >= worldWidth) {
+            search(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, minY, maxY, visitor);
+            return;
+        }
+        double shift = Math.floor((minX - mBounds.minX) / worldWidth) * worldWidth;
+        search(0, mBounds.minX, mBounds.maxX, mBounds.minY, mBounds.maxY,
+                minX - shift, maxX - shift, minX - shift - worldWidth, maxX - shift - worldWidth,
+                minY, maxY, visitor);
+    }
+
+    /**
+     * Searches the union of two x ranges, each item being visited at most once. An unused range
+     * is NaN, which no comparison matches.
+     */
+    @SuppressWarnings("unchecked")
+    private void search(int quad, double quadMinX, double quadMaxX, double quadMinY, double quadMaxY,
+                        double minX, double maxX, double wrappedMinX, double wrappedMaxX,
+                        double minY, double maxY, PointQuadTree.Visitor<? super T> visitor) {
+        if (!(minY < quadMaxY && quadMinY < maxY
+                && (minX < quadMaxX && quadMinX < maxX || wrappedMinX < quadMaxX && quadMinX < wrappedMaxX))) {
+            return;
+        }
+
+        int firstChild = mFirstChild[quad];
+        if (firstChild != NO_CHILDREN) {
+            double midX = (quadMinX + quadMaxX) / 2;
+            double midY = (quadMinY + quadMaxY) / 2;
+            search(firstChild, quadMinX, midX, quadMinY, midY,
+                    minX, maxX, wrappedMinX, wrappedMaxX, minY, maxY, visitor);
+            search(firstChild + 1, midX, quadMaxX, quadMinY, midY,
+                    minX, maxX, wrappedMinX, wrappedMaxX, minY, maxY, visitor);
+            search(firstChild + 2, quadMinX, midX, midY, quadMaxY,
+                    minX, maxX, wrappedMinX, wrappedMaxX, minY, maxY, visitor);
+            search(firstChild + 3, midX, quadMaxX, midY, quadMaxY,
+                    minX, maxX, wrappedMinX, wrappedMaxX, minY, maxY, visitor);
+            return;
+        }
+
+        int start = mSliceStart[quad];
+        int end = start + mCount[quad];
+        boolean covered = minY <= quadMinY && quadMaxY <= maxY
+                && (minX <= quadMinX && quadMaxX <= maxX || wrappedMinX <= quadMinX && quadMaxX <= wrappedMaxX);
+        for (int i = start; i < end; i++) {
+            double x = mXs[i];
+            if (covered || (minY <= mYs[i] && mYs[i] <= maxY
+                    && (minX <= x && x <= maxX || wrappedMinX <= x && x <= wrappedMaxX))) {
+                visitor.visit((T) mItems[i]);
+            }
+        }
+    }
+
+    /**
+     * @return the number of items within the given bounds.
+     */
+    public int count(double minX, double maxX, double minY, double maxY) {
+        return count(0, mBounds.minX, mBounds.maxX, mBounds.minY, mBounds.maxY,
+                minX, maxX, Double.NaN, Double.NaN, minY, maxY);
+    }
+
+    /**
+     * @return the number of items within the given bounds on a world that wraps around in x every
+     * {@code worldWidth}.
+     */
+    public int countWrapped(double minX, double maxX, double minY, double maxY, double worldWidth) {
+        if (maxX - minX >= worldWidth) {
+            return count(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, minY, maxY);
+        }
+        double shift = Math.floor((minX - mBounds.minX) / worldWidth) * worldWidth;
+        return count(0, mBounds.minX, mBounds.maxX, mBounds.minY, mBounds.maxY,
+                minX - shift, maxX - shift, minX - shift - worldWidth, maxX - shift - worldWidth,
+                minY, maxY);
+    }
+
+    private int count(int quad, double quadMinX, double quadMaxX, double quadMinY, double quadMaxY,
+                      double minX, double maxX, double wrappedMinX, double wrappedMaxX,
+                      double minY, double maxY) {
+        if (!(minY < quadMaxY && quadMinY < maxY
+                && (minX < quadMaxX && quadMinX < maxX || wrappedMinX < quadMaxX && quadMinX < wrappedMaxX))) {
+            return 0;
+        }
+        if (minY <= quadMinY && quadMaxY <= maxY
+                && (minX <= quadMinX && quadMaxX <= maxX || wrappedMinX <= quadMinX && quadMaxX <= wrappedMaxX)) {
+            return mTotalCount[quad];
+        }
+
+        int firstChild = mFirstChild[quad];
+        if (firstChild != NO_CHILDREN) {
+            double midX = (quadMinX + quadMaxX) / 2;
+            double midY = (quadMinY + quadMaxY) / 2;
+            return count(firstChild, quadMinX, midX, quadMinY, midY,
+                    minX, maxX, wrappedMinX, wrappedMaxX, minY, maxY)
+                    + count(firstChild + 1, midX, quadMaxX, quadMinY, midY,
+                    minX, maxX, wrappedMinX, wrappedMaxX, minY, maxY)
+                    + count(firstChild + 2, quadMinX, midX, midY, quadMaxY,
+                    minX, maxX, wrappedMinX, wrappedMaxX, minY, maxY)
+                    + count(firstChild + 3, midX, quadMaxX, midY, quadMaxY,
+                    minX, maxX, wrappedMinX, wrappedMaxX, minY, maxY);
+        }
+
+        int start = mSliceStart[quad];
+        int end = start + mCount[quad];
+        int count = 0;
+        for (int i = start; i < end; i++) {
+            double x = mXs[i];
+            if (minY <= mYs[i] && mYs[i] <= maxY
+                    && (minX <= x && x <= maxX || wrappedMinX <= x && x <= wrappedMaxX)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Adds the count, weight and weighted centroid of the items within the given bounds to
+     * {@code result}. Quads fully inside the bounds are answered from their stored aggregates.
+     */
+    public void aggregate(double minX, double maxX, double minY, double maxY, Aggregate result) {
+        aggregate(0, mBounds.minX, mBounds.maxX, mBounds.minY, mBounds.maxY, minX, maxX, minY, maxY, result);
+    }
+
+    private void aggregate(int quad, double quadMinX, double quadMaxX, double quadMinY, double quadMaxY,
+                           double minX, double maxX, double minY, double maxY, Aggregate result) {
+        if (!(minX < quadMaxX && quadMinX < maxX && minY < quadMaxY && quadMinY < maxY)) {
+            return;
+        }
+        if (minX <= quadMinX && quadMaxX <= maxX && minY <= quadMinY && quadMaxY <= maxY) {
+            result.add(mTotalCount[quad], mWeightSum[quad], mWeightedXSum[quad], mWeightedYSum[quad]);
+            return;
+        }
+
+        int firstChild = mFirstChild[quad];
+        if (firstChild != NO_CHILDREN) {
+            double midX = (quadMinX + quadMaxX) / 2;
+            double midY = (quadMinY + quadMaxY) / 2;
+            aggregate(firstChild, quadMinX, midX, quadMinY, midY, minX, maxX, minY, maxY, result);
+            aggregate(firstChild + 1, midX, quadMaxX, quadMinY, midY, minX, maxX, minY, maxY, result);
+            aggregate(firstChild + 2, quadMinX, midX, midY, quadMaxY, minX, maxX, minY, maxY, result);
+            aggregate(firstChild + 3, midX, quadMaxX, midY, quadMaxY, minX, maxX, minY, maxY, result);
+            return;
+        }
+
+        int start = mSliceStart[quad];
+        int end = start + mCount[quad];
+        for (int i = start; i < end; i++) {
+            if (minX <= mXs[i] && mXs[i] <= maxX && minY <= mYs[i] && mYs[i] <= maxY) {
+                double weight = mWeights[i];
+                result.add(1, weight, weight * mXs[i], weight * mYs[i]);
+            }
+        }
+    }
+
+    /**
+     * Visits the tree top-down, letting the visitor take a whole quad's aggregates at once instead
+     * of descending into it.
+     */
+    public void visitAggregates(AggregateVisitor visitor) {
+        visitAggregates(0, mBounds.minX, mBounds.maxX, mBounds.minY, mBounds.maxY, visitor);
+    }
+
+    private void visitAggregates(int quad, double minX, double maxX, double minY, double maxY,
+                                 AggregateVisitor visitor) {
+        if (mTotalCount[quad] == 0
+                || visitor.visitQuad(minX, maxX, minY, maxY, mTotalCount[quad], mWeightSum[quad])) {
+            return;
+        }
+
+        int firstChild = mFirstChild[quad];
+        if (firstChild != NO_CHILDREN) {
+            double midX = (minX + maxX) / 2;
+            double midY = (minY + maxY) / 2;
+            visitAggregates(firstChild, minX, midX, minY, midY, visitor);
+            visitAggregates(firstChild + 1, midX, maxX, minY, midY, visitor);
+            visitAggregates(firstChild + 2, minX, midX, midY, maxY, visitor);
+            visitAggregates(firstChild + 3, midX, maxX, midY, maxY, visitor);
+            return;
+        }
+
+        int start = mSliceStart[quad];
+        int end = start + mCount[quad];
+        for (int i = start; i < end; i++) {
+            visitor.visitPoint(mXs[i], mYs[i], mWeights[i]);
+        }
+    }
+
+    /**
+     * Receives quads, and the points of quads it declines, from {@link #visitAggregates}.
+     */
+    public interface AggregateVisitor {
+        /**
+         * @return true to take the quad as a whole, or false to descend into it.
+         */
+        boolean visitQuad(double minX, double maxX, double minY, double maxY, int count, double weight);
+
+        void visitPoint(double x, double y, double weight);
+    }
+
+    /**
+     * Running totals for {@link #aggregate}. Can be {@link #reset} and reused across queries.
+     */
+    public static class Aggregate {
+        private int mCount;
+        private double mWeight;
+        private double mWeightedXSum;
+        private double mWeightedYSum;
+
+        private void add(int count, double weight, double weightedX, double weightedY) {
+            mCount += count;
+            mWeight += weight;
+            mWeightedXSum += weightedX;
+            mWeightedYSum += weightedY;
+        }
+
+        public void reset() {
+            mCount = 0;
+            mWeight = 0;
+            mWeightedXSum = 0;
+            mWeightedYSum = 0;
+        }
+
+        public int getCount() {
+            return mCount;
+        }
+
+        public double getWeight() {
+            return mWeight;
+        }
+
+        /**
+         * @return the weighted centroid, or null if the total weight is zero.
+         */
+        public Point getCentroid() {
+            if (mWeight == 0) {
+                return null;
+            }
+            return new Point(mWeightedXSum / mWeight, mWeightedYSum / mWeight);
+        }
+    }
+}
@@ -16,25 +16,46 @@
 
 package org.trd.maps.quadtree;
 
+import com.huawei.hms.maps.model.LatLng;
+
+import org.trd.maps.PolyUtil;
 import org.trd.maps.geometry.Bounds;
 import org.trd.maps.geometry.Point;
+import org.trd.maps.projection.SphericalMercatorProjection;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.PriorityQueue;
 import java.util.Set;
 
 /**
  * A quad tree which tracks items with a Point geometry.
  * See http://en.wikipedia.org/wiki/Quadtree for details on the data structure.
- * This class is not thread safe.
+ * This class is not thread safe, but {@link #snapshot} provides an immutable view that can be read
+ * from other threads while this tree continues to be modified.
  */
 public class PointQuadTree<T extends PointQuadTree.Item> {
     public interface Item {
         Point getPoint();
     }
 
+    /**
+     * An item that contributes a weight to aggregating trees such as {@link PackedPointQuadTree}.
+     */
+    public interface WeightedItem extends Item {
+        double getWeight();
+    }
+
+    /**
+     * Receives the items found by a search, as they are found.
+     */
+    public interface Visitor<T> {
+        void visit(T item);
+    }
+
     /**
      * The bounds of this quad.
      */
@@ -46,25 +67,54 @@ public class PointQuadTree<T extends PointQuadTree.Item> {
     private final int mDepth;
 
     /**
-     * Maximum number of elements to store in a quad before splitting.
+     * Default maximum number of elements to store in a quad before splitting.
      */
-    private final static int MAX_ELEMENTS = 50;
+    public final static int DEFAULT_MAX_ELEMENTS = 50;
 
     /**
-     * The elements inside this quad, if any.
+     * Default maximum depth.
      */
-    private Set<T> mItems;
+    public final static int DEFAULT_MAX_DEPTH = 40;
+
+    /**
+     * Maximum number of elements to store in a quad before splitting. A quad whose elements are
+     * all too close together to be separated by splitting down to the maximum depth is kept as a
+     * single bucket instead, however many elements it holds.
+     */
+    private final int mMaxElements;
 
     /**
      * Maximum depth.
      */
-    private final static int MAX_DEPTH = 40;
+    private final int mMaxDepth;
+
+    /**
+     * The elements inside this quad, if any.
+     */
+    private Set<T> mItems;
 
     /**
      * Child quads.
      */
     private List<PointQuadTree<T>> mChildren = null;
 
+    /**
+     * The generation in which this quad's items and children were last copied. A quad from an
+     * older generation than the tree's is shared with a snapshot, and is copied before it is
+     * modified.
+     */
+    private int mGeneration;
+
+    /**
+     * The tree's current generation, incremented by each snapshot. Only used on the root.
+     */
+    private int mTreeGeneration;
+
+    /**
+     * Whether this is the root of a snapshot, which must not be modified.
+     */
+    private boolean mReadOnly;
+
     /**
      * Creates a new quad tree with specified bounds.
      *
@@ -78,16 +128,36 @@ public class PointQuadTree<T extends PointQuadTree.Item> {
     }
 
     public PointQuadTree(Bounds bounds) {
-        this(bounds, 0);
+        this(bounds, DEFAULT_MAX_ELEMENTS, DEFAULT_MAX_DEPTH);
     }
 
-    private PointQuadTree(double minX, double maxX, double minY, double maxY, int depth) {
-        this(new Bounds(minX, maxX, minY, maxY), depth);
+    /**
+     * Creates a new quad tree with specified bounds, splitting quads that hold more than
+     * {@code maxElements} items until they reach {@code maxDepth}.
+     */
+    public PointQuadTree(double minX, double maxX, double minY, double maxY, int maxElements, int maxDepth) {
+        this(new Bounds(minX, maxX, minY, maxY), maxElements, maxDepth);
+    }
+
+    public PointQuadTree(Bounds bounds, int maxElements, int maxDepth) {
+        this(bounds, 0, maxElements, maxDepth);
+        if (maxElements < 1) {
+            throw new IllegalArgumentException("maxElements must be at least 1");
+        }
+        if (maxDepth < 0) {
+            throw new IllegalArgumentException("maxDepth must not be negative");
+        }
     }
 
-    private PointQuadTree(Bounds bounds, int depth) {
+    private PointQuadTree(double minX, double maxX, double minY, double maxY, int depth, int maxElements, int maxDepth) {
+        this(new Bounds(minX, maxX, minY, maxY), depth, maxElements, maxDepth);
+    }
+
+    private PointQuadTree(Bounds bounds, int depth, int maxElements, int maxDepth) {
         mBounds = bounds;
         mDepth = depth;
+        mMaxElements = maxElements;
+        mMaxDepth = maxDepth;
     }
 
     /**
@@ -96,23 +166,24 @@ public class PointQuadTree<T extends PointQuadTree.Item> {
     public void add(T item) {
         Point point = item.getPoint();
         if (this.mBounds.contains(point.x, point.y)) {
-            insert(point.x, point.y, item);
+            prepareWrite();
+            insert(point.x, point.y, item, mTreeGeneration);
         }
     }
 
-    private void insert(double x, double y, T item) {
+    private void insert(double x, double y, T item, int generation) {
         if (this.mChildren != null) {
             if (y < mBounds.midY) {
                 if (x < mBounds.midX) { // top left
-                    mChildren.get(0).insert(x, y, item);
+                    writableChild(0, generation).insert(x, y, item, generation);
                 } else { // top right
-                    mChildren.get(1).insert(x, y, item);
+                    writableChild(1, generation).insert(x, y, item, generation);
                 }
             } else {
                 if (x < mBounds.midX) { // bottom left
-                    mChildren.get(2).insert(x, y, item);
+                    writableChild(2, generation).insert(x, y, item, generation);
                 } else {
-                    mChildren.get(3).insert(x, y, item);
+                    writableChild(3, generation).insert(x, y, item, generation);
                 }
             }
             return;
@@ -121,27 +192,188 @@ public class PointQuadTree<T extends PointQuadTree.Item> {
             mItems = new LinkedHashSet<>();
         }
         mItems.add(item);
-        if (mItems.size() > MAX_ELEMENTS && mDepth < MAX_DEPTH) {
-            split();
+        if (mItems.size() > mMaxElements && mDepth < mMaxDepth && !isBucket(x, y)) {
+            split(generation);
+        }
+    }
+
+    /**
+     * Whether this leaf, which has just gone over the maximum number of elements by gaining a
+     * point at (x, y), holds only points that no split down to the maximum depth could separate.
+     * Such points (typically at identical coordinates) are kept together in one leaf, rather than
+     * splitting all the way down to the maximum depth.
+     */
+    private boolean isBucket(double x, double y) {
+        Iterator<T> iterator = mItems.iterator();
+        Point first = iterator.next().getPoint();
+        if (mItems.size() > mMaxElements + 1) {
+            // Already a bucket before this point was added.
+            return isInseparable(first.x, first.y, x, y);
+        }
+        while (iterator.hasNext()) {
+            Point point = iterator.next().getPoint();
+            if (!isInseparable(first.x, first.y, point.x, point.y)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isInseparable(double x1, double y1, double x2, double y2) {
+        return BulkLoad.isInseparable(x1, y1, x2, y2,
+                mBounds.minX, mBounds.maxX, mBounds.minY, mBounds.maxY, mDepth, mMaxDepth);
+    }
+
+    /**
+     * Insert many items at once. This is equivalent to calling {@link #add} for each item, but
+     * items are routed a whole quad at a time and each leaf is split at most once.
+     */
+    public void addAll(Collection<? extends T> items) {
+        prepareWrite();
+        BulkLoad load = new BulkLoad(items, mBounds);
+        addAll(load, 0, load.size, mTreeGeneration);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void addAll(BulkLoad load, int from, int to, int generation) {
+        if (from == to) {
+            return;
+        }
+        if (mChildren == null) {
+            int existing = mItems == null ? 0 : mItems.size();
+            if (existing + to - from <= mMaxElements || mDepth >= mMaxDepth || isBucket(load, from, to)) {
+                if (mItems == null) {
+                    mItems = new LinkedHashSet<>();
+                }
+                for (int i = from; i < to; i++) {
+                    mItems.add((T) load.items[i]);
+                }
+                return;
+            }
+            if (mItems == null) {
+                mItems = new LinkedHashSet<>();
+            }
+            split(generation);
         }
+        int[] ends = new int[4];
+        load.partition(from, to, mBounds.midX, mBounds.midY, ends);
+        writableChild(0, generation).addAll(load, from, ends[0], generation);
+        writableChild(1, generation).addAll(load, ends[0], ends[1], generation);
+        writableChild(2, generation).addAll(load, ends[1], ends[2], generation);
+        writableChild(3, generation).addAll(load, ends[2], ends[3], generation);
+    }
+
+    /**
+     * Whether this leaf would be a bucket (see {@link #isBucket(double, double)}) once the given
+     * run of items is added to it.
+     */
+    private boolean isBucket(BulkLoad load, int from, int to) {
+        double x;
+        double y;
+        if (mItems != null && !mItems.isEmpty()) {
+            Point first = mItems.iterator().next().getPoint();
+            x = first.x;
+            y = first.y;
+            for (T item : mItems) {
+                Point point = item.getPoint();
+                if (!isInseparable(x, y, point.x, point.y)) {
+                    return false;
+                }
+            }
+        } else {
+            x = load.xs[from];
+            y = load.ys[from];
+        }
+        for (int i = from; i < to; i++) {
+            if (!isInseparable(x, y, load.xs[i], load.ys[i])) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
      * Split this quad.
      */
-    private void split() {
+    private void split(int generation) {
         mChildren = new ArrayList<PointQuadTree<T>>(4);
-        mChildren.add(new PointQuadTree<T>(mBounds.minX, mBounds.midX, mBounds.minY, mBounds.midY, mDepth + 1));
-        mChildren.add(new PointQuadTree<T>(mBounds.midX, mBounds.maxX, mBounds.minY, mBounds.midY, mDepth + 1));
-        mChildren.add(new PointQuadTree<T>(mBounds.minX, mBounds.midX, mBounds.midY, mBounds.maxY, mDepth + 1));
-        mChildren.add(new PointQuadTree<T>(mBounds.midX, mBounds.maxX, mBounds.midY, mBounds.maxY, mDepth + 1));
+        mChildren.add(new PointQuadTree<T>(mBounds.minX, mBounds.midX, mBounds.minY, mBounds.midY, mDepth + 1,
+                mMaxElements, mMaxDepth));
+        mChildren.add(new PointQuadTree<T>(mBounds.midX, mBounds.maxX, mBounds.minY, mBounds.midY, mDepth + 1,
+                mMaxElements, mMaxDepth));
+        mChildren.add(new PointQuadTree<T>(mBounds.minX, mBounds.midX, mBounds.midY, mBounds.maxY, mDepth + 1,
+                mMaxElements, mMaxDepth));
+        mChildren.add(new PointQuadTree<T>(mBounds.midX, mBounds.maxX, mBounds.midY, mBounds.maxY, mDepth + 1,
+                mMaxElements, mMaxDepth));
+        for (PointQuadTree<T> child : mChildren) {
+            child.mGeneration = generation;
+        }
 
         Set<T> items = mItems;
         mItems = null;
 
         for (T item : items) {
             // re-insert items into child quads.
-            insert(item.getPoint().x, item.getPoint().y, item);
+            insert(item.getPoint().x, item.getPoint().y, item, generation);
+        }
+    }
+
+    /**
+     * Returns an immutable view of the tree's current contents. Taking a snapshot is constant time;
+     * afterwards, each quad of this tree is copied the first time it is modified, so the snapshot
+     * is unaffected by later changes. Snapshots can be searched from any thread, provided they are
+     * handed over safely (e.g. through a lock or a volatile field).
+     */
+    public PointQuadTree<T> snapshot() {
+        if (mReadOnly) {
+            return this;
+        }
+        PointQuadTree<T> snapshot = new PointQuadTree<>(mBounds, mDepth, mMaxElements, mMaxDepth);
+        snapshot.mItems = mItems;
+        snapshot.mChildren = mChildren;
+        snapshot.mReadOnly = true;
+        // Every quad reachable from here now belongs to an older generation than the tree.
+        mTreeGeneration++;
+        return snapshot;
+    }
+
+    /**
+     * Makes the root's own items and children writable before a modification.
+     */
+    private void prepareWrite() {
+        if (mReadOnly) {
+            throw new UnsupportedOperationException("Snapshots cannot be modified");
+        }
+        if (mGeneration != mTreeGeneration) {
+            copyContents();
+            mGeneration = mTreeGeneration;
+        }
+    }
+
+    /**
+     * Returns the child at the given index, first replacing it with a copy if it is shared with a
+     * snapshot. This quad must already be writable.
+     */
+    private PointQuadTree<T> writableChild(int index, int generation) {
+        PointQuadTree<T> child = mChildren.get(index);
+        if (child.mGeneration != generation) {
+            PointQuadTree<T> copy = new PointQuadTree<>(child.mBounds, child.mDepth, mMaxElements, mMaxDepth);
+            copy.mItems = child.mItems;
+            copy.mChildren = child.mChildren;
+            copy.copyContents();
+            copy.mGeneration = generation;
+            mChildren.set(index, copy);
+            child = copy;
+        }
+        return child;
+    }
+
+    private void copyContents() {
+        if (mItems != null) {
+            mItems = new LinkedHashSet<>(mItems);
+        }
+        if (mChildren != null) {
+            mChildren = new ArrayList<>(mChildren);
         }
     }
 
@@ -153,27 +385,33 @@ public class PointQuadTree<T extends PointQuadTree.Item> {
     public boolean remove(T item) {
         Point point = item.getPoint();
         if (this.mBounds.contains(point.x, point.y)) {
-            return remove(point.x, point.y, item);
+            prepareWrite();
+            return remove(point.x, point.y, item, mTreeGeneration);
         } else {
             return false;
         }
     }
 
-    private boolean remove(double x, double y, T item) {
+    private boolean remove(double x, double y, T item, int generation) {
         if (this.mChildren != null) {
+            boolean removed;
             if (y < mBounds.midY) {
                 if (x < mBounds.midX) { // top left
-                    return mChildren.get(0).remove(x, y, item);
+                    removed = writableChild(0, generation).remove(x, y, item, generation);
                 } else { // top right
-                    return mChildren.get(1).remove(x, y, item);
+                    removed = writableChild(1, generation).remove(x, y, item, generation);
                 }
             } else {
                 if (x < mBounds.midX) { // bottom left
-                    return mChildren.get(2).remove(x, y, item);
+                    removed = writableChild(2, generation).remove(x, y, item, generation);
                 } else {
-                    return mChildren.get(3).remove(x, y, item);
+                    removed = writableChild(3, generation).remove(x, y, item, generation);
                 }
             }
+            if (removed) {
+                mergeChildren();
+            }
+            return removed;
         } else {
             if (mItems == null) {
                 return false;
@@ -183,10 +421,130 @@ public class PointQuadTree<T extends PointQuadTree.Item> {
         }
     }
 
+    /**
+     * Collapses the children back into this quad once they are all leaves and hold few enough
+     * items between them. Merging as the tree empties cascades upwards, as each quad on the path
+     * of a removal checks its children on the way back up.
+     */
+    private void mergeChildren() {
+        int count = 0;
+        for (PointQuadTree<T> child : mChildren) {
+            if (child.mChildren != null) {
+                return;
+            }
+            if (child.mItems != null) {
+                count += child.mItems.size();
+            }
+        }
+        // Merge well below the split threshold, so that a quad doesn't repeatedly split and merge
+        // as items come and go around it.
+        if (count > mMaxElements / 2) {
+            return;
+        }
+        Set<T> items = null;
+        if (count > 0) {
+            items = new LinkedHashSet<>();
+            for (PointQuadTree<T> child : mChildren) {
+                if (child.mItems != null) {
+                    items.addAll(child.mItems);
+                }
+            }
+        }
+        mChildren = null;
+        mItems = items;
+    }
+
+    /**
+     * Rebuilds the tree from its current items, leaving it in the same shape as a freshly built
+     * tree. Removals already merge underfull quads, but leave split any quad that still holds
+     * between half and all of the maximum number of elements, which a fresh build would not.
+     */
+    public void compact() {
+        prepareWrite();
+        List<T> items = new ArrayList<>();
+        collect(items);
+        mChildren = null;
+        mItems = null;
+        addAll(items);
+    }
+
+    private void collect(List<T> items) {
+        if (this.mChildren != null) {
+            for (PointQuadTree<T> quad : mChildren) {
+                quad.collect(items);
+            }
+        } else if (mItems != null) {
+            items.addAll(mItems);
+        }
+    }
+
+    /**
+     * Returns the number of quads in the tree, which is what a search has to walk.
+     */
+    public int getQuadCount() {
+        int count = 1;
+        if (this.mChildren != null) {
+            for (PointQuadTree<T> quad : mChildren) {
+                count += quad.getQuadCount();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Replaces an item with another, usually the same item at a new point. This is cheaper than
+     * {@link #remove} followed by {@link #add}: the tree is walked once, and when both points fall
+     * in the same leaf the item is swapped in place.
+     *
+     * @param item  the item to replace, located by its point
+     * @param moved the replacement, located by its point; ignored if outside the tree's bounds
+     * @return whether the item was in the tree. If not, the tree is unchanged.
+     */
+    public boolean move(T item, T moved) {
+        Point from = item.getPoint();
+        Point to = moved.getPoint();
+        if (!this.mBounds.contains(to.x, to.y)) {
+            return remove(item);
+        }
+        if (!this.mBounds.contains(from.x, from.y)) {
+            return false;
+        }
+        prepareWrite();
+        return move(from.x, from.y, item, to.x, to.y, moved, mTreeGeneration);
+    }
+
+    private boolean move(double x, double y, T item, double newX, double newY, T moved, int generation) {
+        if (this.mChildren != null) {
+            int from = BulkLoad.childIndex(x, y, mBounds.midX, mBounds.midY);
+            int to = BulkLoad.childIndex(newX, newY, mBounds.midX, mBounds.midY);
+            if (from == to) {
+                return writableChild(from, generation).move(x, y, item, newX, newY, moved, generation);
+            }
+            // The points part ways here.
+            if (!writableChild(from, generation).remove(x, y, item, generation)) {
+                return false;
+            }
+            writableChild(to, generation).insert(newX, newY, moved, generation);
+            // The removal may have merged the child into a leaf, as in remove.
+            mergeChildren();
+            return true;
+        }
+        if (mItems == null || !mItems.remove(item)) {
+            return false;
+        }
+        mItems.add(moved);
+        if (mItems.size() > mMaxElements && mDepth < mMaxDepth && !isBucket(newX, newY)) {
+            // The moved item no longer belongs with the rest of this bucket.
+            split(generation);
+        }
+        return true;
+    }
+
     /**
      * Removes all points from the quadTree
      */
     public void clear() {
+        prepareWrite();
         mChildren = null;
         if (mItems != null) {
             mItems.clear();
@@ -198,29 +556,386 @@ public class PointQuadTree<T extends PointQuadTree.Item> {
      */
     public Collection<T> search(Bounds searchBounds) {
         final List<T> results = new ArrayList<T>();
-        search(searchBounds, results);
+        search(searchBounds.minX, searchBounds.maxX, searchBounds.minY, searchBounds.maxY, results);
         return results;
     }
 
-    private void search(Bounds searchBounds, Collection<T> results) {
-        if (!mBounds.intersects(searchBounds)) {
+    /**
+     * Search for all items within the given bounds, adding them to a caller-owned collection.
+     * The collection is not cleared first, so it can be reused across searches without
+     * allocating.
+     */
+    public void search(double minX, double maxX, double minY, double maxY, Collection<? super T> results) {
+        search(minX, maxX, Double.NaN, Double.NaN, minY, maxY, results);
+    }
+
+    /**
+     * Search for all items within the given bounds, passing each one to the visitor instead of
+     * collecting them.
+     */
+    public void search(double minX, double maxX, double minY, double maxY, Visitor<? super T> visitor) {
+        search(minX, maxX, Double.NaN, Double.NaN, minY, maxY, visitor);
+    }
+
+    /**
+     * Search for all items within the given bounds on a world that wraps around in x every
+     * {@code worldWidth}, such as a map crossing the antimeridian. The bounds may extend past
+     * either side of the tree, and are searched in a single pass that finds each item once.
+     * The tree's own x extent must be no wider than {@code worldWidth}.
+     */
+    public void searchWrapped(double minX, double maxX, double minY, double maxY, double worldWidth,
+                              Collection<? super T> results) {
+        if (maxX - minX >= worldWidth) {
+            search(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, minY, maxY, results);
+            return;
+        }
+        double shift = Math.floor((minX - mBounds.minX) / worldWidth) * worldWidth;
+        search(minX - shift, maxX - shift, minX - shift - worldWidth, maxX - shift - worldWidth,
+                minY, maxY, results);
+    }
+
+    /**
+     * Search for all items within the given bounds on a world that wraps around in x every
+     * {@code worldWidth}, passing each one to the visitor.
+     *
+     * @see #searchWrapped(double, double, double, double, double, Collection)
+     */
+    public void searchWrapped(double minX, double maxX, double minY, double maxY, double worldWidth,
+                              Visitor<? super T> visitor) {
+        if (maxX - minX >= worldWidth) {
+            search(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, minY, maxY, visitor);
+            return;
+        }
+        double shift = Math.floor((minX - mBounds.minX) / worldWidth) * worldWidth;
+        search(minX - shift, maxX - shift, minX - shift - worldWidth, maxX - shift - worldWidth,
+                minY, maxY, visitor);
+    }
+
+    /**
+     * Searches the union of two x ranges, so that wrapped searches take a single pass. An unused
+     * range is NaN, which no comparison matches.
+     */
+    private void search(double minX, double maxX, double wrappedMinX, double wrappedMaxX,
+                        double minY, double maxY, Collection<? super T> results) {
+        if (!intersects(minX, maxX, wrappedMinX, wrappedMaxX, minY, maxY)) {
             return;
         }
 
         if (this.mChildren != null) {
             for (PointQuadTree<T> quad : mChildren) {
-                quad.search(searchBounds, results);
+                quad.search(minX, maxX, wrappedMinX, wrappedMaxX, minY, maxY, results);
             }
         } else if (mItems != null) {
-            if (searchBounds.contains(mBounds)) {
+            if (covers(minX, maxX, minY, maxY) || covers(wrappedMinX, wrappedMaxX, minY, maxY)) {
                 results.addAll(mItems);
             } else {
                 for (T item : mItems) {
-                    if (searchBounds.contains(item.getPoint())) {
+                    if (contains(item.getPoint(), minX, maxX, wrappedMinX, wrappedMaxX, minY, maxY)) {
                         results.add(item);
                     }
                 }
             }
         }
     }
+
+    private void search(double minX, double maxX, double wrappedMinX, double wrappedMaxX,
+                        double minY, double maxY, Visitor<? super T> visitor) {
+        if (!intersects(minX, maxX, wrappedMinX, wrappedMaxX, minY, maxY)) {
+            return;
+        }
+
+        if (this.mChildren != null) {
+            for (PointQuadTree<T> quad : mChildren) {
+                quad.search(minX, maxX, wrappedMinX, wrappedMaxX, minY, maxY, visitor);
+            }
+        } else if (mItems != null) {
+            boolean covered = covers(minX, maxX, minY, maxY) || covers(wrappedMinX, wrappedMaxX, minY, maxY);
+            for (T item : mItems) {
+                if (covered || contains(item.getPoint(), minX, maxX, wrappedMinX, wrappedMaxX, minY, maxY)) {
+                    visitor.visit(item);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of items within the given bounds.
+     */
+    public int count(double minX, double maxX, double minY, double maxY) {
+        return count(minX, maxX, Double.NaN, Double.NaN, minY, maxY);
+    }
+
+    /**
+     * @return the number of items within the given bounds on a world that wraps around in x every
+     * {@code worldWidth}.
+     * @see #searchWrapped(double, double, double, double, double, Collection)
+     */
+    public int countWrapped(double minX, double maxX, double minY, double maxY, double worldWidth) {
+        if (maxX - minX >= worldWidth) {
+            return count(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, minY, maxY);
+        }
+        double shift = Math.floor((minX - mBounds.minX) / worldWidth) * worldWidth;
+        return count(minX - shift, maxX - shift, minX - shift - worldWidth, maxX - shift - worldWidth,
+                minY, maxY);
+    }
+
+    private int count(double minX, double maxX, double wrappedMinX, double wrappedMaxX,
+                      double minY, double maxY) {
+        if (!intersects(minX, maxX, wrappedMinX, wrappedMaxX, minY, maxY)) {
+            return 0;
+        }
+
+        int count = 0;
+        if (this.mChildren != null) {
+            for (PointQuadTree<T> quad : mChildren) {
+                count += quad.count(minX, maxX, wrappedMinX, wrappedMaxX, minY, maxY);
+            }
+        } else if (mItems != null) {
+            if (covers(minX, maxX, minY, maxY) || covers(wrappedMinX, wrappedMaxX, minY, maxY)) {
+                return mItems.size();
+            }
+            for (T item : mItems) {
+                if (contains(item.getPoint(), minX, maxX, wrappedMinX, wrappedMaxX, minY, maxY)) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Search for all items within {@code radius} meters of {@code center}, measured along the
+     * surface of the earth. Item points must be in spherical mercator coordinates for a world
+     * {@code worldWidth} wide (see {@link SphericalMercatorProjection}).
+     * <p/>
+     * Quads entirely inside or outside the circle are taken or skipped whole, so only items in
+     * quads crossing its edge are measured one by one.
+     */
+    public void searchWithinRadius(LatLng center, double radius, double worldWidth,
+                                   Collection<? super T> results) {
+        search(new Region.Circle(center, radius, worldWidth), collector(results));
+    }
+
+    /**
+     * Search for all items within {@code radius} meters of {@code center}, passing each one to
+     * the visitor.
+     *
+     * @see #searchWithinRadius(LatLng, double, double, Collection)
+     */
+    public void searchWithinRadius(LatLng center, double radius, double worldWidth, Visitor<? super T> visitor) {
+        search(new Region.Circle(center, radius, worldWidth), visitor);
+    }
+
+    /**
+     * @return the number of items within {@code radius} meters of {@code center}.
+     * @see #searchWithinRadius(LatLng, double, double, Collection)
+     */
+    public int countWithinRadius(LatLng center, double radius, double worldWidth) {
+        return search(new Region.Circle(center, radius, worldWidth), null);
+    }
+
+    /**
+     * Search for all items inside a polygon, as decided by
+     * {@link PolyUtil#containsLocation(LatLng, List, boolean)}. Item points must be in spherical
+     * mercator coordinates for a world {@code worldWidth} wide.
+     * <p/>
+     * Quads that no edge of the polygon passes through are taken or skipped whole, so only
+     * items in quads on the boundary are tested one by one.
+     */
+    public void searchWithinPolygon(List<LatLng> polygon, boolean geodesic, double worldWidth,
+                                    Collection<? super T> results) {
+        search(new Region.Polygon(polygon, geodesic, worldWidth), collector(results));
+    }
+
+    /**
+     * Search for all items inside a polygon, passing each one to the visitor.
+     *
+     * @see #searchWithinPolygon(List, boolean, double, Collection)
+     */
+    public void searchWithinPolygon(List<LatLng> polygon, boolean geodesic, double worldWidth,
+                                    Visitor<? super T> visitor) {
+        search(new Region.Polygon(polygon, geodesic, worldWidth), visitor);
+    }
+
+    /**
+     * @return the number of items inside a polygon.
+     * @see #searchWithinPolygon(List, boolean, double, Collection)
+     */
+    public int countWithinPolygon(List<LatLng> polygon, boolean geodesic, double worldWidth) {
+        return search(new Region.Polygon(polygon, geodesic, worldWidth), null);
+    }
+
+    private static <T> Visitor<T> collector(final Collection<? super T> results) {
+        return new Visitor<T>() {
+            @Override
+            public void visit(T item) {
+                results.add(item);
+            }
+        };
+    }
+
+    /**
+     * @param visitor receives the items within the region, or null to only count them
+     * @return the number of items within the region
+     */
+    private int search(Region region, Visitor<? super T> visitor) {
+        int classification = region.classify(mBounds.minX, mBounds.maxX, mBounds.minY, mBounds.maxY);
+        if (classification == Region.OUTSIDE) {
+            return 0;
+        }
+        if (classification == Region.INSIDE) {
+            return visitAll(visitor);
+        }
+
+        int count = 0;
+        if (this.mChildren != null) {
+            for (PointQuadTree<T> quad : mChildren) {
+                count += quad.search(region, visitor);
+            }
+        } else if (mItems != null) {
+            for (T item : mItems) {
+                Point point = item.getPoint();
+                if (region.contains(point.x, point.y)) {
+                    if (visitor != null) {
+                        visitor.visit(item);
+                    }
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private int visitAll(Visitor<? super T> visitor) {
+        if (this.mChildren != null) {
+            int count = 0;
+            for (PointQuadTree<T> quad : mChildren) {
+                count += quad.visitAll(visitor);
+            }
+            return count;
+        }
+        if (mItems == null) {
+            return 0;
+        }
+        if (visitor != null) {
+            for (T item : mItems) {
+                visitor.visit(item);
+            }
+        }
+        return mItems.size();
+    }
+
+    private boolean intersects(double minX, double maxX, double wrappedMinX, double wrappedMaxX,
+                               double minY, double maxY) {
+        return mBounds.intersects(minX, maxX, minY, maxY) || mBounds.intersects(wrappedMinX, wrappedMaxX, minY, maxY);
+    }
+
+    private static boolean contains(Point point, double minX, double maxX, double wrappedMinX, double wrappedMaxX,
+                                    double minY, double maxY) {
+        return minY <= point.y && point.y <= maxY
+                && (minX <= point.x && point.x <= maxX || wrappedMinX <= point.x && point.x <= wrappedMaxX);
+    }
+
+    /**
+     * @return whether the given bounds fully contain this quad.
+     */
+    private boolean covers(double minX, double maxX, double minY, double maxY) {
+        return minX <= mBounds.minX && mBounds.maxX <= maxX && minY <= mBounds.minY && mBounds.maxY <= maxY;
+    }
+
+    /**
+     * Finds the item closest to the given point.
+     *
+     * @param maxDistance items further away than this are ignored
+     * @return the closest item, or null if no item lies within {@code maxDistance}
+     */
+    public T nearest(double x, double y, double maxDistance) {
+        List<T> results = kNearest(x, y, 1, maxDistance);
+        return results.isEmpty() ? null : results.get(0);
+    }
+
+    /**
+     * Finds the {@code k} items closest to the given point.
+     *
+     * @return up to {@code k} items, ordered from closest to furthest
+     */
+    public List<T> kNearest(double x, double y, int k) {
+        return kNearest(x, y, k, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Finds the {@code k} items closest to the given point, ignoring items further away than
+     * {@code maxDistance}.
+     * <p/>
+     * Quads and items are visited best-first in order of their distance from the point, so a quad
+     * is only opened once it is closer than every item found so far.
+     *
+     * @return up to {@code k} items, ordered from closest to furthest
+     */
+    public List<T> kNearest(double x, double y, int k, double maxDistance) {
+        if (k <= 0) {
+            return new ArrayList<T>();
+        }
+        final List<T> results = new ArrayList<T>(Math.min(k, mMaxElements));
+        final double maxDistanceSquared = maxDistance * maxDistance;
+        final PriorityQueue<Candidate<T>> queue = new PriorityQueue<Candidate<T>>();
+        queue.add(new Candidate<T>(this, null, distanceSquaredTo(x, y)));
+        while (!queue.isEmpty()) {
+            Candidate<T> candidate = queue.poll();
+            if (candidate.item != null) {
+                results.add(candidate.item);
+                if (results.size() == k) {
+                    break;
+                }
+                continue;
+            }
+            PointQuadTree<T> quad = candidate.quad;
+            if (quad.mChildren != null) {
+                for (PointQuadTree<T> child : quad.mChildren) {
+                    double distance = child.distanceSquaredTo(x, y);
+                    if (distance <= maxDistanceSquared) {
+                        queue.add(new Candidate<T>(child, null, distance));
+                    }
+                }
+            } else if (quad.mItems != null) {
+                for (T item : quad.mItems) {
+                    Point point = item.getPoint();
+                    double distance = (point.x - x) * (point.x - x) + (point.y - y) * (point.y - y);
+                    if (distance <= maxDistanceSquared) {
+                        queue.add(new Candidate<T>(null, item, distance));
+                    }
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * @return the squared distance from the given point to the closest point of this quad.
+     */
+    private double distanceSquaredTo(double x, double y) {
+        double dx = x < mBounds.minX ? mBounds.minX - x : (x > mBounds.maxX ? x - mBounds.maxX : 0);
+        double dy = y < mBounds.minY ? mBounds.minY - y : (y > mBounds.maxY ? y - mBounds.maxY : 0);
+        return dx * dx + dy * dy;
+    }
+
+    /**
+     * A quad or an item waiting to be visited by a nearest neighbour search.
+     */
+    private static class Candidate<T extends Item> implements Comparable<Candidate<T>> {
+        private final PointQuadTree<T> quad;
+        private final T item;
+        private final double distanceSquared;
+
+        private Candidate(PointQuadTree<T> quad, T item, double distanceSquared) {
+            this.quad = quad;
+            this.item = item;
+            this.distanceSquared = distanceSquared;
+        }
+
+        @Override
+        public int compareTo(Candidate<T> other) {
+            return Double.compare(distanceSquared, other.distanceSquared);
+        }
+    }
 }
@@ -0,0 +1,305 @@
+/*
+ * Copyright 2020 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.trd.maps.quadtree;
+
+import com.huawei.hms.maps.model.LatLng;
+
+import org.trd.maps.PolyUtil;
+
+import java.util.List;
+
+import static java.lang.Math.PI;
+import static java.lang.Math.atan;
+import static java.lang.Math.atan2;
+import static java.lang.Math.cos;
+import static java.lang.Math.exp;
+import static java.lang.Math.log;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.lang.Math.sin;
+import static java.lang.Math.tan;
+import static java.lang.Math.toDegrees;
+import static java.lang.Math.toRadians;
+
+/**
+ * An area on the globe that a quad tree can be searched for, given in the tree's spherical
+ * mercator coordinates (see {@link org.trd.maps.projection.SphericalMercatorProjection}).
+ * <p/>
+ * Whole quads are classified as {@link #INSIDE}, {@link #OUTSIDE} or {@link #PARTIAL}, so that
+ * only the items of quads on the region's boundary need to be tested one by one. A quad is only
+ * classified as inside or outside if every point in it would be.
+ */
+abstract class Region {
+    static final int OUTSIDE = 0;
+    static final int PARTIAL = 1;
+    static final int INSIDE = 2;
+
+    /**
+     * Same as {@code MathUtil.EARTH_RADIUS}, in meters.
+     */
+    private static final double EARTH_RADIUS = 6371009;
+
+    private final double mWorldWidth;
+
+    Region(double worldWidth) {
+        mWorldWidth = worldWidth;
+    }
+
+    /**
+     * @return how the given quad lies relative to this region.
+     */
+    abstract int classify(double minX, double maxX, double minY, double maxY);
+
+    /**
+     * @return whether the given point lies within this region.
+     */
+    abstract boolean contains(double x, double y);
+
+    /**
+     * @return the longitude of x, in radians.
+     */
+    final double lngOf(double x) {
+        return (x / mWorldWidth - 0.5) * 2 * PI;
+    }
+
+    /**
+     * @return the latitude of y, in radians.
+     */
+    final double latOf(double y) {
+        return PI / 2 - 2 * atan(exp(-(0.5 - y / mWorldWidth) * 2 * PI));
+    }
+
+    static double wrap(double n, double min, double max) {
+        if (n >= min && n < max) {
+            return n;
+        }
+        double m = max - min;
+        return ((n - min) % m + m) % m + min;
+    }
+
+    static double hav(double x) {
+        double sinHalf = sin(x * 0.5);
+        return sinHalf * sinHalf;
+    }
+
+    static double havDistance(double lat1, double lat2, double dLng) {
+        return hav(lat1 - lat2) + hav(dLng) * cos(lat1) * cos(lat2);
+    }
+
+    /**
+     * All points within a great circle distance of a center.
+     */
+    static final class Circle extends Region {
+        private final double mLat;
+        private final double mLng;
+        private final double mAngle;
+        private final double mHavAngle;
+
+        Circle(LatLng center, double radius, double worldWidth) {
+            super(worldWidth);
+            mLat = toRadians(center.latitude);
+            mLng = toRadians(center.longitude);
+            mAngle = radius / EARTH_RADIUS;
+            mHavAngle = hav(min(mAngle, PI));
+        }
+
+        @Override
+        boolean contains(double x, double y) {
+            return havDistance(mLat, latOf(y), lngOf(x) - mLng) <= mHavAngle;
+        }
+
+        @Override
+        int classify(double minX, double maxX, double minY, double maxY) {
+            if (mAngle >= PI) {
+                return INSIDE;
+            }
+            double lngMin = lngOf(minX);
+            double lngSpan = lngOf(maxX) - lngMin;
+            double latMin = latOf(maxY);
+            double latMax = latOf(minY);
+            double dLngMin = wrap(lngMin - mLng, -PI, PI);
+            double dLngMax = dLngMin + lngSpan;
+
+            // The closest point of the quad: on the center's meridian if the quad spans it, and
+            // otherwise on the quad's nearer meridian edge, whose distance is unimodal in latitude.
+            double minHav;
+            if ((dLngMin <= 0 && 0 <= dLngMax) || dLngMax >= 2 * PI) {
+                minHav = hav(mLat - clamp(mLat, latMin, latMax));
+            } else {
+                double dLng = dLngMin > 0 ? min(dLngMin, 2 * PI - dLngMax) : -dLngMax;
+                minHav = min(havDistance(mLat, latMin, dLng), havDistance(mLat, latMax, dLng));
+                if (cos(dLng) > 0) {
+                    double closestLat = clamp(atan(tan(mLat) / cos(dLng)), latMin, latMax);
+                    minHav = min(minHav, havDistance(mLat, closestLat, dLng));
+                }
+            }
+            if (minHav > mHavAngle) {
+                return OUTSIDE;
+            }
+
+            // Within a quarter of the globe, the furthest point of a quad is one of its corners,
+            // unless the quad spans the meridian opposite the center.
+            if (mAngle < PI / 2
+                    && !(dLngMin <= PI && PI <= dLngMax) && !(dLngMin <= -PI && -PI <= dLngMax)
+                    && havDistance(mLat, latMin, dLngMin) <= mHavAngle
+                    && havDistance(mLat, latMax, dLngMin) <= mHavAngle
+                    && havDistance(mLat, latMin, dLngMax) <= mHavAngle
+                    && havDistance(mLat, latMax, dLngMax) <= mHavAngle) {
+                return INSIDE;
+            }
+            return PARTIAL;
+        }
+    }
+
+    /**
+     * All points inside a polygon, as defined by
+     * {@link PolyUtil#containsLocation(double, double, List, boolean)}.
+     */
+    static final class Polygon extends Region {
+        /**
+         * Quads are widened by this many radians before testing them against the edges, so that
+         * rounding never classifies a quad that an edge touches as inside or outside.
+         */
+        private static final double MARGIN = 1e-9;
+
+        private final List<LatLng> mPolygon;
+        private final boolean mGeodesic;
+        private final double[] mLats;
+        private final double[] mLngs;
+
+        /**
+         * Whether a vertex is at a pole, where edges cannot be followed by latitude. Every quad
+         * is then classified as partial.
+         */
+        private final boolean mHasPole;
+
+        Polygon(List<LatLng> polygon, boolean geodesic, double worldWidth) {
+            super(worldWidth);
+            mPolygon = polygon;
+            mGeodesic = geodesic;
+            int size = polygon.size();
+            mLats = new double[size];
+            mLngs = new double[size];
+            boolean hasPole = false;
+            for (int i = 0; i < size; i++) {
+                LatLng vertex = polygon.get(i);
+                mLats[i] = toRadians(vertex.latitude);
+                mLngs[i] = toRadians(vertex.longitude);
+                hasPole |= Math.abs(vertex.latitude) >= 90;
+            }
+            mHasPole = hasPole;
+        }
+
+        @Override
+        boolean contains(double x, double y) {
+            return PolyUtil.containsLocation(toDegrees(latOf(y)), toDegrees(lngOf(x)), mPolygon, mGeodesic);
+        }
+
+        @Override
+        int classify(double minX, double maxX, double minY, double maxY) {
+            int size = mLats.length;
+            if (size == 0) {
+                return OUTSIDE;
+            }
+            if (mHasPole) {
+                return PARTIAL;
+            }
+            double lngMin = lngOf(minX) - MARGIN;
+            double lngSpan = lngOf(maxX) + MARGIN - lngMin;
+            double latMin = latOf(maxY) - MARGIN;
+            double latMax = latOf(minY) + MARGIN;
+            for (int i = 0, prev = size - 1; i < size; prev = i++) {
+                if (touches(mLats[prev], mLngs[prev], mLats[i], mLngs[i], lngMin, lngSpan, latMin, latMax)) {
+                    return PARTIAL;
+                }
+            }
+            // No edge reaches the quad, so all of it is on the same side of the boundary.
+            return contains((minX + maxX) / 2, (minY + maxY) / 2) ? INSIDE : OUTSIDE;
+        }
+
+        /**
+         * @return whether the edge from (lat1, lng1) to (lat2, lng2) passes through the given
+         * latitude/longitude rectangle. Like {@link PolyUtil}, edges take the shorter way around.
+         */
+        private boolean touches(double lat1, double lng1, double lat2, double lng2,
+                                double lngMin, double lngSpan, double latMin, double latMax) {
+            double dLng = wrap(lng2 - lng1, -PI, PI);
+            if (dLng <= -PI) {
+                // Ignored by PolyUtil as well.
+                return false;
+            }
+            double edgeMin = min(0, dLng);
+            double edgeMax = max(0, dLng);
+            // The rectangle's longitudes relative to lng1, and the same again one turn west.
+            double rectMin = wrap(lngMin - lng1, -PI, PI);
+            for (int turn = 0; turn < 2; turn++, rectMin -= 2 * PI) {
+                double from = max(edgeMin, rectMin);
+                double to = min(edgeMax, rectMin + lngSpan);
+                if (from > to) {
+                    continue;
+                }
+                if (dLng == 0) {
+                    if (min(lat1, lat2) <= latMax && latMin <= max(lat1, lat2)) {
+                        return true;
+                    }
+                    continue;
+                }
+                // Compare through a strictly increasing function of latitude, as PolyUtil does.
+                double low = min(latAt(lat1, lat2, dLng, from), latAt(lat1, lat2, dLng, to));
+                double high = max(latAt(lat1, lat2, dLng, from), latAt(lat1, lat2, dLng, to));
+                if (mGeodesic) {
+                    // A great circle has one northernmost and one southernmost point.
+                    double tan1 = tan(lat1);
+                    double extreme = atan2(tan(lat2) - tan1 * cos(dLng), tan1 * sin(dLng));
+                    for (double t = extreme - PI; t <= to; t += PI) {
+                        if (t >= from) {
+                            double value = latAt(lat1, lat2, dLng, t);
+                            low = min(low, value);
+                            high = max(high, value);
+                        }
+                    }
+                }
+                if (low <= transform(latMax) && transform(latMin) <= high) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @return tan (geodesic) or mercator (rhumb) of the edge's latitude at {@code lng}
+         * relative to its start.
+         */
+        private double latAt(double lat1, double lat2, double dLng, double lng) {
+            return mGeodesic
+                    ? (tan(lat1) * sin(dLng - lng) + tan(lat2) * sin(lng)) / sin(dLng)
+                    : (mercator(lat1) * (dLng - lng) + mercator(lat2) * lng) / dLng;
+        }
+
+        private double transform(double lat) {
+            return mGeodesic ? tan(lat) : mercator(lat);
+        }
+
+        private static double mercator(double lat) {
+            return log(tan(lat * 0.5 + PI / 4));
+        }
+    }
+
+    static double clamp(double x, double low, double high) {
+        return x < low ? low : (x > high ? high : x);
+    }
+}
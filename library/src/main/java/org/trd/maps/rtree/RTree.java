@@ -0,0 +1,511 @@
+/*
+ * Copyright 2020 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.trd.maps.rtree;
+
+import org.trd.maps.geometry.Bounds;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * An R-tree which tracks items with a rectangular extent, such as the bounding boxes of
+ * polylines, polygons and ground overlays.
+ * See http://en.wikipedia.org/wiki/R-tree for details on the data structure.
+ * <p/>
+ * {@link #addAll} packs the tree with the Sort-Tile-Recursive algorithm, which gives nearly
+ * full, barely overlapping nodes; {@link #add} and {@link #remove} then keep it balanced as items
+ * come and go. Unlike {@link org.trd.maps.quadtree.PointQuadTree}, bounds that only touch count
+ * as intersecting, so a point or a line can be searched for with zero-sized bounds.
+ * This class is not thread safe.
+ */
+public class RTree<T extends RTree.Item> {
+    public interface Item {
+        Bounds getBounds();
+    }
+
+    /**
+     * Receives the items found by a search, as they are found.
+     */
+    public interface Visitor<T> {
+        void visit(T item);
+    }
+
+    /**
+     * Default maximum number of entries in a node.
+     */
+    public final static int DEFAULT_MAX_ENTRIES = 16;
+
+    /**
+     * Maximum number of entries in a node before it is split.
+     */
+    private final int mMaxEntries;
+
+    /**
+     * Minimum number of entries in a node other than the root. Nodes that fall below it on
+     * removal are dissolved and their items inserted again.
+     */
+    private final int mMinEntries;
+
+    private Node mRoot = new Node(true);
+
+    private int mSize;
+
+    public RTree() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * Creates a new R-tree whose nodes hold at most {@code maxEntries} entries.
+     */
+    public RTree(int maxEntries) {
+        if (maxEntries < 4) {
+            throw new IllegalArgumentException("maxEntries must be at least 4");
+        }
+        mMaxEntries = maxEntries;
+        mMinEntries = Math.max(2, (int) Math.ceil(maxEntries * 0.4));
+    }
+
+    /**
+     * Insert an item.
+     */
+    public void add(T item) {
+        Node sibling = insert(mRoot, item);
+        if (sibling != null) {
+            Node root = new Node(false);
+            root.entries.add(mRoot);
+            root.entries.add(sibling);
+            root.updateBounds();
+            mRoot = root;
+        }
+        mSize++;
+    }
+
+    /**
+     * Adds {@code item} below {@code node}.
+     *
+     * @return the new sibling of {@code node} if it had to be split, otherwise null.
+     */
+    private Node insert(Node node, T item) {
+        if (node.leaf) {
+            node.entries.add(item);
+        } else {
+            Node child = chooseSubtree(node, item.getBounds());
+            Node sibling = insert(child, item);
+            if (sibling != null) {
+                node.entries.add(sibling);
+            }
+        }
+        if (node.entries.size() > mMaxEntries) {
+            Node sibling = split(node);
+            node.updateBounds();
+            return sibling;
+        }
+        node.extendBounds(item.getBounds());
+        return null;
+    }
+
+    /**
+     * @return the child needing the least enlargement to hold {@code bounds}, preferring the
+     * smallest child on ties.
+     */
+    private static Node chooseSubtree(Node node, Bounds bounds) {
+        Node best = null;
+        double bestEnlargement = Double.POSITIVE_INFINITY;
+        double bestArea = Double.POSITIVE_INFINITY;
+        for (Item entry : node.entries) {
+            Node child = (Node) entry;
+            Bounds childBounds = child.bounds;
+            double area = area(childBounds);
+            double enlargement = (Math.max(childBounds.maxX, bounds.maxX) - Math.min(childBounds.minX, bounds.minX))
+                    * (Math.max(childBounds.maxY, bounds.maxY) - Math.min(childBounds.minY, bounds.minY)) - area;
+            if (enlargement < bestEnlargement || (enlargement == bestEnlargement && area < bestArea)) {
+                best = child;
+                bestEnlargement = enlargement;
+                bestArea = area;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Splits an overflowing node in two, as in the R*-tree: entries are sorted along the axis
+     * where the two halves have the smallest perimeters, and divided where the halves overlap
+     * least.
+     *
+     * @return the new node holding the second half; {@code node} keeps the first.
+     */
+    private Node split(Node node) {
+        List<Item> entries = node.entries;
+        double marginX = sortAndMeasure(entries, BY_MIN_X);
+        double marginY = sortAndMeasure(entries, BY_MIN_Y);
+        if (marginX < marginY) {
+            Collections.sort(entries, BY_MIN_X);
+        }
+
+        int size = entries.size();
+        int bestSplit = mMinEntries;
+        double bestOverlap = Double.POSITIVE_INFINITY;
+        double bestArea = Double.POSITIVE_INFINITY;
+        for (int k = mMinEntries; k <= size - mMinEntries; k++) {
+            Bounds first = union(entries, 0, k);
+            Bounds second = union(entries, k, size);
+            double overlap = Math.max(0, Math.min(first.maxX, second.maxX) - Math.max(first.minX, second.minX))
+                    * Math.max(0, Math.min(first.maxY, second.maxY) - Math.max(first.minY, second.minY));
+            double area = area(first) + area(second);
+            if (overlap < bestOverlap || (overlap == bestOverlap && area < bestArea)) {
+                bestSplit = k;
+                bestOverlap = overlap;
+                bestArea = area;
+            }
+        }
+
+        Node sibling = new Node(node.leaf);
+        List<Item> moved = entries.subList(bestSplit, size);
+        sibling.entries.addAll(moved);
+        moved.clear();
+        sibling.updateBounds();
+        return sibling;
+    }
+
+    /**
+     * Sorts the entries and sums the perimeters of both halves of every allowed split.
+     */
+    private double sortAndMeasure(List<Item> entries, Comparator<Item> comparator) {
+        Collections.sort(entries, comparator);
+        int size = entries.size();
+        double margin = 0;
+        for (int k = mMinEntries; k <= size - mMinEntries; k++) {
+            margin += margin(union(entries, 0, k)) + margin(union(entries, k, size));
+        }
+        return margin;
+    }
+
+    /**
+     * Insert many items at once. The whole tree is rebuilt with Sort-Tile-Recursive packing:
+     * items are sorted into vertical slices by x, each slice is sorted by y and cut into full
+     * leaves, and the same is repeated on the leaves until a single root remains.
+     */
+    public void addAll(Collection<? extends T> items) {
+        List<Item> entries = new ArrayList<Item>(mSize + items.size());
+        collect(mRoot, entries);
+        entries.addAll(items);
+        mSize = entries.size();
+        boolean leaf = true;
+        do {
+            entries = pack(entries, leaf);
+            leaf = false;
+        } while (entries.size() > 1);
+        mRoot = entries.isEmpty() ? new Node(true) : (Node) entries.get(0);
+    }
+
+    /**
+     * Packs one level of the tree.
+     *
+     * @return the nodes holding the given entries.
+     */
+    private List<Item> pack(List<Item> entries, boolean leaf) {
+        int size = entries.size();
+        int nodeCount = (size + mMaxEntries - 1) / mMaxEntries;
+        int sliceCount = (int) Math.ceil(Math.sqrt(nodeCount));
+        int sliceSize = sliceCount * mMaxEntries;
+        Collections.sort(entries, BY_CENTER_X);
+        List<Item> nodes = new ArrayList<Item>(nodeCount);
+        for (int sliceStart = 0; sliceStart < size; sliceStart += sliceSize) {
+            List<Item> slice = entries.subList(sliceStart, Math.min(size, sliceStart + sliceSize));
+            Collections.sort(slice, BY_CENTER_Y);
+            for (int start = 0; start < slice.size(); start += mMaxEntries) {
+                Node node = new Node(leaf);
+                node.entries.addAll(slice.subList(start, Math.min(slice.size(), start + mMaxEntries)));
+                node.updateBounds();
+                nodes.add(node);
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * Remove the given item from the tree.
+     *
+     * @return whether the item was removed.
+     */
+    public boolean remove(T item) {
+        List<Item> orphans = new ArrayList<Item>();
+        if (!remove(mRoot, item, item.getBounds(), orphans)) {
+            return false;
+        }
+        mSize -= 1 + orphans.size();
+        while (!mRoot.leaf && mRoot.entries.size() == 1) {
+            mRoot = (Node) mRoot.entries.get(0);
+        }
+        if (!mRoot.leaf && mRoot.entries.isEmpty()) {
+            mRoot = new Node(true);
+        }
+        for (Item orphan : orphans) {
+            @SuppressWarnings("unchecked")
+            T orphanItem = (T) orphan;
+            add(orphanItem);
+        }
+        return true;
+    }
+
+    /**
+     * Removes {@code item} from below {@code node}. Children left with too few entries are
+     * dissolved, and their items added to {@code orphans} for reinsertion.
+     */
+    private boolean remove(Node node, T item, Bounds bounds, List<Item> orphans) {
+        if (node.bounds == null || !contains(node.bounds, bounds)) {
+            return false;
+        }
+        List<Item> entries = node.entries;
+        if (node.leaf) {
+            if (!entries.remove(item)) {
+                return false;
+            }
+            node.updateBounds();
+            return true;
+        }
+        for (int i = 0; i < entries.size(); i++) {
+            Node child = (Node) entries.get(i);
+            if (remove(child, item, bounds, orphans)) {
+                if (child.entries.size() < mMinEntries) {
+                    entries.remove(i);
+                    collect(child, orphans);
+                }
+                node.updateBounds();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Removes all items from the tree.
+     */
+    public void clear() {
+        mRoot = new Node(true);
+        mSize = 0;
+    }
+
+    /**
+     * @return the number of items in the tree.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Search for all items whose bounds intersect the given bounds.
+     */
+    public Collection<T> search(Bounds searchBounds) {
+        final List<T> results = new ArrayList<T>();
+        search(searchBounds.minX, searchBounds.maxX, searchBounds.minY, searchBounds.maxY, results);
+        return results;
+    }
+
+    /**
+     * Search for all items whose bounds intersect the given bounds, adding them to a caller-owned
+     * collection. The collection is not cleared first.
+     */
+    public void search(double minX, double maxX, double minY, double maxY, final Collection<? super T> results) {
+        search(minX, maxX, minY, maxY, new Visitor<T>() {
+            @Override
+            public void visit(T item) {
+                results.add(item);
+            }
+        });
+    }
+
+    /**
+     * Search for all items whose bounds intersect the given bounds, passing each one to the
+     * visitor.
+     */
+    public void search(double minX, double maxX, double minY, double maxY, Visitor<? super T> visitor) {
+        if (mRoot.bounds != null) {
+            search(mRoot, minX, maxX, minY, maxY, visitor);
+        }
+    }
+
+    /**
+     * Search for all items whose bounds contain the given point, such as the features under a
+     * tap.
+     */
+    public void search(double x, double y, Visitor<? super T> visitor) {
+        search(x, x, y, y, visitor);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void search(Node node, double minX, double maxX, double minY, double maxY, Visitor<? super T> visitor) {
+        Bounds bounds = node.bounds;
+        if (minX <= bounds.minX && bounds.maxX <= maxX && minY <= bounds.minY && bounds.maxY <= maxY) {
+            visitAll(node, visitor);
+            return;
+        }
+        for (Item entry : node.entries) {
+            Bounds entryBounds = entry.getBounds();
+            if (minX <= entryBounds.maxX && entryBounds.minX <= maxX
+                    && minY <= entryBounds.maxY && entryBounds.minY <= maxY) {
+                if (node.leaf) {
+                    visitor.visit((T) entry);
+                } else {
+                    search((Node) entry, minX, maxX, minY, maxY, visitor);
+                }
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void visitAll(Node node, Visitor<? super T> visitor) {
+        for (Item entry : node.entries) {
+            if (node.leaf) {
+                visitor.visit((T) entry);
+            } else {
+                visitAll((Node) entry, visitor);
+            }
+        }
+    }
+
+    /**
+     * @return the number of items whose bounds intersect the given bounds.
+     */
+    public int count(double minX, double maxX, double minY, double maxY) {
+        final int[] count = new int[1];
+        search(minX, maxX, minY, maxY, new Visitor<T>() {
+            @Override
+            public void visit(T item) {
+                count[0]++;
+            }
+        });
+        return count[0];
+    }
+
+    /**
+     * @return the height of the tree, 1 for a single leaf.
+     */
+    public int getHeight() {
+        int height = 1;
+        for (Node node = mRoot; !node.leaf; node = (Node) node.entries.get(0)) {
+            height++;
+        }
+        return height;
+    }
+
+    private static void collect(Node node, List<Item> items) {
+        if (node.leaf) {
+            items.addAll(node.entries);
+        } else {
+            for (Item entry : node.entries) {
+                collect((Node) entry, items);
+            }
+        }
+    }
+
+    private static Bounds union(List<Item> entries, int from, int to) {
+        Bounds first = entries.get(from).getBounds();
+        double minX = first.minX;
+        double maxX = first.maxX;
+        double minY = first.minY;
+        double maxY = first.maxY;
+        for (int i = from + 1; i < to; i++) {
+            Bounds bounds = entries.get(i).getBounds();
+            minX = Math.min(minX, bounds.minX);
+            maxX = Math.max(maxX, bounds.maxX);
+            minY = Math.min(minY, bounds.minY);
+            maxY = Math.max(maxY, bounds.maxY);
+        }
+        return new Bounds(minX, maxX, minY, maxY);
+    }
+
+    private static boolean contains(Bounds outer, Bounds inner) {
+        return outer.minX <= inner.minX && inner.maxX <= outer.maxX
+                && outer.minY <= inner.minY && inner.maxY <= outer.maxY;
+    }
+
+    private static double area(Bounds bounds) {
+        return (bounds.maxX - bounds.minX) * (bounds.maxY - bounds.minY);
+    }
+
+    private static double margin(Bounds bounds) {
+        return (bounds.maxX - bounds.minX) + (bounds.maxY - bounds.minY);
+    }
+
+    private static final Comparator<Item> BY_MIN_X = new Comparator<Item>() {
+        @Override
+        public int compare(Item a, Item b) {
+            return Double.compare(a.getBounds().minX, b.getBounds().minX);
+        }
+    };
+
+    private static final Comparator<Item> BY_MIN_Y = new Comparator<Item>() {
+        @Override
+        public int compare(Item a, Item b) {
+            return Double.compare(a.getBounds().minY, b.getBounds().minY);
+        }
+    };
+
+    private static final Comparator<Item> BY_CENTER_X = new Comparator<Item>() {
+        @Override
+        public int compare(Item a, Item b) {
+            return Double.compare(a.getBounds().midX, b.getBounds().midX);
+        }
+    };
+
+    private static final Comparator<Item> BY_CENTER_Y = new Comparator<Item>() {
+        @Override
+        public int compare(Item a, Item b) {
+            return Double.compare(a.getBounds().midY, b.getBounds().midY);
+        }
+    };
+
+    /**
+     * A node of the tree. Its entries are items if it is a leaf, otherwise child nodes; either
+     * way they are {@link Item}s, so nodes are handled like items by their parents.
+     */
+    private static final class Node implements Item {
+        private final boolean leaf;
+        private final List<Item> entries = new ArrayList<Item>();
+
+        /**
+         * The union of the entries' bounds, or null if there are no entries.
+         */
+        private Bounds bounds;
+
+        private Node(boolean leaf) {
+            this.leaf = leaf;
+        }
+
+        @Override
+        public Bounds getBounds() {
+            return bounds;
+        }
+
+        private void updateBounds() {
+            bounds = entries.isEmpty() ? null : union(entries, 0, entries.size());
+        }
+
+        private void extendBounds(Bounds added) {
+            if (bounds == null) {
+                bounds = added;
+            } else if (!contains(bounds, added)) {
+                bounds = new Bounds(Math.min(bounds.minX, added.minX), Math.max(bounds.maxX, added.maxX),
+                        Math.min(bounds.minY, added.minY), Math.max(bounds.maxY, added.maxY));
+            }
+        }
+    }
+}
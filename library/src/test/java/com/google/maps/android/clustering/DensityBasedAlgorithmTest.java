@@ -0,0 +1,158 @@
+/*
+ * Copyright 2020 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.maps.android.clustering;
+
+import androidx.annotation.NonNull;
+
+import com.huawei.hms.maps.model.LatLng;
+
+import org.trd.maps.clustering.Cluster;
+import org.trd.maps.clustering.ClusterItem;
+import org.trd.maps.clustering.algo.DensityBasedAlgorithm;
+import org.trd.maps.clustering.algo.NonHierarchicalDistanceBasedAlgorithm;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DensityBasedAlgorithmTest {
+    private static final int ZOOM = 8;
+
+    @Test
+    public void testDenseAreasBecomeOneCluster() {
+        List<ClusterItem> items = new ArrayList<>();
+        Random random = new Random(2);
+        // A street lined with items, much longer than the max distance
+        for (int i = 0; i < 200; i++) {
+            items.add(new TestingItem(10 + random.nextDouble() * 0.01, 10 + i * 0.02));
+        }
+        // ...and a few items far from anything
+        items.add(new TestingItem(-30, -60));
+        items.add(new TestingItem(30, 60));
+
+        DensityBasedAlgorithm<ClusterItem> algo = new DensityBasedAlgorithm<>();
+        algo.addItems(items);
+        Set<? extends Cluster<ClusterItem>> clusters = algo.getClusters(ZOOM);
+        assertEquals(3, clusters.size());
+        assertEquals(new HashSet<>(items), itemsOf(clusters));
+
+        // The distance based algorithm splits the street up
+        NonHierarchicalDistanceBasedAlgorithm<ClusterItem> distanceBased = new NonHierarchicalDistanceBasedAlgorithm<>();
+        distanceBased.addItems(items);
+        assertTrue(distanceBased.getClusters(ZOOM).size() > 3);
+
+        // Too few items around each one
+        algo.setMinItemsInCluster(1000);
+        assertEquals(items.size(), algo.getClusters(ZOOM).size());
+    }
+
+    @Test
+    public void testClustersDoNotDependOnOrder() {
+        List<ClusterItem> items = blobs(new Random(3), 3000);
+        DensityBasedAlgorithm<ClusterItem> algo = new DensityBasedAlgorithm<>();
+        algo.addItems(items);
+        Set<? extends Cluster<ClusterItem>> clusters = algo.getClusters(ZOOM);
+        assertEquals(new HashSet<>(items), itemsOf(clusters));
+
+        List<ClusterItem> shuffled = new ArrayList<>(items);
+        Collections.shuffle(shuffled, new Random(4));
+        DensityBasedAlgorithm<ClusterItem> other = new DensityBasedAlgorithm<>();
+        other.addItems(shuffled);
+        // Only items reached by several clusters may end up elsewhere
+        assertEquals(clusters.size(), other.getClusters(ZOOM).size());
+
+        algo.removeItems(items.subList(0, 1000));
+        assertEquals(new HashSet<>(items.subList(1000, items.size())), itemsOf(algo.getClusters(ZOOM)));
+    }
+
+    @Test
+    public void testParallelMatchesSequential() {
+        List<ClusterItem> items = blobs(new Random(5), 20000);
+        DensityBasedAlgorithm<ClusterItem> algo = new DensityBasedAlgorithm<>();
+        algo.addItems(items);
+        Set<? extends Cluster<ClusterItem>> sequential = algo.getClusters(ZOOM);
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            algo.setExecutor(executor, 4);
+            assertEquals(sequential, algo.getClusters(ZOOM));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static Set<ClusterItem> itemsOf(Set<? extends Cluster<ClusterItem>> clusters) {
+        Set<ClusterItem> items = new HashSet<>();
+        for (Cluster<ClusterItem> cluster : clusters) {
+            assertEquals(cluster.getSize(), cluster.getItems().size());
+            for (ClusterItem item : cluster.getItems()) {
+                assertTrue(items.add(item));
+            }
+        }
+        return items;
+    }
+
+    /**
+     * Items in a few dense areas, over sparse ones.
+     */
+    private static List<ClusterItem> blobs(Random random, int count) {
+        List<ClusterItem> items = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            if (i % 10 == 0) {
+                items.add(new TestingItem(random.nextDouble() * 40 - 20, random.nextDouble() * 80 - 40));
+            } else {
+                double lat = (i % 3) * 8 - 8 + random.nextGaussian() * 0.3;
+                double lng = (i % 4) * 12 - 18 + random.nextGaussian() * 0.3;
+                items.add(new TestingItem(lat, lng));
+            }
+        }
+        return items;
+    }
+
+    private static class TestingItem implements ClusterItem {
+        private final LatLng mPosition;
+
+        TestingItem(double lat, double lng) {
+            mPosition = new LatLng(lat, lng);
+        }
+
+        @NonNull
+        @Override
+        public LatLng getPosition() {
+            return mPosition;
+        }
+
+        @Override
+        public String getTitle() {
+            return null;
+        }
+
+        @Override
+        public String getSnippet() {
+            return null;
+        }
+    }
+}
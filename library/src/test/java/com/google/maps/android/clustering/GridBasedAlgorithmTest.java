@@ -0,0 +1,131 @@
+/*
+ * Copyright 2020 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.maps.android.clustering;
+
+import androidx.annotation.NonNull;
+
+import com.huawei.hms.maps.model.LatLng;
+
+import org.trd.maps.clustering.Cluster;
+import org.trd.maps.clustering.ClusterItem;
+import org.trd.maps.clustering.algo.GridBasedAlgorithm;
+import org.trd.maps.geometry.Point;
+import org.trd.maps.projection.SphericalMercatorProjection;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class GridBasedAlgorithmTest {
+
+    @Test
+    public void testItemsAreGroupedByCell() {
+        GridBasedAlgorithm<ClusterItem> algo = new GridBasedAlgorithm<>();
+        List<ClusterItem> items = new ArrayList<>();
+        Random random = new Random(1);
+        for (int i = 0; i < 10000; i++) {
+            items.add(new TestingItem(random.nextDouble() * 160 - 80, random.nextDouble() * 360 - 180));
+        }
+        assertTrue(algo.addItems(items));
+        assertFalse(algo.addItem(items.get(0)));
+
+        for (int zoom = 0; zoom <= 10; zoom += 5) {
+            long numCells = (long) Math.ceil(256 * Math.pow(2, zoom) / 100);
+            SphericalMercatorProjection proj = new SphericalMercatorProjection(numCells);
+            Map<String, Set<ClusterItem>> expected = new HashMap<>();
+            for (ClusterItem item : items) {
+                Point p = proj.toPoint(item.getPosition());
+                String cell = Math.floor(p.x) + "," + Math.floor(p.y);
+                if (!expected.containsKey(cell)) {
+                    expected.put(cell, new HashSet<ClusterItem>());
+                }
+                expected.get(cell).add(item);
+            }
+
+            Set<? extends Cluster<ClusterItem>> clusters = algo.getClusters(zoom);
+            assertEquals(expected.size(), clusters.size());
+            for (Cluster<ClusterItem> cluster : clusters) {
+                Point center = proj.toPoint(cluster.getPosition());
+                String cell = Math.floor(center.x) + "," + Math.floor(center.y);
+                assertEquals(expected.get(cell), new HashSet<>(cluster.getItems()));
+                assertTrue(clusters.contains(cluster));
+            }
+        }
+    }
+
+    @Test
+    public void testRemoveAndUpdate() {
+        GridBasedAlgorithm<ClusterItem> algo = new GridBasedAlgorithm<>();
+        TestingItem a = new TestingItem(10, 10);
+        TestingItem b = new TestingItem(10, 10.01);
+        TestingItem c = new TestingItem(-40, 100);
+        algo.addItem(a);
+        algo.addItem(b);
+        algo.addItem(c);
+        assertEquals(2, algo.getClusters(5).size());
+
+        b.mPosition = new LatLng(-40, 100.01);
+        assertTrue(algo.updateItem(b));
+        assertFalse(algo.updateItem(new TestingItem(0, 0)));
+        Set<Integer> sizes = new HashSet<>();
+        for (Cluster<ClusterItem> cluster : algo.getClusters(5)) {
+            sizes.add(cluster.getSize());
+        }
+        assertEquals(new HashSet<>(Arrays.asList(1, 2)), sizes);
+
+        assertTrue(algo.removeItem(a));
+        assertFalse(algo.removeItem(a));
+        assertEquals(1, algo.getClusters(5).size());
+        assertEquals(2, algo.getItems().size());
+        assertTrue(algo.getItems().contains(c));
+    }
+
+    private static class TestingItem implements ClusterItem {
+        private LatLng mPosition;
+
+        TestingItem(double lat, double lng) {
+            mPosition = new LatLng(lat, lng);
+        }
+
+        @NonNull
+        @Override
+        public LatLng getPosition() {
+            return mPosition;
+        }
+
+        @Override
+        public String getTitle() {
+            return null;
+        }
+
+        @Override
+        public String getSnippet() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.maps.android.clustering;
+
+import androidx.annotation.NonNull;
+
+import com.huawei.hms.maps.model.CameraPosition;
+import com.huawei.hms.maps.model.LatLng;
+
+import org.trd.maps.clustering.Cluster;
+import org.trd.maps.clustering.ClusterItem;
+import org.trd.maps.clustering.algo.HierarchicalDistanceBasedAlgorithm;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class HierarchicalDistanceBasedAlgorithmTest {
+
+    @Test
+    public void testEveryZoomPartitionsItems() {
+        HierarchicalDistanceBasedAlgorithm<ClusterItem> algo = new HierarchicalDistanceBasedAlgorithm<>();
+        List<ClusterItem> items = randomItems(new Random(3), 5000);
+        assertTrue(algo.addItems(items));
+
+        Map<ClusterItem, Cluster<ClusterItem>> finer = null;
+        for (int zoom = 22; zoom >= 0; zoom--) {
+            Set<? extends Cluster<ClusterItem>> clusters = algo.getClusters(zoom);
+            Map<ClusterItem, Cluster<ClusterItem>> clusterOf = new HashMap<>();
+            int total = 0;
+            for (Cluster<ClusterItem> cluster : clusters) {
+                total += cluster.getSize();
+                assertEquals(cluster.getSize(), cluster.getItems().size());
+                for (ClusterItem item : cluster.getItems()) {
+                    assertTrue(clusterOf.put(item, cluster) == null);
+                }
+            }
+            assertEquals(items.size(), total);
+            assertEquals(items.size(), clusterOf.size());
+
+            if (finer != null) {
+                // Each cluster is made of whole clusters of the zoom level above
+                for (Cluster<ClusterItem> cluster : finer.values()) {
+                    Cluster<ClusterItem> parent = null;
+                    for (ClusterItem item : cluster.getItems()) {
+                        if (parent == null) {
+                            parent = clusterOf.get(item);
+                        }
+                        assertSame(parent, clusterOf.get(item));
+                    }
+                }
+            }
+            finer = clusterOf;
+        }
+        assertTrue(algo.getClusters(0).size() < algo.getClusters(10).size());
+        assertEquals(items.size(), algo.getClusters(22).size());
+        assertEquals(items.size(), algo.getClusters(30).size());
+    }
+
+    @Test
+    public void testClustersAreReusedUntilItemsChange() {
+        HierarchicalDistanceBasedAlgorithm<ClusterItem> algo = new HierarchicalDistanceBasedAlgorithm<>();
+        List<ClusterItem> items = randomItems(new Random(4), 1000);
+        algo.addItems(items);
+        Set<? extends Cluster<ClusterItem>> clusters = algo.getClusters(3);
+        assertEquals(clusters, algo.getClusters(3.5f));
+
+        TestingItem moved = (TestingItem) items.get(0);
+        moved.mPosition = new LatLng(-moved.mPosition.latitude, moved.mPosition.longitude + 90);
+        assertTrue(algo.updateItem(moved));
+        assertFalse(clusters.equals(algo.getClusters(3)));
+
+        assertTrue(algo.removeItem(moved));
+        assertFalse(algo.updateItem(moved));
+        int total = 0;
+        for (Cluster<ClusterItem> cluster : algo.getClusters(3)) {
+            assertFalse(cluster.getItems().contains(moved));
+            total += cluster.getSize();
+        }
+        assertEquals(999, total);
+    }
+
+    @Test
+    public void testRebuiltClustersEqualUnchangedOnes() {
+        HierarchicalDistanceBasedAlgorithm<ClusterItem> algo = new HierarchicalDistanceBasedAlgorithm<>();
+        List<ClusterItem> items = randomItems(new Random(6), 1000);
+        algo.addItems(items);
+        Set<? extends Cluster<ClusterItem>> clusters = algo.getClusters(5);
+
+        // Removing and adding back an item rebuilds the same clusters, as new nodes
+        assertTrue(algo.removeItem(items.get(0)));
+        assertTrue(algo.addItem(items.get(0)));
+        Set<? extends Cluster<ClusterItem>> rebuilt = algo.getClusters(5);
+        // Found by hash code and equality, as DefaultClusterRenderer does
+        assertEquals(clusters, rebuilt);
+    }
+
+    @Test
+    public void testCoincidentItems() {
+        HierarchicalDistanceBasedAlgorithm<ClusterItem> algo = new HierarchicalDistanceBasedAlgorithm<>();
+        for (int i = 0; i < 10; i++) {
+            algo.addItem(new TestingItem(10, 20));
+        }
+        Set<? extends Cluster<ClusterItem>> clusters = algo.getClusters(21);
+        assertEquals(1, clusters.size());
+        Cluster<ClusterItem> cluster = clusters.iterator().next();
+        assertEquals(10, cluster.getSize());
+        assertEquals(10, cluster.getPosition().latitude, 1e-9);
+        assertEquals(20, cluster.getPosition().longitude, 1e-9);
+        assertEquals(10, algo.getClusters(22).size());
+    }
+
+    @Test
+    public void testItemsBeyondMercatorLimits() {
+        HierarchicalDistanceBasedAlgorithm<ClusterItem> algo = new HierarchicalDistanceBasedAlgorithm<>();
+        algo.addItem(new TestingItem(90, 0));
+        algo.addItem(new TestingItem(-89, 100));
+        algo.addItem(new TestingItem(0, 180));
+        assertEquals(3, algo.getClusters(22).size());
+        int size = 0;
+        for (Cluster<ClusterItem> cluster : algo.getClusters(0)) {
+            size += cluster.getSize();
+        }
+        assertEquals(3, size);
+    }
+
+    @Test
+    public void testVisibleClusters() {
+        HierarchicalDistanceBasedAlgorithm<ClusterItem> all = new HierarchicalDistanceBasedAlgorithm<>();
+        HierarchicalDistanceBasedAlgorithm<ClusterItem> visible = new HierarchicalDistanceBasedAlgorithm<>(1000, 800);
+        assertFalse(all.shouldReclusterOnMapMovement());
+        assertTrue(visible.shouldReclusterOnMapMovement());
+        List<ClusterItem> items = randomItems(new Random(5), 5000);
+        all.addItems(items);
+        visible.addItems(items);
+
+        // Around the antimeridian, so the view wraps
+        visible.onCameraChange(new CameraPosition(new LatLng(10, 179), 5, 0, 0));
+        Set<? extends Cluster<ClusterItem>> clusters = visible.getClusters(5);
+        assertFalse(clusters.isEmpty());
+        Set<LatLng> expected = new HashSet<>();
+        for (Cluster<ClusterItem> cluster : all.getClusters(5)) {
+            LatLng position = cluster.getPosition();
+            double dLng = Math.abs(position.longitude - 179);
+            if (Math.min(dLng, 360 - dLng) < 10 && Math.abs(position.latitude - 10) < 5) {
+                expected.add(position);
+            }
+        }
+        Set<LatLng> actual = new HashSet<>();
+        for (Cluster<ClusterItem> cluster : clusters) {
+            actual.add(cluster.getPosition());
+        }
+        // A 1000dp by 800dp view at zoom 5 spans about 44 by 35 degrees
+        assertTrue(actual.containsAll(expected));
+        assertTrue(actual.size() < all.getClusters(5).size());
+    }
+
+    private static List<ClusterItem> randomItems(Random random, int count) {
+        List<ClusterItem> items = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            items.add(new TestingItem(random.nextDouble() * 160 - 80, random.nextDouble() * 360 - 180));
+        }
+        return items;
+    }
+
+    private static class TestingItem implements ClusterItem {
+        private LatLng mPosition;
+
+        TestingItem(double lat, double lng) {
+            mPosition = new LatLng(lat, lng);
+        }
+
+        @NonNull
+        @Override
+        public LatLng getPosition() {
+            return mPosition;
+        }
+
+        @Override
+        public String getTitle() {
+            return null;
+        }
+
+        @Override
+        public String getSnippet() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2020 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.maps.android.clustering;
+
+import androidx.annotation.NonNull;
+
+import com.huawei.hms.maps.model.LatLng;
+
+import org.trd.maps.clustering.Cluster;
+import org.trd.maps.clustering.ClusterItem;
+import org.trd.maps.clustering.algo.ItemBatch;
+import org.trd.maps.clustering.algo.NonHierarchicalDistanceBasedAlgorithm;
+import org.trd.maps.clustering.algo.PreCachingAlgorithmDecorator;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ItemBatchTest {
+    private static final int ZOOM = 5;
+
+    @Test
+    public void testChangesAreCombinedPerItem() {
+        TestingItem a = new TestingItem(10, 10);
+        TestingItem b = new TestingItem(20, 20);
+        TestingItem c = new TestingItem(30, 30);
+        TestingItem d = new TestingItem(40, 40);
+        ItemBatch<ClusterItem> batch = new CountingAlgorithm().beginBatch();
+        assertTrue(batch.isEmpty());
+        batch.add(a).remove(a);
+        batch.remove(b).add(b).update(b);
+        batch.update(c).add(c);
+        batch.remove(d).update(d);
+
+        assertEquals(Arrays.<ClusterItem>asList(a, b, d), batch.getRemovedItems());
+        assertEquals(Arrays.<ClusterItem>asList(b, c), batch.getAddedItems());
+        assertEquals(Arrays.<ClusterItem>asList(b, c), batch.getUpdatedItems());
+    }
+
+    @Test
+    public void testCommitAppliesEachKindOfChangeOnce() {
+        CountingAlgorithm algo = new CountingAlgorithm();
+        TestingItem a = new TestingItem(10, 10);
+        TestingItem b = new TestingItem(10, 10.5);
+        TestingItem c = new TestingItem(-40, 100);
+        algo.addItems(Arrays.<ClusterItem>asList(a, b));
+        algo.mBulkCalls = 0;
+
+        b.mPosition = new LatLng(-40, 100.5);
+        ItemBatch<ClusterItem> batch = algo.beginBatch().remove(a).add(c).update(b);
+        assertTrue(batch.commit());
+        assertEquals(2, algo.mBulkCalls);
+        assertEquals(new HashSet<ClusterItem>(Arrays.asList(b, c)), new HashSet<>(algo.getItems()));
+        Set<? extends Cluster<ClusterItem>> clusters = algo.getClusters(ZOOM);
+        assertEquals(1, clusters.size());
+        assertEquals(2, clusters.iterator().next().getSize());
+
+        try {
+            batch.add(a);
+            fail();
+        } catch (IllegalStateException e) {
+            // Already committed
+        }
+        assertFalse(algo.beginBatch().remove(a).commit());
+    }
+
+    @Test
+    public void testCommitUpdatesCachedClustersOnce() {
+        CountingAlgorithm algo = new CountingAlgorithm();
+        PreCachingAlgorithmDecorator<ClusterItem> decorator = new PreCachingAlgorithmDecorator<>(algo, true);
+        TestingItem a = new TestingItem(10, 10);
+        TestingItem b = new TestingItem(10, 10.5);
+        TestingItem far = new TestingItem(-40, 100);
+        decorator.addItem(a);
+        decorator.getClusters(ZOOM);
+
+        b.mPosition = new LatLng(10, 10.2);
+        assertTrue(decorator.beginBatch().add(b).add(far).remove(a).commit());
+        // Applied to the cached clusters, not clustered again
+        Set<? extends Cluster<ClusterItem>> clusters = decorator.getClusters(ZOOM);
+        assertEquals(1, algo.mClusterings);
+        assertEquals(2, clusters.size());
+        Set<ClusterItem> items = new HashSet<>();
+        for (Cluster<ClusterItem> cluster : clusters) {
+            items.addAll(cluster.getItems());
+        }
+        assertEquals(new HashSet<ClusterItem>(Arrays.asList(b, far)), items);
+    }
+
+    private static class CountingAlgorithm extends NonHierarchicalDistanceBasedAlgorithm<ClusterItem> {
+        private int mBulkCalls;
+        private int mClusterings;
+
+        @Override
+        public boolean addItems(Collection<ClusterItem> items) {
+            mBulkCalls++;
+            return super.addItems(items);
+        }
+
+        @Override
+        public boolean removeItems(Collection<ClusterItem> items) {
+            mBulkCalls++;
+            return super.removeItems(items);
+        }
+
+        @Override
+        public Set<? extends Cluster<ClusterItem>> getClusters(float zoom) {
+            if (zoom == ZOOM) {
+                mClusterings++;
+            }
+            return super.getClusters(zoom);
+        }
+    }
+
+    private static class TestingItem implements ClusterItem {
+        private LatLng mPosition;
+
+        TestingItem(double lat, double lng) {
+            mPosition = new LatLng(lat, lng);
+        }
+
+        @NonNull
+        @Override
+        public LatLng getPosition() {
+            return mPosition;
+        }
+
+        @Override
+        public String getTitle() {
+            return null;
+        }
+
+        @Override
+        public String getSnippet() {
+            return null;
+        }
+    }
+}
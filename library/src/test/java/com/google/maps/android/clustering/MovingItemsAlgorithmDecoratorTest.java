@@ -0,0 +1,187 @@
+/*
+ * Copyright 2020 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.maps.android.clustering;
+
+import androidx.annotation.NonNull;
+
+import com.huawei.hms.maps.model.LatLng;
+
+import org.trd.maps.clustering.Cluster;
+import org.trd.maps.clustering.ClusterItem;
+import org.trd.maps.clustering.algo.MovingItemsAlgorithmDecorator;
+import org.trd.maps.clustering.algo.NonHierarchicalDistanceBasedAlgorithm;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MovingItemsAlgorithmDecoratorTest {
+    private static final int ZOOM = 5;
+
+    @Test
+    public void testMembershipOnlyChangesAcrossBoundaries() {
+        CountingAlgorithm algo = new CountingAlgorithm();
+        MovingItemsAlgorithmDecorator<ClusterItem> decorator = new MovingItemsAlgorithmDecorator<>(algo);
+        TestingItem a = new TestingItem(10, 10);
+        TestingItem b = new TestingItem(10, 10.5);
+        TestingItem c = new TestingItem(-40, 100);
+        TestingItem d = new TestingItem(-40, 100.5);
+        decorator.addItems(Arrays.<ClusterItem>asList(a, b, c, d));
+        Set<? extends Cluster<ClusterItem>> before = decorator.getClusters(ZOOM);
+        assertEquals(2, before.size());
+        Cluster<ClusterItem> first = clusterOf(before, a);
+        Cluster<ClusterItem> second = clusterOf(before, c);
+
+        // Still within reach of its cluster
+        b.mPosition = new LatLng(10, 10.6);
+        assertTrue(decorator.updateItem(b));
+        Set<? extends Cluster<ClusterItem>> clusters = decorator.getClusters(ZOOM);
+        assertEquals(2, clusterOf(clusters, b).getSize());
+        assertSame(second, clusterOf(clusters, c));
+
+        // Crosses over to the other cluster, which the first cluster doesn't affect
+        b.mPosition = new LatLng(-40, 100.2);
+        decorator.updateItem(b);
+        clusters = decorator.getClusters(ZOOM);
+        assertEquals(3, clusterOf(clusters, b).getSize());
+        assertSame(clusterOf(clusters, b), clusterOf(clusters, c));
+        assertNotSame(first, clusterOf(clusters, a));
+        assertEquals(1, clusterOf(clusters, a).getSize());
+        // Only the first clustering asked the decorated algorithm
+        assertEquals(1, algo.mClusterings);
+
+        assertFalse(decorator.updateItem(new TestingItem(0, 0)));
+    }
+
+    @Test
+    public void testMovesAreCoalescedAndBounded() {
+        CountingAlgorithm algo = new CountingAlgorithm();
+        MovingItemsAlgorithmDecorator<ClusterItem> decorator = new MovingItemsAlgorithmDecorator<>(algo, 10);
+        List<TestingItem> items = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            items.add(new TestingItem(i * 0.5 - 25, i * 0.5));
+        }
+        decorator.addItems(new ArrayList<ClusterItem>(items));
+        decorator.getClusters(ZOOM);
+
+        for (int round = 0; round < 5; round++) {
+            for (TestingItem item : items) {
+                item.mPosition = new LatLng(item.mPosition.latitude, item.mPosition.longitude + 0.01);
+            }
+            assertTrue(decorator.updateItems(new ArrayList<ClusterItem>(items)));
+        }
+        assertEquals(100, decorator.getPendingMoveCount());
+        assertEquals(0, algo.mUpdates);
+
+        decorator.getClusters(ZOOM);
+        assertEquals(90, decorator.getPendingMoveCount());
+        assertEquals(10, algo.mUpdates);
+
+        // A zoom level not clustered yet needs every move
+        decorator.getClusters(ZOOM + 1);
+        assertEquals(0, decorator.getPendingMoveCount());
+        assertEquals(100, algo.mUpdates);
+
+        decorator.removeItem(items.get(0));
+        assertFalse(decorator.updateItem(items.get(0)));
+        assertEquals(99, count(decorator.getClusters(ZOOM)));
+    }
+
+    @Test
+    public void testWrapsPopulatedAlgorithm() {
+        CountingAlgorithm algo = new CountingAlgorithm();
+        TestingItem a = new TestingItem(10, 10);
+        TestingItem b = new TestingItem(10, 10.5);
+        algo.addItems(Arrays.<ClusterItem>asList(a, b));
+        MovingItemsAlgorithmDecorator<ClusterItem> decorator = new MovingItemsAlgorithmDecorator<>(algo);
+        assertEquals(2, count(decorator.getClusters(ZOOM)));
+
+        b.mPosition = new LatLng(-40, 100);
+        assertTrue(decorator.updateItem(b));
+        Set<? extends Cluster<ClusterItem>> clusters = decorator.getClusters(ZOOM);
+        assertEquals(2, clusters.size());
+        assertEquals(1, clusterOf(clusters, b).getSize());
+        assertEquals(1, algo.mUpdates);
+    }
+
+    private static Cluster<ClusterItem> clusterOf(Set<? extends Cluster<ClusterItem>> clusters, ClusterItem item) {
+        for (Cluster<ClusterItem> cluster : clusters) {
+            if (cluster.getItems().contains(item)) {
+                return cluster;
+            }
+        }
+        return null;
+    }
+
+    private static int count(Set<? extends Cluster<ClusterItem>> clusters) {
+        int count = 0;
+        for (Cluster<ClusterItem> cluster : clusters) {
+            count += cluster.getSize();
+        }
+        return count;
+    }
+
+    private static class CountingAlgorithm extends NonHierarchicalDistanceBasedAlgorithm<ClusterItem> {
+        private int mClusterings;
+        private int mUpdates;
+
+        @Override
+        public Set<? extends Cluster<ClusterItem>> getClusters(float zoom) {
+            mClusterings++;
+            return super.getClusters(zoom);
+        }
+
+        @Override
+        public boolean updateItem(ClusterItem item) {
+            mUpdates++;
+            return super.updateItem(item);
+        }
+    }
+
+    private static class TestingItem implements ClusterItem {
+        private LatLng mPosition;
+
+        TestingItem(double lat, double lng) {
+            mPosition = new LatLng(lat, lng);
+        }
+
+        @NonNull
+        @Override
+        public LatLng getPosition() {
+            return mPosition;
+        }
+
+        @Override
+        public String getTitle() {
+            return null;
+        }
+
+        @Override
+        public String getSnippet() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright 2020 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.maps.android.clustering;
+
+import androidx.annotation.NonNull;
+
+import com.huawei.hms.maps.model.LatLng;
+
+import org.trd.maps.clustering.Cluster;
+import org.trd.maps.clustering.ClusterItem;
+import org.trd.maps.clustering.algo.NonHierarchicalDistanceBasedAlgorithm;
+import org.trd.maps.clustering.algo.SliceCluster;
+import org.trd.maps.geometry.Point;
+import org.trd.maps.projection.SphericalMercatorProjection;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class NonHierarchicalDistanceBasedAlgorithmTest {
+    private static final SphericalMercatorProjection PROJECTION = new SphericalMercatorProjection(1);
+
+    @Test
+    public void testParallelClusteringKeepsGuarantees() {
+        List<ClusterItem> items = items(new Random(7), 20000);
+        NonHierarchicalDistanceBasedAlgorithm<ClusterItem> algo = new NonHierarchicalDistanceBasedAlgorithm<>();
+        algo.addItems(items);
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            for (int zoom = 2; zoom <= 12; zoom += 5) {
+                algo.setExecutor(null, 0);
+                Set<? extends Cluster<ClusterItem>> sequential = algo.getClusters(zoom);
+                assertGuarantees(items, sequential, zoom);
+
+                algo.setExecutor(executor, 4);
+                Set<? extends Cluster<ClusterItem>> parallel = algo.getClusters(zoom);
+                assertGuarantees(items, parallel, zoom);
+                for (Cluster<ClusterItem> cluster : parallel) {
+                    // Stitched clusters share one array of items too
+                    assertTrue(cluster.getSize() == 1 || cluster instanceof SliceCluster);
+                }
+                // Only clusters near the borders may differ
+                assertEquals(sequential.size(), parallel.size(), sequential.size() / 10.0);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testParallelClusteringWithoutStitching() {
+        List<ClusterItem> items = items(new Random(11), 20000);
+        NonHierarchicalDistanceBasedAlgorithm<ClusterItem> algo = new NonHierarchicalDistanceBasedAlgorithm<>();
+        algo.addItems(items);
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            algo.setExecutor(executor, 4);
+            algo.setStitchPartitions(false);
+            // Every item is still in exactly one cluster
+            Map<ClusterItem, Cluster<ClusterItem>> clusterOf = clusterOf(algo.getClusters(8));
+            assertEquals(items.size(), clusterOf.size());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testClusteringAfterRemovals() {
+        List<ClusterItem> items = items(new Random(5), 2000);
+        NonHierarchicalDistanceBasedAlgorithm<ClusterItem> algo = new NonHierarchicalDistanceBasedAlgorithm<>();
+        algo.addItems(items);
+        algo.getClusters(6);
+        // Removed items leave ids behind that the added ones reuse
+        List<ClusterItem> removed = new ArrayList<>(items.subList(0, 1000));
+        algo.removeItems(removed);
+        items.removeAll(removed);
+        List<ClusterItem> added = items(new Random(6), 1500);
+        algo.addItems(added);
+        items.addAll(added);
+        algo.removeItem(items.get(0));
+        items.remove(0);
+        assertGuarantees(items, algo.getClusters(6), 6);
+
+        algo.clearItems();
+        algo.addItems(items);
+        assertGuarantees(items, algo.getClusters(6), 6);
+    }
+
+    @Test
+    public void testItemOrderAfterManyRemovals() {
+        List<ClusterItem> items = items(new Random(8), 5000);
+        NonHierarchicalDistanceBasedAlgorithm<ClusterItem> algo = new NonHierarchicalDistanceBasedAlgorithm<>();
+        algo.addItems(items);
+        algo.getClusters(6);
+        // Enough removals for the store to drop their slots
+        List<ClusterItem> removed = new ArrayList<>();
+        for (int i = 0; i < items.size(); i++) {
+            if (i % 5 != 0) {
+                removed.add(items.get(i));
+            }
+        }
+        algo.removeItems(removed.subList(0, 2000));
+        Set<? extends Cluster<ClusterItem>> clusters = algo.getClusters(6);
+        algo.removeItems(removed.subList(2000, removed.size()));
+        items.removeAll(removed);
+        List<ClusterItem> added = items(new Random(10), 500);
+        algo.addItems(added);
+        items.addAll(added);
+
+        assertEquals(items, new ArrayList<>(algo.getItems()));
+        assertGuarantees(items, algo.getClusters(6), 6);
+        // Clusters of an earlier pass are unaffected
+        int count = 0;
+        for (Cluster<ClusterItem> cluster : clusters) {
+            count += cluster.getSize();
+        }
+        assertEquals(3000, count);
+    }
+
+    @Test
+    public void testClustersOfSamePassesAreEqual() {
+        List<ClusterItem> items = items(new Random(9), 2000);
+        NonHierarchicalDistanceBasedAlgorithm<ClusterItem> algo = new NonHierarchicalDistanceBasedAlgorithm<>();
+        algo.addItems(items);
+        Set<? extends Cluster<ClusterItem>> first = algo.getClusters(4);
+        assertGuarantees(items, first, 4);
+        // A fresh pass over the same items gives equal clusters with equal hash codes
+        algo.addItem(new TestingItem(80, 170));
+        algo.removeItem(items.get(items.size() - 1));
+        algo.addItem(items.get(items.size() - 1));
+        Set<? extends Cluster<ClusterItem>> second = algo.getClusters(4);
+        assertEquals(first.size() + 1, second.size());
+        assertTrue(second.containsAll(first));
+
+        algo.removeItem(items.get(0));
+        assertFalse(algo.getClusters(4).containsAll(first));
+    }
+
+    @Test
+    public void testItemsChangeWhileClustering() throws Exception {
+        List<ClusterItem> items = items(new Random(13), 8000);
+        final NonHierarchicalDistanceBasedAlgorithm<ClusterItem> algo = new NonHierarchicalDistanceBasedAlgorithm<>();
+        algo.addItems(items);
+        assertTrue(algo.canClusterConcurrently());
+
+        // Holds the pass up once it has taken its snapshot, until the items were changed
+        final CountDownLatch clustering = new CountDownLatch(1);
+        final CountDownLatch changed = new CountDownLatch(1);
+        algo.setExecutor(new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                clustering.countDown();
+                try {
+                    changed.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                task.run();
+            }
+        }, 2);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            // As ClusterManager does: the pass runs without the algorithm lock
+            Future<Set<? extends Cluster<ClusterItem>>> pass =
+                    executor.submit(new Callable<Set<? extends Cluster<ClusterItem>>>() {
+                        @Override
+                        public Set<? extends Cluster<ClusterItem>> call() {
+                            return algo.getClusters(6);
+                        }
+                    });
+            assertTrue(clustering.await(10, TimeUnit.SECONDS));
+            final ClusterItem item = new TestingItem(60, 100);
+            Future<Boolean> add = executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    algo.lock();
+                    try {
+                        return algo.addItem(item);
+                    } finally {
+                        algo.unlock();
+                    }
+                }
+            });
+            assertTrue(add.get(10, TimeUnit.SECONDS));
+            assertFalse(pass.isDone());
+            changed.countDown();
+
+            // The running pass sees the items as they were when it started
+            assertGuarantees(items, pass.get(10, TimeUnit.SECONDS), 6);
+            items.add(item);
+            algo.setExecutor(null, 0);
+            assertGuarantees(items, algo.getClusters(6), 6);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Checks that every item is in exactly one cluster, that no cluster center is within reach of
+     * another, and that each item is in the closest cluster whose center reaches it.
+     */
+    private static void assertGuarantees(List<ClusterItem> items, Set<? extends Cluster<ClusterItem>> clusters,
+                                         int zoom) {
+        double halfSpan = 100 / Math.pow(2, zoom) / 256 / 2;
+        Map<ClusterItem, Cluster<ClusterItem>> clusterOf = clusterOf(clusters);
+        assertEquals(items.size(), clusterOf.size());
+
+        List<Point> centers = new ArrayList<>();
+        for (Cluster<ClusterItem> cluster : clusters) {
+            centers.add(PROJECTION.toPoint(cluster.getPosition()));
+        }
+        for (int i = 0; i < centers.size(); i++) {
+            for (int j = i + 1; j < centers.size(); j++) {
+                assertFalse(reaches(centers.get(i), centers.get(j), halfSpan));
+            }
+        }
+
+        for (ClusterItem item : items) {
+            Point point = PROJECTION.toPoint(item.getPosition());
+            Point own = PROJECTION.toPoint(clusterOf.get(item).getPosition());
+            assertTrue(reaches(own, point, halfSpan));
+            double distance = distanceSquared(own, point);
+            for (Point center : centers) {
+                if (reaches(center, point, halfSpan)) {
+                    assertTrue(distance <= distanceSquared(center, point));
+                }
+            }
+        }
+    }
+
+    private static Map<ClusterItem, Cluster<ClusterItem>> clusterOf(Set<? extends Cluster<ClusterItem>> clusters) {
+        Map<ClusterItem, Cluster<ClusterItem>> clusterOf = new HashMap<>();
+        for (Cluster<ClusterItem> cluster : clusters) {
+            assertEquals(cluster.getSize(), cluster.getItems().size());
+            for (ClusterItem item : cluster.getItems()) {
+                assertSame(null, clusterOf.put(item, cluster));
+            }
+        }
+        return clusterOf;
+    }
+
+    private static boolean reaches(Point a, Point b, double halfSpan) {
+        return Math.abs(a.x - b.x) <= halfSpan && Math.abs(a.y - b.y) <= halfSpan;
+    }
+
+    private static double distanceSquared(Point a, Point b) {
+        return (a.x - b.x) * (a.x - b.x) + (a.y - b.y) * (a.y - b.y);
+    }
+
+    /**
+     * Items spread over a few dense areas, so that some clusters straddle the partition borders.
+     */
+    private static List<ClusterItem> items(Random random, int count) {
+        List<ClusterItem> items = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            double lng = (i % 5) * 30 - 60 + random.nextGaussian() * 8;
+            double lat = random.nextGaussian() * 10;
+            items.add(new TestingItem(lat, Math.max(-179, Math.min(179, lng))));
+        }
+        assertNotNull(items.get(0).getPosition());
+        return items;
+    }
+
+    private static class TestingItem implements ClusterItem {
+        private final LatLng mPosition;
+
+        TestingItem(double lat, double lng) {
+            mPosition = new LatLng(lat, lng);
+        }
+
+        @NonNull
+        @Override
+        public LatLng getPosition() {
+            return mPosition;
+        }
+
+        @Override
+        public String getTitle() {
+            return null;
+        }
+
+        @Override
+        public String getSnippet() {
+            return null;
+        }
+    }
+}
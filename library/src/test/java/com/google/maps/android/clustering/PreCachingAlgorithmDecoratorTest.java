@@ -0,0 +1,307 @@
+/*
+ * Copyright 2020 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.maps.android.clustering;
+
+import androidx.annotation.NonNull;
+
+import com.huawei.hms.maps.model.LatLng;
+
+import org.trd.maps.clustering.Cluster;
+import org.trd.maps.clustering.ClusterItem;
+import org.trd.maps.clustering.algo.NonHierarchicalDistanceBasedAlgorithm;
+import org.trd.maps.clustering.algo.PreCachingAlgorithmDecorator;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PreCachingAlgorithmDecoratorTest {
+    private static final int ZOOM = 5;
+
+    @Test
+    public void testChangesClearCache() {
+        CountingAlgorithm algo = new CountingAlgorithm();
+        PreCachingAlgorithmDecorator<ClusterItem> decorator = new PreCachingAlgorithmDecorator<>(algo);
+        decorator.addItem(new TestingItem(10, 10));
+        Set<? extends Cluster<ClusterItem>> clusters = decorator.getClusters(ZOOM);
+        assertSame(clusters, decorator.getClusters(ZOOM));
+        assertEquals(1, algo.mCalls);
+
+        decorator.addItem(new TestingItem(10, 11));
+        decorator.getClusters(ZOOM);
+        assertEquals(2, algo.mCalls);
+    }
+
+    @Test
+    public void testIncrementalChanges() {
+        CountingAlgorithm algo = new CountingAlgorithm();
+        PreCachingAlgorithmDecorator<ClusterItem> decorator = new PreCachingAlgorithmDecorator<>(algo, true);
+        TestingItem a = new TestingItem(10, 10);
+        TestingItem b = new TestingItem(10, 10.5);
+        TestingItem far = new TestingItem(-40, 100);
+        decorator.addItem(a);
+        Set<? extends Cluster<ClusterItem>> before = decorator.getClusters(ZOOM);
+        assertEquals(1, before.size());
+
+        // Joins the nearby cluster
+        decorator.addItem(b);
+        Set<? extends Cluster<ClusterItem>> clusters = decorator.getClusters(ZOOM);
+        assertEquals(1, clusters.size());
+        assertEquals(2, clusters.iterator().next().getSize());
+        assertEquals(1, before.iterator().next().getSize());
+
+        // Starts a cluster of its own
+        decorator.addItem(far);
+        assertEquals(2, decorator.getClusters(ZOOM).size());
+
+        // Moves out of its cluster and into the other one
+        b.mPosition = new LatLng(-40, 100.5);
+        decorator.updateItem(b);
+        assertEquals(sizes(1, 2), sizes(decorator.getClusters(ZOOM)));
+
+        // Empties its cluster
+        decorator.removeItem(a);
+        clusters = decorator.getClusters(ZOOM);
+        assertEquals(1, clusters.size());
+        assertEquals(new HashSet<>(decorator.getItems()), new HashSet<>(clusters.iterator().next().getItems()));
+        assertSame(clusters, decorator.getClusters(ZOOM));
+
+        assertEquals(1, algo.mCalls);
+        decorator.clearItems();
+        assertTrue(decorator.getClusters(ZOOM).isEmpty());
+        assertEquals(2, algo.mCalls);
+    }
+
+    @Test
+    public void testIncrementalUnchangedClustersAreKept() {
+        PreCachingAlgorithmDecorator<ClusterItem> decorator =
+                new PreCachingAlgorithmDecorator<>(new NonHierarchicalDistanceBasedAlgorithm<ClusterItem>(), true);
+        TestingItem a = new TestingItem(10, 10);
+        TestingItem b = new TestingItem(-40, 100);
+        decorator.addItem(a);
+        decorator.addItem(b);
+        Set<? extends Cluster<ClusterItem>> before = decorator.getClusters(ZOOM);
+
+        decorator.addItem(new TestingItem(10, 10.1));
+        Set<? extends Cluster<ClusterItem>> after = decorator.getClusters(ZOOM);
+        assertNotSame(before, after);
+        for (Cluster<ClusterItem> cluster : before) {
+            // Only the cluster that changed is replaced
+            assertEquals(cluster.getItems().contains(b), after.contains(cluster));
+        }
+        assertFalse(after.containsAll(before));
+    }
+
+    private static Set<Integer> sizes(int... sizes) {
+        Set<Integer> result = new HashSet<>();
+        for (int size : sizes) {
+            result.add(size);
+        }
+        return result;
+    }
+
+    private static Set<Integer> sizes(Set<? extends Cluster<ClusterItem>> clusters) {
+        Set<Integer> result = new HashSet<>();
+        for (Cluster<ClusterItem> cluster : clusters) {
+            result.add(cluster.getSize());
+        }
+        return result;
+    }
+
+    @Test
+    public void testConcurrentRequestsShareComputation() throws Exception {
+        final BlockingAlgorithm algo = new BlockingAlgorithm(ZOOM);
+        final PreCachingAlgorithmDecorator<ClusterItem> decorator =
+                new PreCachingAlgorithmDecorator<>(algo, false, 0, 1);
+        decorator.addItem(new TestingItem(10, 10));
+        final List<Set<? extends Cluster<ClusterItem>>> results = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Set<? extends Cluster<ClusterItem>> clusters = decorator.getClusters(ZOOM);
+                    synchronized (results) {
+                        results.add(clusters);
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        algo.mEntered.await();
+        algo.mGate.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(1, algo.calls(ZOOM));
+        for (Set<? extends Cluster<ClusterItem>> clusters : results) {
+            assertSame(results.get(0), clusters);
+        }
+    }
+
+    @Test
+    public void testPrefetchesWithinRadius() throws Exception {
+        BlockingAlgorithm algo = new BlockingAlgorithm(-1);
+        PreCachingAlgorithmDecorator<ClusterItem> decorator = new PreCachingAlgorithmDecorator<>(algo, false, 2, 2);
+        decorator.addItem(new TestingItem(10, 10));
+        decorator.getClusters(ZOOM);
+        algo.awaitCalls(ZOOM - 2, ZOOM - 1, ZOOM + 1, ZOOM + 2);
+
+        // Served from the cache, and only the newly reached zoom level is prefetched
+        decorator.getClusters(ZOOM + 1);
+        algo.awaitCalls(ZOOM + 3);
+        assertEquals(1, algo.calls(ZOOM + 1));
+        assertEquals(1, algo.calls(ZOOM - 1));
+    }
+
+    @Test
+    public void testStalePrefetchesAreCancelled() throws Exception {
+        BlockingAlgorithm algo = new BlockingAlgorithm(11);
+        PreCachingAlgorithmDecorator<ClusterItem> decorator = new PreCachingAlgorithmDecorator<>(algo, false, 1, 1);
+        decorator.addItem(new TestingItem(10, 10));
+        // The only worker is held computing zoom 11, with zoom 9 queued behind it
+        decorator.getClusters(10);
+        decorator.getClusters(15);
+        algo.mGate.countDown();
+        algo.awaitCalls(14, 16);
+        assertEquals(0, algo.calls(9));
+    }
+
+    @Test
+    public void testIncrementalChangesDuringPrefetch() throws Exception {
+        BlockingAlgorithm algo = new BlockingAlgorithm(ZOOM + 1);
+        PreCachingAlgorithmDecorator<ClusterItem> decorator = new PreCachingAlgorithmDecorator<>(algo, true, 1, 1);
+        decorator.addItem(new TestingItem(10, 10));
+        decorator.getClusters(ZOOM);
+        // The prefetch of the zoom level below is held once clustered, then an item is added
+        algo.mEntered.await();
+        decorator.addItem(new TestingItem(-40, 100));
+        algo.mGate.countDown();
+
+        // The prefetch is kept, with the item added
+        assertEquals(2, decorator.getClusters(ZOOM + 1).size());
+        assertEquals(2, decorator.getClusters(ZOOM + 1).size());
+        assertEquals(1, algo.calls(ZOOM + 1));
+    }
+
+    private static class CountingAlgorithm extends NonHierarchicalDistanceBasedAlgorithm<ClusterItem> {
+        private int mCalls;
+
+        @Override
+        public Set<? extends Cluster<ClusterItem>> getClusters(float zoom) {
+            if (zoom == ZOOM) {
+                mCalls++;
+            }
+            return super.getClusters(zoom);
+        }
+    }
+
+    /**
+     * Counts the clusterings of each zoom level, holding those of one zoom level, once clustered,
+     * until the gate opens.
+     */
+    private static class BlockingAlgorithm extends NonHierarchicalDistanceBasedAlgorithm<ClusterItem> {
+        private final int mBlockedZoom;
+        private final CountDownLatch mEntered = new CountDownLatch(1);
+        private final CountDownLatch mGate = new CountDownLatch(1);
+        private final ConcurrentMap<Integer, AtomicInteger> mCalls = new ConcurrentHashMap<>();
+
+        BlockingAlgorithm(int blockedZoom) {
+            mBlockedZoom = blockedZoom;
+        }
+
+        @Override
+        public Set<? extends Cluster<ClusterItem>> getClusters(float zoom) {
+            Set<? extends Cluster<ClusterItem>> clusters = super.getClusters(zoom);
+            if ((int) zoom == mBlockedZoom) {
+                mEntered.countDown();
+                try {
+                    mGate.await();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            counter((int) zoom).incrementAndGet();
+            return clusters;
+        }
+
+        private AtomicInteger counter(int zoom) {
+            AtomicInteger counter = mCalls.get(zoom);
+            if (counter == null) {
+                mCalls.putIfAbsent(zoom, new AtomicInteger());
+                counter = mCalls.get(zoom);
+            }
+            return counter;
+        }
+
+        int calls(int zoom) {
+            AtomicInteger counter = mCalls.get(zoom);
+            return counter == null ? 0 : counter.get();
+        }
+
+        /**
+         * Waits until each of the given zoom levels was clustered once.
+         */
+        void awaitCalls(int... zooms) throws InterruptedException {
+            for (int zoom : zooms) {
+                for (int i = 0; calls(zoom) == 0; i++) {
+                    assertTrue(i < 500);
+                    Thread.sleep(10);
+                }
+                assertEquals(1, calls(zoom));
+            }
+        }
+    }
+
+    private static class TestingItem implements ClusterItem {
+        private LatLng mPosition;
+
+        TestingItem(double lat, double lng) {
+            mPosition = new LatLng(lat, lng);
+        }
+
+        @NonNull
+        @Override
+        public LatLng getPosition() {
+            return mPosition;
+        }
+
+        @Override
+        public String getTitle() {
+            return null;
+        }
+
+        @Override
+        public String getSnippet() {
+            return null;
+        }
+    }
+}
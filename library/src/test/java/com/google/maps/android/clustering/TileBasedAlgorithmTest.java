@@ -0,0 +1,185 @@
+/*
+ * Copyright 2020 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.maps.android.clustering;
+
+import androidx.annotation.NonNull;
+
+import com.huawei.hms.maps.model.CameraPosition;
+import com.huawei.hms.maps.model.LatLng;
+
+import org.trd.maps.clustering.Cluster;
+import org.trd.maps.clustering.ClusterItem;
+import org.trd.maps.clustering.algo.TileBasedAlgorithm;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+public class TileBasedAlgorithmTest {
+
+    @Test
+    public void testClustersDoNotDependOnCamera() {
+        TileBasedAlgorithm<ClusterItem> algo = new TileBasedAlgorithm<>(1000, 1000);
+        algo.addItems(items(new Random(3), 5000));
+
+        algo.onCameraChange(new CameraPosition(new LatLng(0, 0), 6, 0, 0));
+        Map<Set<ClusterItem>, Cluster<ClusterItem>> first = byItems(algo.getClusters(6));
+        algo.onCameraChange(new CameraPosition(new LatLng(0.5, 1), 6, 0, 0));
+        Map<Set<ClusterItem>, Cluster<ClusterItem>> second = byItems(algo.getClusters(6));
+
+        // Clusters in view from both positions are the same
+        int shared = 0;
+        for (Set<ClusterItem> items : second.keySet()) {
+            if (first.containsKey(items)) {
+                shared++;
+            }
+        }
+        assertTrue(shared > second.size() / 2);
+        // ...and a fresh algorithm, with nothing cached, gives the same clusters
+        TileBasedAlgorithm<ClusterItem> fresh = new TileBasedAlgorithm<>(1000, 1000);
+        fresh.addItems(algo.getItems());
+        fresh.onCameraChange(new CameraPosition(new LatLng(0.5, 1), 6, 0, 0));
+        assertEquals(second.keySet(), byItems(fresh.getClusters(6)).keySet());
+    }
+
+    @Test
+    public void testChangesOnlyReclusterTheirTiles() {
+        TileBasedAlgorithm<ClusterItem> algo = new TileBasedAlgorithm<>(1000, 1000);
+        algo.addItems(items(new Random(4), 5000));
+        algo.onCameraChange(new CameraPosition(new LatLng(0, 0), 6, 0, 0));
+        Map<Set<ClusterItem>, Cluster<ClusterItem>> before = byItems(algo.getClusters(6));
+
+        TestingItem moved = new TestingItem(1.5, 1.5);
+        assertTrue(algo.addItem(moved));
+        assertFalse(algo.addItem(moved));
+        Map<Set<ClusterItem>, Cluster<ClusterItem>> after = byItems(algo.getClusters(6));
+        int reused = 0;
+        for (Map.Entry<Set<ClusterItem>, Cluster<ClusterItem>> entry : after.entrySet()) {
+            if (entry.getValue() == before.get(entry.getKey())) {
+                reused++;
+            }
+        }
+        assertTrue(reused > after.size() / 2);
+        assertTrue(contains(after, moved));
+
+        // The cluster of an updated item is clustered again
+        Cluster<ClusterItem> old = clusterOf(after, moved);
+        moved.mPosition = new LatLng(-1.5, -1.5);
+        assertTrue(algo.updateItem(moved));
+        Map<Set<ClusterItem>, Cluster<ClusterItem>> updated = byItems(algo.getClusters(6));
+        assertNotSame(old, clusterOf(updated, moved));
+        assertEquals(algo.getItems().size(), count(updated));
+
+        assertTrue(algo.removeItem(moved));
+        assertFalse(contains(byItems(algo.getClusters(6)), moved));
+    }
+
+    @Test
+    public void testClustersAcrossAntimeridian() {
+        TileBasedAlgorithm<ClusterItem> algo = new TileBasedAlgorithm<>(500, 500);
+        TestingItem west = new TestingItem(10, 179.9);
+        TestingItem east = new TestingItem(10, -179.9);
+        algo.addItem(west);
+        algo.addItem(east);
+        algo.onCameraChange(new CameraPosition(new LatLng(10, 179), 5, 0, 0));
+        Set<? extends Cluster<ClusterItem>> clusters = algo.getClusters(5);
+        assertEquals(1, clusters.size());
+        assertEquals(2, clusters.iterator().next().getSize());
+
+        algo.onCameraChange(new CameraPosition(new LatLng(10, -179), 5, 0, 0));
+        assertEquals(2, algo.getClusters(5).iterator().next().getSize());
+    }
+
+    private static Map<Set<ClusterItem>, Cluster<ClusterItem>> byItems(Set<? extends Cluster<ClusterItem>> clusters) {
+        Map<Set<ClusterItem>, Cluster<ClusterItem>> byItems = new HashMap<>();
+        for (Cluster<ClusterItem> cluster : clusters) {
+            assertEquals(cluster.getSize(), cluster.getItems().size());
+            byItems.put(new HashSet<>(cluster.getItems()), cluster);
+        }
+        return byItems;
+    }
+
+    private static boolean contains(Map<Set<ClusterItem>, Cluster<ClusterItem>> clusters, ClusterItem item) {
+        return clusterOf(clusters, item) != null;
+    }
+
+    private static Cluster<ClusterItem> clusterOf(Map<Set<ClusterItem>, Cluster<ClusterItem>> clusters,
+                                                  ClusterItem item) {
+        for (Map.Entry<Set<ClusterItem>, Cluster<ClusterItem>> entry : clusters.entrySet()) {
+            if (entry.getKey().contains(item)) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    private static int count(Map<Set<ClusterItem>, Cluster<ClusterItem>> clusters) {
+        Set<ClusterItem> items = new HashSet<>();
+        for (Set<ClusterItem> cluster : clusters.keySet()) {
+            for (ClusterItem item : cluster) {
+                assertTrue(items.add(item));
+            }
+        }
+        return items.size();
+    }
+
+    /**
+     * Items around the null island, all of them in view at zoom 6 from the camera positions used.
+     */
+    private static List<ClusterItem> items(Random random, int count) {
+        List<ClusterItem> items = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            items.add(new TestingItem(random.nextDouble() * 4 - 2, random.nextDouble() * 4 - 2));
+        }
+        return items;
+    }
+
+    private static class TestingItem implements ClusterItem {
+        private LatLng mPosition;
+
+        TestingItem(double lat, double lng) {
+            mPosition = new LatLng(lat, lng);
+        }
+
+        @NonNull
+        @Override
+        public LatLng getPosition() {
+            return mPosition;
+        }
+
+        @Override
+        public String getTitle() {
+            return null;
+        }
+
+        @Override
+        public String getSnippet() {
+            return null;
+        }
+    }
+}
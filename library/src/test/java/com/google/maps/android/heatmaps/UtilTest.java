@@ -19,14 +19,19 @@ package com.google.maps.android.heatmaps;
 import com.google.android.gms.maps.model.LatLng;
 
 import org.trd.maps.geometry.Bounds;
+import org.trd.maps.geometry.Point;
 import org.trd.maps.heatmaps.HeatmapTileProvider;
 import org.trd.maps.heatmaps.WeightedLatLng;
+import org.trd.maps.quadtree.PackedPointQuadTree;
 import org.junit.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
 
 /**
  * Tests for heatmap utility functions
@@ -156,4 +161,44 @@ public class UtilTest {
         expected = new Bounds(x3, x2, y2, y3);
         Assert.assertTrue(bounds.contains(expected) && expected.contains(bounds));
     }
+
+    @Test
+    public void testGetMaxValue() {
+        ArrayList<WeightedLatLng> data = new ArrayList<>();
+        // Corners at x = 0.25 and x = 0.75, so that buckets are 1/64 wide and lng 0 is on an edge
+        data.add(new WeightedLatLng(new LatLng(0, -90)));
+        data.add(new WeightedLatLng(new LatLng(0, 90)));
+        data.add(new WeightedLatLng(new LatLng(0, 0), 4));
+        data.add(new WeightedLatLng(new LatLng(0, 0), 2));
+        Random random = new Random(3);
+        for (int i = 0; i < 500; i++) {
+            // Dense clusters: one well inside a bucket, one straddling the edge at lng 0
+            data.add(new WeightedLatLng(new LatLng(10 + random.nextDouble() * 0.01, 30 + random.nextDouble() * 0.01),
+                    1 + random.nextInt(3)));
+            data.add(new WeightedLatLng(new LatLng(random.nextDouble() * 0.01, random.nextDouble() * 0.02 - 0.01),
+                    1 + random.nextInt(3)));
+            data.add(new WeightedLatLng(new LatLng(random.nextDouble() * 40 - 20, random.nextDouble() * 180 - 90)));
+        }
+        Bounds bounds = HeatmapTileProvider.getBounds(data);
+        PackedPointQuadTree<WeightedLatLng> tree = new PackedPointQuadTree<>(bounds);
+        tree.addAll(data);
+
+        // The maximum bucket total, summed point by point
+        int radius = 20;
+        int screenDim = 1280;
+        double boundsDim = Math.max(bounds.maxX - bounds.minX, bounds.maxY - bounds.minY);
+        double scale = (int) (screenDim / (2 * radius) + 0.5) / boundsDim;
+        Map<Long, Double> buckets = new HashMap<>();
+        double expected = 0;
+        for (WeightedLatLng point : data) {
+            Point p = point.getPoint();
+            long bucket = ((long) (int) ((p.x - bounds.minX) * scale) << 32) + (int) ((p.y - bounds.minY) * scale);
+            Double total = buckets.get(bucket);
+            double value = (total == null ? 0 : total) + point.getIntensity();
+            buckets.put(bucket, value);
+            expected = Math.max(expected, value);
+        }
+
+        Assert.assertEquals(expected, HeatmapTileProvider.getMaxValue(tree, bounds, radius, screenDim), 1e-9);
+    }
 }
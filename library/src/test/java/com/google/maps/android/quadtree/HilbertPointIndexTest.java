@@ -0,0 +1,239 @@
+/*
+ * Copyright 2020 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.maps.android.quadtree;
+
+import org.trd.maps.geometry.Bounds;
+import org.trd.maps.geometry.Point;
+
+import org.trd.maps.quadtree.HilbertPointIndex;
+import org.trd.maps.quadtree.PointQuadTree;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+public class HilbertPointIndexTest {
+
+    private HilbertPointIndex<Item> mIndex;
+
+    @Before
+    public void setUp() {
+        mIndex = new HilbertPointIndex<>(0, 1, 0, 1);
+    }
+
+    @Test
+    public void testEmpty() {
+        Assert.assertEquals(0, searchAll().size());
+        Assert.assertEquals(0, mIndex.count(0, 1, 0, 1));
+    }
+
+    @Test
+    public void testOutOfBounds() {
+        mIndex.add(new Item(1.5, 0.5));
+        Assert.assertEquals(0, mIndex.size());
+        Assert.assertFalse(mIndex.remove(new Item(1.5, 0.5)));
+    }
+
+    @Test
+    public void testMultiplePoints() {
+        Item item1 = new Item(0, 0);
+        Assert.assertFalse(mIndex.remove(item1));
+
+        mIndex.add(item1);
+        Item item2 = new Item(.1, .1);
+        mIndex.add(item2);
+        Item item3 = new Item(1, 1);
+        mIndex.add(item3);
+
+        Collection<Item> items = searchAll();
+        Assert.assertEquals(3, items.size());
+        Assert.assertTrue(items.contains(item1));
+        Assert.assertTrue(items.contains(item2));
+        Assert.assertTrue(items.contains(item3));
+
+        Assert.assertTrue(mIndex.remove(item1));
+        Assert.assertTrue(mIndex.remove(item2));
+        Assert.assertTrue(mIndex.remove(item3));
+        Assert.assertEquals(0, searchAll().size());
+        Assert.assertFalse(mIndex.remove(item1));
+    }
+
+    @Test
+    public void testCoincidentPoints() {
+        for (int i = 0; i < 30000; i++) {
+            mIndex.add(new Item(0, 0));
+        }
+
+        Assert.assertEquals(30000, searchAll().size());
+        Assert.assertEquals(30000, mIndex.search(new Bounds(0, .1, 0, .1)).size());
+        Assert.assertEquals(0, mIndex.search(new Bounds(.1, 1, .1, 1)).size());
+        mIndex.clear();
+        Assert.assertEquals(0, mIndex.size());
+    }
+
+    @Test
+    public void testManyPoints() {
+        List<Item> items = new ArrayList<>();
+        for (double i = 0; i < 200; i++) {
+            for (double j = 0; j < 2000; j++) {
+                items.add(new Item(i / 200.0, j / 2000.0));
+            }
+        }
+        mIndex.addAll(items);
+
+        // Unlike the trees, points on the edges of the search bounds are always included
+        Assert.assertEquals(400000, searchAll().size());
+        Bounds[] queries = {
+                new Bounds(0, .5, 0, .5),
+                new Bounds(.75, 1, .75, 1),
+                new Bounds(0, 0.999, 0, 0.999),
+                new Bounds(0.8, 0.9, 0.8, 0.9),
+                new Bounds(0.4, 0.6, 0.4, 0.6),
+                new Bounds(0, .001, 0, .0001),
+                new Bounds(0.356, 0.574, 0.678, 0.987)
+        };
+        for (Bounds bounds : queries) {
+            int expected = 0;
+            for (Item item : items) {
+                if (bounds.contains(item.getPoint())) {
+                    expected++;
+                }
+            }
+            Assert.assertEquals(expected, mIndex.search(bounds).size());
+            Assert.assertEquals(expected, mIndex.count(bounds.minX, bounds.maxX, bounds.minY, bounds.maxY));
+        }
+    }
+
+    /**
+     * Bulk and single adds, then removes, must leave the index answering every query like the
+     * pointer tree.
+     */
+    @Test
+    public void testMatchesPointQuadTree() {
+        Random random = new Random(42);
+        PointQuadTree<Item> reference = new PointQuadTree<>(0, 1, 0, 1);
+        List<Item> added = new ArrayList<>();
+        for (int i = 0; i < 40000; i++) {
+            added.add(new Item(random.nextDouble(), random.nextDouble()));
+        }
+        mIndex.addAll(added);
+        reference.addAll(added);
+        for (int i = 0; i < 10000; i++) {
+            Item item = new Item(random.nextDouble(), random.nextDouble());
+            added.add(item);
+            mIndex.add(item);
+            reference.add(item);
+        }
+        mIndex.addAll(added.subList(0, 0));
+        for (int i = 0; i < 20000; i++) {
+            Item item = added.remove(random.nextInt(added.size()));
+            Assert.assertTrue(mIndex.remove(item));
+            Assert.assertTrue(reference.remove(item));
+        }
+        Assert.assertEquals(added.size(), mIndex.size());
+
+        for (int i = 0; i < 200; i++) {
+            double x = random.nextDouble();
+            double y = random.nextDouble();
+            Bounds bounds = new Bounds(x, x + random.nextDouble() / 4, y, y + random.nextDouble() / 4);
+            Assert.assertEquals(new HashSet<>(reference.search(bounds)),
+                    new HashSet<>(mIndex.search(bounds)));
+            Assert.assertEquals(reference.search(bounds).size(),
+                    mIndex.count(bounds.minX, bounds.maxX, bounds.minY, bounds.maxY));
+        }
+    }
+
+    @Test
+    public void testAddAllMatchesAdd() {
+        Random random = new Random(7);
+        HilbertPointIndex<Item> oneByOne = new HilbertPointIndex<>(0, 1, 0, 1);
+        List<Item> items = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            // Coarse coordinates so that many items share a key
+            Item item = new Item(random.nextInt(20) / 20.0, random.nextInt(20) / 20.0);
+            items.add(item);
+            oneByOne.add(item);
+        }
+        mIndex.addAll(items.subList(0, 2500));
+        mIndex.addAll(items.subList(2500, 5000));
+
+        List<Item> expected = new ArrayList<>();
+        oneByOne.search(0, 1, 0, 1, expected);
+        List<Item> actual = new ArrayList<>();
+        mIndex.search(0, 1, 0, 1, actual);
+        Assert.assertEquals(expected, actual);
+    }
+
+    /**
+     * Wrapped searches must find every item within the bounds modulo the world width, exactly once,
+     * wherever the bounds fall relative to the edges of the world.
+     */
+    @Test
+    public void testSearchWrapped() {
+        Random random = new Random(31);
+        List<Item> all = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            all.add(new Item(random.nextDouble(), random.nextDouble()));
+        }
+        mIndex.addAll(all);
+        List<Item> results = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            double minX = random.nextDouble() * 3 - 1.5;
+            double maxX = minX + random.nextDouble() * (i % 10 == 0 ? 1.5 : 0.3);
+            double minY = random.nextDouble() * 0.8;
+            double maxY = minY + 0.2;
+            Set<Item> expected = new HashSet<>();
+            for (Item item : all) {
+                Point p = item.getPoint();
+                for (int wrap = -3; wrap <= 3; wrap++) {
+                    if (minX <= p.x + wrap && p.x + wrap <= maxX && minY <= p.y && p.y <= maxY) {
+                        expected.add(item);
+                    }
+                }
+            }
+
+            results.clear();
+            mIndex.searchWrapped(minX, maxX, minY, maxY, 1, results);
+            Assert.assertEquals(expected.size(), results.size());
+            Assert.assertEquals(expected, new HashSet<>(results));
+            Assert.assertEquals(expected.size(), mIndex.countWrapped(minX, maxX, minY, maxY, 1));
+        }
+    }
+
+    private Collection<Item> searchAll() {
+        return mIndex.search(new Bounds(0, 1, 0, 1));
+    }
+
+    private static class Item implements PointQuadTree.Item {
+        private final Point mPoint;
+
+        private Item(double x, double y) {
+            this.mPoint = new Point(x, y);
+        }
+
+        @Override
+        public Point getPoint() {
+            return mPoint;
+        }
+    }
+}
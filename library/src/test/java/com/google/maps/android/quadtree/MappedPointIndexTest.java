@@ -0,0 +1,137 @@
+/*
+ * Copyright 2020 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.maps.android.quadtree;
+
+import org.trd.maps.geometry.Bounds;
+import org.trd.maps.geometry.Point;
+
+import org.trd.maps.quadtree.MappedPointIndex;
+import org.trd.maps.quadtree.PointQuadTree;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+public class MappedPointIndexTest {
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("index", ".bin");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void testWriteAndSearch() throws IOException {
+        Random random = new Random(11);
+        List<Item> items = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            items.add(new Item(random.nextDouble(), random.nextDouble()));
+        }
+        // Out of bounds, so left out
+        items.add(new Item(1.5, 0.5));
+        MappedPointIndex.write(mFile, new Bounds(0, 1, 0, 1), items);
+
+        MappedPointIndex index = MappedPointIndex.open(mFile);
+        Assert.assertEquals(20000, index.size());
+        Assert.assertEquals(20000, index.count(0, 1, 0, 1));
+        for (int i = 0; i < 100; i++) {
+            double x = random.nextDouble();
+            double y = random.nextDouble();
+            Bounds bounds = new Bounds(x, x + random.nextDouble() / 4, y, y + random.nextDouble() / 4);
+            Set<Integer> expected = new HashSet<>();
+            for (int id = 0; id < items.size(); id++) {
+                if (bounds.contains(items.get(id).getPoint())) {
+                    expected.add(id);
+                }
+            }
+
+            final Set<Integer> ids = new HashSet<>();
+            index.search(bounds.minX, bounds.maxX, bounds.minY, bounds.maxY, new MappedPointIndex.Visitor() {
+                @Override
+                public void visit(int id) {
+                    Assert.assertTrue(ids.add(id));
+                }
+            });
+            Assert.assertEquals(expected, ids);
+            Assert.assertEquals(expected.size(), index.count(bounds.minX, bounds.maxX, bounds.minY, bounds.maxY));
+        }
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+        MappedPointIndex.write(mFile, new Bounds(0, 1, 0, 1), Collections.<Item>emptyList());
+        MappedPointIndex index = MappedPointIndex.open(mFile);
+        Assert.assertEquals(0, index.size());
+        Assert.assertEquals(0, index.count(0, 1, 0, 1));
+        Assert.assertEquals(1, index.getBounds().maxX, 0);
+    }
+
+    @Test
+    public void testInvalidFile() throws IOException {
+        FileOutputStream output = new FileOutputStream(mFile);
+        output.write(new byte[100]);
+        output.close();
+        try {
+            MappedPointIndex.open(mFile);
+            Assert.fail();
+        } catch (IOException e) {
+            // expected
+        }
+
+        List<Item> items = Collections.singletonList(new Item(0.5, 0.5));
+        MappedPointIndex.write(mFile, new Bounds(0, 1, 0, 1), items);
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        file.setLength(file.length() - 1);
+        file.close();
+        try {
+            MappedPointIndex.open(mFile);
+            Assert.fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private static class Item implements PointQuadTree.Item {
+        private final Point mPoint;
+
+        private Item(double x, double y) {
+            this.mPoint = new Point(x, y);
+        }
+
+        @Override
+        public Point getPoint() {
+            return mPoint;
+        }
+    }
+}
@@ -0,0 +1,406 @@
+/*
+ * Copyright 2020 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.maps.android.quadtree;
+
+import org.trd.maps.geometry.Bounds;
+import org.trd.maps.geometry.Point;
+
+import org.trd.maps.quadtree.PackedPointQuadTree;
+import org.trd.maps.quadtree.PointQuadTree;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+public class PackedPointQuadTreeTest {
+
+    private PackedPointQuadTree<Item> mTree;
+
+    @Before
+    public void setUp() {
+        mTree = new PackedPointQuadTree<>(0, 1, 0, 1);
+    }
+
+    @Test
+    public void testAddOnePoint() {
+        Item item = new Item(0, 0);
+        mTree.add(item);
+        Collection<Item> items = searchAll();
+        Assert.assertEquals(1, items.size());
+        Assert.assertEquals(1, mTree.size());
+        mTree.clear();
+    }
+
+    @Test
+    public void testEmpty() {
+        Collection<Item> items = searchAll();
+        Assert.assertEquals(0, items.size());
+    }
+
+    @Test
+    public void testOutOfBounds() {
+        mTree.add(new Item(1.5, 0.5));
+        Assert.assertEquals(0, mTree.size());
+        Assert.assertFalse(mTree.remove(new Item(1.5, 0.5)));
+    }
+
+    @Test
+    public void testMultiplePoints() {
+        Item item1 = new Item(0, 0);
+
+        // Remove item that isn't yet in the QuadTree
+        Assert.assertFalse(mTree.remove(item1));
+
+        mTree.add(item1);
+        Item item2 = new Item(.1, .1);
+        mTree.add(item2);
+        Item item3 = new Item(.2, .2);
+        mTree.add(item3);
+
+        Collection<Item> items = searchAll();
+        Assert.assertEquals(3, items.size());
+
+        Assert.assertTrue(items.contains(item1));
+        Assert.assertTrue(items.contains(item2));
+        Assert.assertTrue(items.contains(item3));
+
+        Assert.assertTrue(mTree.remove(item1));
+        Assert.assertTrue(mTree.remove(item2));
+        Assert.assertTrue(mTree.remove(item3));
+
+        Assert.assertEquals(0, searchAll().size());
+
+        // Remove item that is no longer in the QuadTree
+        Assert.assertFalse(mTree.remove(item1));
+        mTree.clear();
+    }
+
+    @Test
+    public void testClear() {
+        for (int i = 0; i < 1000; i++) {
+            mTree.add(new Item(i / 1000.0, i / 1000.0));
+        }
+
+        mTree.clear();
+        Assert.assertEquals(0, searchAll().size());
+        Assert.assertEquals(0, mTree.size());
+
+        mTree.add(new Item(.5, .5));
+        Assert.assertEquals(1, searchAll().size());
+    }
+
+    @Test
+    public void testVeryDeepTree() {
+        for (int i = 0; i < 30000; i++) {
+            mTree.add(new Item(0, 0));
+        }
+
+        Assert.assertEquals(30000, searchAll().size());
+        Assert.assertEquals(30000, mTree.search(new Bounds(0, .1, 0, .1)).size());
+        Assert.assertEquals(0, mTree.search(new Bounds(.1, 1, .1, 1)).size());
+        mTree.clear();
+    }
+
+    @Test
+    public void testManyPoints() {
+        for (double i = 0; i < 200; i++) {
+            for (double j = 0; j < 2000; j++) {
+                mTree.add(new Item(i / 200.0, j / 2000.0));
+            }
+        }
+
+        // Same expectations as PointQuadTreeTest#testManyPoints
+        Assert.assertEquals(400000, searchAll().size());
+        Assert.assertEquals(100000, mTree.search(new Bounds(0, .5, 0, .5)).size());
+        Assert.assertEquals(25000, mTree.search(new Bounds(.75, 1, .75, 1)).size());
+        Assert.assertEquals(399800, mTree.search(new Bounds(0, 0.999, 0, 0.999)).size());
+        Assert.assertEquals(4221, mTree.search(new Bounds(0.8, 0.9, 0.8, 0.9)).size());
+        Assert.assertEquals(16441, mTree.search(new Bounds(0.4, 0.6, 0.4, 0.6)).size());
+        Assert.assertEquals(1, mTree.search(new Bounds(0, .001, 0, .0001)).size());
+        Assert.assertEquals(26617, mTree.search(new Bounds(0.356, 0.574, 0.678, 0.987)).size());
+
+        mTree.clear();
+        Assert.assertEquals(0, searchAll().size());
+    }
+
+    /**
+     * Random adds and removes must leave both trees answering every query identically.
+     */
+    @Test
+    public void testMatchesPointQuadTree() {
+        Random random = new Random(42);
+        PointQuadTree<Item> reference = new PointQuadTree<>(0, 1, 0, 1);
+        List<Item> added = new ArrayList<>();
+        for (int i = 0; i < 50000; i++) {
+            Item item = new Item(random.nextDouble(), random.nextDouble());
+            added.add(item);
+            mTree.add(item);
+            reference.add(item);
+        }
+        for (int i = 0; i < 20000; i++) {
+            Item item = added.remove(random.nextInt(added.size()));
+            Assert.assertTrue(mTree.remove(item));
+            Assert.assertTrue(reference.remove(item));
+        }
+        Assert.assertEquals(added.size(), mTree.size());
+
+        for (int i = 0; i < 100; i++) {
+            double x = random.nextDouble();
+            double y = random.nextDouble();
+            Bounds bounds = new Bounds(x, x + random.nextDouble() / 4, y, y + random.nextDouble() / 4);
+            Assert.assertEquals(new HashSet<>(reference.search(bounds)),
+                    new HashSet<>(mTree.search(bounds)));
+        }
+    }
+
+    @Test
+    public void testSearchIntoBufferVisitorAndCount() {
+        Random random = new Random(3);
+        for (int i = 0; i < 10000; i++) {
+            mTree.add(new Item(random.nextDouble(), random.nextDouble()));
+        }
+        final Bounds bounds = new Bounds(0.2, 0.6, 0.3, 0.4);
+        Collection<Item> expected = mTree.search(bounds);
+
+        List<Item> buffer = new ArrayList<>();
+        mTree.search(bounds.minX, bounds.maxX, bounds.minY, bounds.maxY, buffer);
+        Assert.assertEquals(expected, buffer);
+
+        final List<Item> visited = new ArrayList<>();
+        mTree.search(bounds.minX, bounds.maxX, bounds.minY, bounds.maxY, new PointQuadTree.Visitor<Item>() {
+            @Override
+            public void visit(Item item) {
+                Assert.assertTrue(bounds.contains(item.getPoint()));
+                visited.add(item);
+            }
+        });
+        Assert.assertEquals(expected, visited);
+
+        Assert.assertEquals(expected.size(), mTree.count(bounds.minX, bounds.maxX, bounds.minY, bounds.maxY));
+        Assert.assertEquals(10000, mTree.count(0, 1, 0, 1));
+        Assert.assertEquals(0, mTree.count(2, 3, 2, 3));
+        mTree.clear();
+    }
+
+    /**
+     * Bulk loading, both into an empty tree and into an already populated one, must find the
+     * same items as adding them one at a time.
+     */
+    @Test
+    public void testAddAll() {
+        Random random = new Random(11);
+        PackedPointQuadTree<Item> reference = new PackedPointQuadTree<>(0, 1, 0, 1);
+        List<Item> first = new ArrayList<>();
+        List<Item> second = new ArrayList<>();
+        for (int i = 0; i < 50000; i++) {
+            Item item = i % 10 == 0 ? new Item(0.25, 0.25) : new Item(random.nextDouble(), random.nextDouble());
+            (i < 30000 ? first : second).add(item);
+            reference.add(item);
+        }
+        // Out of bounds items are ignored, as with add()
+        second.add(new Item(2, 2));
+
+        mTree.addAll(first);
+        Assert.assertEquals(30000, searchAll().size());
+        mTree.addAll(second);
+        Assert.assertEquals(50000, searchAll().size());
+
+        for (int i = 0; i < 100; i++) {
+            double x = random.nextDouble();
+            double y = random.nextDouble();
+            Bounds bounds = new Bounds(x, x + random.nextDouble() / 4, y, y + random.nextDouble() / 4);
+            Assert.assertEquals(new HashSet<>(reference.search(bounds)),
+                    new HashSet<>(mTree.search(bounds)));
+        }
+        Assert.assertEquals(reference.search(new Bounds(0.2, 0.3, 0.2, 0.3)).size(),
+                mTree.search(new Bounds(0.2, 0.3, 0.2, 0.3)).size());
+
+        Assert.assertTrue(mTree.remove(first.get(0)));
+        Assert.assertEquals(49999, searchAll().size());
+        mTree.clear();
+    }
+
+    /**
+     * Aggregates must match a brute force sum through adds, bulk adds, removes and splits.
+     */
+    @Test
+    public void testAggregate() {
+        Random random = new Random(5);
+        List<WeightedItem> items = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            items.add(new WeightedItem(random.nextDouble(), random.nextDouble(), random.nextInt(5)));
+        }
+        PackedPointQuadTree<WeightedItem> tree = new PackedPointQuadTree<>(0, 1, 0, 1);
+        tree.addAll(items.subList(0, 10000));
+        for (WeightedItem item : items.subList(10000, 20000)) {
+            tree.add(item);
+        }
+        for (int i = 0; i < 5000; i++) {
+            Assert.assertTrue(tree.remove(items.remove(random.nextInt(items.size()))));
+        }
+
+        PackedPointQuadTree.Aggregate aggregate = new PackedPointQuadTree.Aggregate();
+        for (int i = 0; i < 50; i++) {
+            double minX = random.nextDouble() / 2;
+            double minY = random.nextDouble() / 2;
+            Bounds bounds = new Bounds(minX, minX + random.nextDouble() / 2, minY, minY + random.nextDouble() / 2);
+            int count = 0;
+            double weight = 0;
+            double x = 0;
+            double y = 0;
+            for (WeightedItem item : items) {
+                if (bounds.contains(item.getPoint())) {
+                    count++;
+                    weight += item.getWeight();
+                    x += item.getWeight() * item.getPoint().x;
+                    y += item.getWeight() * item.getPoint().y;
+                }
+            }
+
+            aggregate.reset();
+            tree.aggregate(bounds.minX, bounds.maxX, bounds.minY, bounds.maxY, aggregate);
+            Assert.assertEquals(count, aggregate.getCount());
+            Assert.assertEquals(count, tree.count(bounds.minX, bounds.maxX, bounds.minY, bounds.maxY));
+            Assert.assertEquals(weight, aggregate.getWeight(), 1e-6);
+            Assert.assertEquals(x / weight, aggregate.getCentroid().x, 1e-9);
+            Assert.assertEquals(y / weight, aggregate.getCentroid().y, 1e-9);
+        }
+
+        // Plain items weigh 1
+        mTree.add(new Item(0.2, 0.2));
+        mTree.add(new Item(0.4, 0.4));
+        aggregate.reset();
+        mTree.aggregate(0, 1, 0, 1, aggregate);
+        Assert.assertEquals(2, aggregate.getWeight(), 0);
+        Assert.assertEquals(0.3, aggregate.getCentroid().x, 1e-12);
+    }
+
+    /**
+     * Many items at (nearly) the same coordinates must share one leaf instead of splitting down to
+     * the maximum depth, as in PointQuadTree.
+     */
+    @Test
+    public void testCoincidentPoints() {
+        PointQuadTree<Item> reference = new PointQuadTree<>(0, 1, 0, 1);
+        List<Item> items = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            items.add(new Item(0.3 + (i % 3) * 1e-15, 0.3));
+        }
+        mTree.addAll(items.subList(0, 500));
+        for (Item item : items.subList(500, 1000)) {
+            mTree.add(item);
+        }
+        Assert.assertEquals(1, mTree.getQuadCount());
+
+        Item neighbour = new Item(0.31, 0.3);
+        items.add(neighbour);
+        mTree.add(neighbour);
+        reference.addAll(items);
+        Assert.assertEquals(reference.getQuadCount(), mTree.getQuadCount());
+        Assert.assertEquals(1001, searchAll().size());
+        Assert.assertEquals(1, mTree.count(0.305, 0.315, 0.29, 0.31));
+        mTree.clear();
+    }
+
+    @Test
+    public void testConfiguration() {
+        PackedPointQuadTree<Item> tree = new PackedPointQuadTree<>(0, 1, 0, 1, 4, 2);
+        PointQuadTree<Item> reference = new PointQuadTree<>(0, 1, 0, 1, 4, 2);
+        Random random = new Random(29);
+        for (int i = 0; i < 1000; i++) {
+            Item item = new Item(random.nextDouble(), random.nextDouble());
+            tree.add(item);
+            reference.add(item);
+        }
+        Assert.assertEquals(21, tree.getQuadCount());
+        Assert.assertEquals(new HashSet<>(reference.search(new Bounds(0.1, 0.6, 0.2, 0.9))),
+                new HashSet<>(tree.search(new Bounds(0.1, 0.6, 0.2, 0.9))));
+    }
+
+    /**
+     * Wrapped searches must find every item within the bounds modulo the world width, exactly once,
+     * wherever the bounds fall relative to the edges of the world.
+     */
+    @Test
+    public void testSearchWrapped() {
+        Random random = new Random(31);
+        for (int i = 0; i < 10000; i++) {
+            mTree.add(new Item(random.nextDouble(), random.nextDouble()));
+        }
+        List<Item> all = new ArrayList<>(searchAll());
+        List<Item> results = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            double minX = random.nextDouble() * 3 - 1.5;
+            double maxX = minX + random.nextDouble() * (i % 10 == 0 ? 1.5 : 0.3);
+            double minY = random.nextDouble() * 0.8;
+            double maxY = minY + 0.2;
+            Set<Item> expected = new HashSet<>();
+            for (Item item : all) {
+                Point p = item.getPoint();
+                for (int wrap = -3; wrap <= 3; wrap++) {
+                    if (minX <= p.x + wrap && p.x + wrap <= maxX && minY <= p.y && p.y <= maxY) {
+                        expected.add(item);
+                    }
+                }
+            }
+
+            results.clear();
+            mTree.searchWrapped(minX, maxX, minY, maxY, 1, results);
+            Assert.assertEquals(expected.size(), results.size());
+            Assert.assertEquals(expected, new HashSet<>(results));
+            Assert.assertEquals(expected.size(), mTree.countWrapped(minX, maxX, minY, maxY, 1));
+        }
+        mTree.clear();
+    }
+
+    private Collection<Item> searchAll() {
+        return mTree.search(new Bounds(0, 1, 0, 1));
+    }
+
+    private static class Item implements PointQuadTree.Item {
+        private final Point mPoint;
+
+        private Item(double x, double y) {
+            this.mPoint = new Point(x, y);
+        }
+
+        @Override
+        public Point getPoint() {
+            return mPoint;
+        }
+    }
+
+    private static class WeightedItem extends Item implements PointQuadTree.WeightedItem {
+        private final double mWeight;
+
+        private WeightedItem(double x, double y, double weight) {
+            super(x, y);
+            mWeight = weight;
+        }
+
+        @Override
+        public double getWeight() {
+            return mWeight;
+        }
+    }
+}
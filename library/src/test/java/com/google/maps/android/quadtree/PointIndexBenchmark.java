@@ -0,0 +1,119 @@
+/*
+ * Copyright 2020 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.maps.android.quadtree;
+
+import org.trd.maps.geometry.Point;
+
+import org.trd.maps.quadtree.HilbertPointIndex;
+import org.trd.maps.quadtree.PackedPointQuadTree;
+import org.trd.maps.quadtree.PointQuadTree;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares build and search times of {@link PointQuadTree}, {@link PackedPointQuadTree} and
+ * {@link HilbertPointIndex}. Timings are printed rather than asserted; remove the {@code @Ignore}
+ * or run {@link #main} to measure on the current machine.
+ */
+@Ignore("Benchmark - run manually")
+public class PointIndexBenchmark {
+    private static final int ITEMS = 200000;
+    private static final int QUERIES = 20000;
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) {
+        new PointIndexBenchmark().benchmark();
+    }
+
+    @Test
+    public void benchmark() {
+        Random random = new Random(1);
+        List<Item> items = new ArrayList<>(ITEMS);
+        for (int i = 0; i < ITEMS; i++) {
+            // Clustered points, like markers around a few cities
+            double cx = (i % 16) / 16.0 + 1 / 32.0;
+            double cy = (i % 7) / 7.0 + 1 / 14.0;
+            items.add(new Item(clamp(cx + random.nextGaussian() / 50), clamp(cy + random.nextGaussian() / 50)));
+        }
+        double[] queries = new double[QUERIES * 4];
+        for (int i = 0; i < QUERIES; i++) {
+            double size = random.nextDouble() / 20;
+            queries[i * 4] = random.nextDouble();
+            queries[i * 4 + 1] = queries[i * 4] + size;
+            queries[i * 4 + 2] = random.nextDouble();
+            queries[i * 4 + 3] = queries[i * 4 + 2] + size;
+        }
+
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            PointQuadTree<Item> tree = new PointQuadTree<>(0, 1, 0, 1);
+            tree.addAll(items);
+            long built = System.nanoTime();
+            long found = 0;
+            for (int i = 0; i < QUERIES; i++) {
+                found += tree.count(queries[i * 4], queries[i * 4 + 1], queries[i * 4 + 2], queries[i * 4 + 3]);
+            }
+            report("PointQuadTree", start, built, System.nanoTime(), found);
+
+            start = System.nanoTime();
+            PackedPointQuadTree<Item> packed = new PackedPointQuadTree<>(0, 1, 0, 1);
+            packed.addAll(items);
+            built = System.nanoTime();
+            found = 0;
+            for (int i = 0; i < QUERIES; i++) {
+                found += packed.count(queries[i * 4], queries[i * 4 + 1], queries[i * 4 + 2], queries[i * 4 + 3]);
+            }
+            report("PackedPointQuadTree", start, built, System.nanoTime(), found);
+
+            start = System.nanoTime();
+            HilbertPointIndex<Item> index = new HilbertPointIndex<>(0, 1, 0, 1);
+            index.addAll(items);
+            built = System.nanoTime();
+            found = 0;
+            for (int i = 0; i < QUERIES; i++) {
+                found += index.count(queries[i * 4], queries[i * 4 + 1], queries[i * 4 + 2], queries[i * 4 + 3]);
+            }
+            report("HilbertPointIndex", start, built, System.nanoTime(), found);
+        }
+    }
+
+    private static double clamp(double value) {
+        return Math.max(0, Math.min(1, value));
+    }
+
+    private static void report(String name, long start, long built, long searched, long found) {
+        System.out.println(String.format("%-20s build %6.1f ms  search %7.1f ms  (%d found)",
+                name, (built - start) / 1e6, (searched - built) / 1e6, found));
+    }
+
+    private static class Item implements PointQuadTree.Item {
+        private final Point mPoint;
+
+        private Item(double x, double y) {
+            this.mPoint = new Point(x, y);
+        }
+
+        @Override
+        public Point getPoint() {
+            return mPoint;
+        }
+    }
+}
@@ -16,16 +16,28 @@
 
 package com.google.maps.android.quadtree;
 
+import com.huawei.hms.maps.model.LatLng;
+
+import org.trd.maps.PolyUtil;
+import org.trd.maps.SphericalUtil;
 import org.trd.maps.geometry.Bounds;
 import org.trd.maps.geometry.Point;
 
+import org.trd.maps.projection.SphericalMercatorProjection;
 import org.trd.maps.quadtree.PointQuadTree;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Random;
+import java.util.Set;
 
 public class PointQuadTreeTest {
 
@@ -214,10 +226,493 @@ public class PointQuadTreeTest {
         System.gc();
     }
 
+    @Test
+    public void testNearest() {
+        Item near = new Item(0.5, 0.5);
+        Item far = new Item(0.9, 0.9);
+        mTree.add(near);
+        mTree.add(far);
+
+        Assert.assertSame(near, mTree.nearest(0.4, 0.4, 1));
+        Assert.assertSame(far, mTree.nearest(0.8, 0.8, 1));
+        Assert.assertNull(mTree.nearest(0.1, 0.1, 0.1));
+
+        Assert.assertTrue(mTree.remove(near));
+        Assert.assertSame(far, mTree.nearest(0.4, 0.4, 1));
+        mTree.clear();
+        Assert.assertNull(mTree.nearest(0.4, 0.4, 1));
+    }
+
+    /**
+     * Compares k-nearest results against a brute force scan over random points.
+     */
+    @Test
+    public void testKNearest() {
+        Random random = new Random(7);
+        List<Item> items = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            Item item = new Item(random.nextDouble(), random.nextDouble());
+            items.add(item);
+            mTree.add(item);
+        }
+
+        for (int i = 0; i < 50; i++) {
+            final double x = random.nextDouble();
+            final double y = random.nextDouble();
+            List<Item> expected = new ArrayList<>(items);
+            Collections.sort(expected, new Comparator<Item>() {
+                @Override
+                public int compare(Item a, Item b) {
+                    return Double.compare(distanceSquared(a, x, y), distanceSquared(b, x, y));
+                }
+            });
+
+            List<Item> nearest = mTree.kNearest(x, y, 10);
+            Assert.assertEquals(expected.subList(0, 10), nearest);
+            Assert.assertSame(expected.get(0), mTree.nearest(x, y, 1));
+
+            double radius = Math.sqrt(distanceSquared(expected.get(4), x, y)) + 1e-12;
+            Assert.assertEquals(expected.subList(0, 5), mTree.kNearest(x, y, 10, radius));
+        }
+        Assert.assertEquals(0, mTree.kNearest(0.5, 0.5, 0).size());
+        Assert.assertEquals(0, mTree.kNearest(0.5, 0.5, -1).size());
+        Assert.assertEquals(20000, mTree.kNearest(0.5, 0.5, 30000).size());
+    }
+
+    @Test
+    public void testSearchIntoBufferVisitorAndCount() {
+        Random random = new Random(3);
+        for (int i = 0; i < 10000; i++) {
+            mTree.add(new Item(random.nextDouble(), random.nextDouble()));
+        }
+        final Bounds bounds = new Bounds(0.2, 0.6, 0.3, 0.4);
+        Collection<Item> expected = mTree.search(bounds);
+
+        List<Item> buffer = new ArrayList<>();
+        mTree.search(bounds.minX, bounds.maxX, bounds.minY, bounds.maxY, buffer);
+        Assert.assertEquals(expected, buffer);
+
+        final List<Item> visited = new ArrayList<>();
+        mTree.search(bounds.minX, bounds.maxX, bounds.minY, bounds.maxY, new PointQuadTree.Visitor<Item>() {
+            @Override
+            public void visit(Item item) {
+                Assert.assertTrue(bounds.contains(item.getPoint()));
+                visited.add(item);
+            }
+        });
+        Assert.assertEquals(expected, visited);
+
+        Assert.assertEquals(expected.size(), mTree.count(bounds.minX, bounds.maxX, bounds.minY, bounds.maxY));
+        Assert.assertEquals(10000, mTree.count(0, 1, 0, 1));
+        Assert.assertEquals(0, mTree.count(2, 3, 2, 3));
+        mTree.clear();
+    }
+
+    /**
+     * Bulk loading, both into an empty tree and into an already populated one, must find the
+     * same items as adding them one at a time.
+     */
+    @Test
+    public void testAddAll() {
+        Random random = new Random(11);
+        PointQuadTree<Item> reference = new PointQuadTree<>(0, 1, 0, 1);
+        List<Item> first = new ArrayList<>();
+        List<Item> second = new ArrayList<>();
+        for (int i = 0; i < 50000; i++) {
+            Item item = i % 10 == 0 ? new Item(0.25, 0.25) : new Item(random.nextDouble(), random.nextDouble());
+            (i < 30000 ? first : second).add(item);
+            reference.add(item);
+        }
+        // Out of bounds items are ignored, as with add()
+        second.add(new Item(2, 2));
+
+        mTree.addAll(first);
+        Assert.assertEquals(30000, searchAll().size());
+        mTree.addAll(second);
+        Assert.assertEquals(50000, searchAll().size());
+
+        for (int i = 0; i < 100; i++) {
+            double x = random.nextDouble();
+            double y = random.nextDouble();
+            Bounds bounds = new Bounds(x, x + random.nextDouble() / 4, y, y + random.nextDouble() / 4);
+            Assert.assertEquals(new HashSet<>(reference.search(bounds)),
+                    new HashSet<>(mTree.search(bounds)));
+        }
+        Assert.assertEquals(reference.search(new Bounds(0.2, 0.3, 0.2, 0.3)).size(),
+                mTree.search(new Bounds(0.2, 0.3, 0.2, 0.3)).size());
+
+        Assert.assertTrue(mTree.remove(first.get(0)));
+        Assert.assertEquals(49999, searchAll().size());
+        mTree.clear();
+    }
+
+    /**
+     * Moving items, both within a leaf and across the tree, must leave the same contents as
+     * removing and re-adding them.
+     */
+    @Test
+    public void testMove() {
+        Random random = new Random(17);
+        PointQuadTree<Item> reference = new PointQuadTree<>(0, 1, 0, 1);
+        List<Item> items = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            Item item = new Item(random.nextDouble(), random.nextDouble());
+            items.add(item);
+            reference.add(item);
+        }
+        mTree.addAll(items);
+
+        for (int i = 0; i < 20000; i++) {
+            int index = random.nextInt(items.size());
+            Item item = items.get(index);
+            // Mostly small moves, which usually stay in the same leaf
+            double step = i % 4 == 0 ? 1 : 0.001;
+            double x = Math.min(Math.max(item.getPoint().x + (random.nextDouble() - 0.5) * step, 0), 1);
+            double y = Math.min(Math.max(item.getPoint().y + (random.nextDouble() - 0.5) * step, 0), 1);
+            Item moved = new Item(x, y);
+            Assert.assertTrue(mTree.move(item, moved));
+            reference.remove(item);
+            reference.add(moved);
+            items.set(index, moved);
+        }
+        Assert.assertEquals(new HashSet<>(items), new HashSet<>(searchAll()));
+        for (int i = 0; i < 100; i++) {
+            double x = random.nextDouble();
+            double y = random.nextDouble();
+            Bounds bounds = new Bounds(x, x + random.nextDouble() / 4, y, y + random.nextDouble() / 4);
+            Assert.assertEquals(new HashSet<>(reference.search(bounds)),
+                    new HashSet<>(mTree.search(bounds)));
+        }
+
+        // Items that aren't in the tree aren't moved
+        Item missing = new Item(0.5, 0.5);
+        Assert.assertFalse(mTree.move(missing, new Item(0.6, 0.6)));
+        Assert.assertEquals(10000, searchAll().size());
+
+        // Moving out of bounds removes the item
+        Assert.assertTrue(mTree.move(items.get(0), new Item(2, 2)));
+        Assert.assertEquals(9999, searchAll().size());
+        mTree.clear();
+    }
+
+    /**
+     * Many items at (nearly) the same coordinates must share one leaf instead of splitting down to
+     * the maximum depth, while still splitting off items elsewhere.
+     */
+    @Test
+    public void testCoincidentPoints() {
+        List<Item> building = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            // Near-identical points that no split down to the maximum depth could separate
+            Item item = new Item(0.3 + (i % 3) * 1e-15, 0.3);
+            building.add(item);
+            mTree.add(item);
+        }
+        Assert.assertEquals(1, mTree.getQuadCount());
+        Assert.assertEquals(1000, mTree.search(new Bounds(0.2, 0.4, 0.2, 0.4)).size());
+
+        Item neighbour = new Item(0.31, 0.3);
+        mTree.add(neighbour);
+        // Split only as far as needed to separate the neighbour from the bucket
+        Assert.assertTrue(mTree.getQuadCount() < 40);
+        Assert.assertEquals(1001, searchAll().size());
+        Assert.assertEquals(Collections.singletonList(neighbour), mTree.search(new Bounds(0.305, 0.315, 0.29, 0.31)));
+
+        // A bulk load ends up with the same shape
+        PointQuadTree<Item> bulk = new PointQuadTree<>(0, 1, 0, 1);
+        List<Item> all = new ArrayList<>(building);
+        all.add(neighbour);
+        bulk.addAll(all);
+        Assert.assertEquals(mTree.getQuadCount(), bulk.getQuadCount());
+
+        // Moving an item out of the bucket leaves the rest in one leaf
+        Assert.assertTrue(mTree.move(building.get(0), new Item(0.9, 0.9)));
+        Assert.assertEquals(1, mTree.search(new Bounds(0.8, 1, 0.8, 1)).size());
+        for (Item item : building) {
+            mTree.remove(item);
+        }
+        Assert.assertEquals(2, searchAll().size());
+        mTree.clear();
+    }
+
+    @Test
+    public void testConfiguration() {
+        PointQuadTree<Item> tree = new PointQuadTree<>(0, 1, 0, 1, 4, 2);
+        Random random = new Random(29);
+        List<Item> items = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            Item item = new Item(random.nextDouble(), random.nextDouble());
+            items.add(item);
+            tree.add(item);
+        }
+        // A full tree of depth 2, whose leaves hold far more than 4 items each
+        Assert.assertEquals(21, tree.getQuadCount());
+        Assert.assertEquals(new HashSet<>(items), new HashSet<>(tree.search(new Bounds(0, 1, 0, 1))));
+
+        PointQuadTree<Item> small = new PointQuadTree<>(0, 1, 0, 1, 1, 40);
+        small.add(new Item(0.1, 0.1));
+        Assert.assertEquals(1, small.getQuadCount());
+        small.add(new Item(0.9, 0.9));
+        Assert.assertEquals(5, small.getQuadCount());
+
+        try {
+            new PointQuadTree<Item>(0, 1, 0, 1, 0, 40);
+            Assert.fail("maxElements must be positive");
+        } catch (IllegalArgumentException expected) {
+            // success
+        }
+    }
+
+    /**
+     * Removing a dense cluster of items must merge the quads it split, so that searches don't
+     * keep walking empty quads after the items are gone.
+     */
+    @Test
+    public void testMergeOnRemove() {
+        Random random = new Random(19);
+        List<Item> background = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            background.add(new Item(random.nextDouble(), random.nextDouble()));
+        }
+        mTree.addAll(background);
+        int freshQuads = mTree.getQuadCount();
+
+        for (int round = 0; round < 10; round++) {
+            List<Item> dense = new ArrayList<>();
+            double x = random.nextDouble();
+            double y = random.nextDouble();
+            for (int i = 0; i < 2000; i++) {
+                Item item = new Item(x + random.nextDouble() * 1e-7, y + random.nextDouble() * 1e-7);
+                dense.add(item);
+                mTree.add(item);
+            }
+            Assert.assertTrue(mTree.getQuadCount() > freshQuads + 100);
+            for (Item item : dense) {
+                Assert.assertTrue(mTree.remove(item));
+            }
+            // A quad still holding more than half the maximum number of elements stays split
+            Assert.assertTrue(mTree.getQuadCount() < freshQuads + 50);
+        }
+        Assert.assertEquals(new HashSet<>(background), new HashSet<>(searchAll()));
+        mTree.compact();
+        Assert.assertEquals(freshQuads, mTree.getQuadCount());
+
+        for (Item item : background) {
+            Assert.assertTrue(mTree.remove(item));
+        }
+        Assert.assertEquals(1, mTree.getQuadCount());
+        Assert.assertEquals(0, searchAll().size());
+    }
+
+    /**
+     * After heavy churn of moves, removals and additions, compacting must leave the tree exactly as big as a fresh build of the
+     * same items, and finding the same items.
+     */
+    @Test
+    public void testCompact() {
+        Random random = new Random(23);
+        List<Item> items = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            Item item = new Item(random.nextDouble(), random.nextDouble());
+            items.add(item);
+            mTree.add(item);
+        }
+        for (int i = 0; i < 100000; i++) {
+            Item item = new Item(random.nextDouble(), random.nextDouble());
+            Item replaced = items.set(random.nextInt(items.size()), item);
+            if (i % 2 == 0) {
+                Assert.assertTrue(mTree.move(replaced, item));
+            } else {
+                Assert.assertTrue(mTree.remove(replaced));
+                mTree.add(item);
+            }
+        }
+        for (int i = 0; i < 15000; i++) {
+            Assert.assertTrue(mTree.remove(items.remove(random.nextInt(items.size()))));
+        }
+
+        PointQuadTree<Item> fresh = new PointQuadTree<>(0, 1, 0, 1);
+        for (Item item : items) {
+            fresh.add(item);
+        }
+        // Merging alone keeps the tree within a small factor of a fresh build
+        Assert.assertTrue(mTree.getQuadCount() < 2 * fresh.getQuadCount());
+
+        PointQuadTree<Item> snapshot = mTree.snapshot();
+        mTree.compact();
+        Assert.assertEquals(fresh.getQuadCount(), mTree.getQuadCount());
+        Assert.assertEquals(new HashSet<>(items), new HashSet<>(searchAll()));
+        Assert.assertEquals(new HashSet<>(items), new HashSet<>(snapshot.search(new Bounds(0, 1, 0, 1))));
+        for (int i = 0; i < 100; i++) {
+            double x = random.nextDouble();
+            double y = random.nextDouble();
+            Bounds bounds = new Bounds(x, x + random.nextDouble() / 4, y, y + random.nextDouble() / 4);
+            Assert.assertEquals(new HashSet<>(fresh.search(bounds)), new HashSet<>(mTree.search(bounds)));
+        }
+        mTree.clear();
+    }
+
+    /**
+     * A snapshot keeps answering with the contents at the time it was taken, however the tree is
+     * modified afterwards, and later snapshots see those modifications.
+     */
+    @Test
+    public void testSnapshot() {
+        Random random = new Random(13);
+        List<Item> items = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            items.add(new Item(random.nextDouble(), random.nextDouble()));
+        }
+        mTree.addAll(items.subList(0, 10000));
+        PointQuadTree<Item> first = mTree.snapshot();
+        Set<Item> firstContents = new HashSet<>(items.subList(0, 10000));
+
+        for (Item item : items.subList(10000, 20000)) {
+            mTree.add(item);
+        }
+        for (int i = 0; i < 5000; i++) {
+            Assert.assertTrue(mTree.remove(items.get(i)));
+        }
+        PointQuadTree<Item> second = mTree.snapshot();
+        Set<Item> secondContents = new HashSet<>(items.subList(5000, 20000));
+
+        mTree.clear();
+        mTree.addAll(items.subList(0, 100));
+
+        Assert.assertEquals(firstContents, new HashSet<>(first.search(new Bounds(0, 1, 0, 1))));
+        Assert.assertEquals(secondContents, new HashSet<>(second.search(new Bounds(0, 1, 0, 1))));
+        Assert.assertEquals(100, searchAll().size());
+        for (int i = 0; i < 50; i++) {
+            double x = random.nextDouble();
+            double y = random.nextDouble();
+            Bounds bounds = new Bounds(x, x + random.nextDouble() / 4, y, y + random.nextDouble() / 4);
+            int expected = 0;
+            for (Item item : secondContents) {
+                if (bounds.contains(item.getPoint())) {
+                    expected++;
+                }
+            }
+            Assert.assertEquals(expected, second.count(bounds.minX, bounds.maxX, bounds.minY, bounds.maxY));
+        }
+
+        try {
+            first.add(new Item(0.5, 0.5));
+            Assert.fail("Snapshots must be read-only");
+        } catch (UnsupportedOperationException expected) {
+            // success
+        }
+        mTree.clear();
+    }
+
+    /**
+     * Wrapped searches must find every item within the bounds modulo the world width, exactly once,
+     * wherever the bounds fall relative to the edges of the world.
+     */
+    @Test
+    public void testSearchWrapped() {
+        Random random = new Random(31);
+        for (int i = 0; i < 10000; i++) {
+            mTree.add(new Item(random.nextDouble(), random.nextDouble()));
+        }
+        List<Item> all = new ArrayList<>(searchAll());
+        List<Item> results = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            double minX = random.nextDouble() * 3 - 1.5;
+            double maxX = minX + random.nextDouble() * (i % 10 == 0 ? 1.5 : 0.3);
+            double minY = random.nextDouble() * 0.8;
+            double maxY = minY + 0.2;
+            Set<Item> expected = new HashSet<>();
+            for (Item item : all) {
+                Point p = item.getPoint();
+                for (int wrap = -3; wrap <= 3; wrap++) {
+                    if (minX <= p.x + wrap && p.x + wrap <= maxX && minY <= p.y && p.y <= maxY) {
+                        expected.add(item);
+                    }
+                }
+            }
+
+            results.clear();
+            mTree.searchWrapped(minX, maxX, minY, maxY, 1, results);
+            Assert.assertEquals(expected.size(), results.size());
+            Assert.assertEquals(expected, new HashSet<>(results));
+            Assert.assertEquals(expected.size(), mTree.countWrapped(minX, maxX, minY, maxY, 1));
+        }
+        mTree.clear();
+    }
+
+    @Test
+    public void testSearchWithinRadius() {
+        SphericalMercatorProjection projection = new SphericalMercatorProjection(1);
+        Random random = new Random(5);
+        for (int i = 0; i < 20000; i++) {
+            mTree.add(new Item(random.nextDouble(), random.nextDouble()));
+        }
+        List<Item> all = new ArrayList<>(searchAll());
+        List<Item> results = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            // Includes circles around the antimeridian and circles bigger than a quarter of the globe
+            LatLng center = new LatLng(random.nextDouble() * 160 - 80, i % 5 == 0 ? 179.5 : random.nextDouble() * 360 - 180);
+            double radius = Math.pow(10, 3 + random.nextDouble() * 4.2);
+            Set<Item> expected = new HashSet<>();
+            for (Item item : all) {
+                if (SphericalUtil.computeDistanceBetween(center, projection.toLatLng(item.getPoint())) <= radius) {
+                    expected.add(item);
+                }
+            }
+
+            results.clear();
+            mTree.searchWithinRadius(center, radius, 1, results);
+            Assert.assertEquals(expected.size(), results.size());
+            Assert.assertEquals(expected, new HashSet<>(results));
+            Assert.assertEquals(expected.size(), mTree.countWithinRadius(center, radius, 1));
+        }
+    }
+
+    @Test
+    public void testSearchWithinPolygon() {
+        SphericalMercatorProjection projection = new SphericalMercatorProjection(1);
+        Random random = new Random(6);
+        for (int i = 0; i < 20000; i++) {
+            mTree.add(new Item(random.nextDouble(), random.nextDouble()));
+        }
+        List<Item> all = new ArrayList<>(searchAll());
+        List<List<LatLng>> polygons = Arrays.asList(
+                Arrays.asList(new LatLng(10, 10), new LatLng(10, 40), new LatLng(50, 40), new LatLng(50, 10)),
+                // Concave, with long edges that bend away from the rhumb lines
+                Arrays.asList(new LatLng(-60, -120), new LatLng(70, -100), new LatLng(0, -60),
+                        new LatLng(65, 30), new LatLng(-40, 20)),
+                // Across the antimeridian
+                Arrays.asList(new LatLng(-30, 170), new LatLng(-20, -160), new LatLng(40, -170),
+                        new LatLng(30, 160)),
+                Collections.<LatLng>emptyList());
+        List<Item> results = new ArrayList<>();
+        for (List<LatLng> polygon : polygons) {
+            for (boolean geodesic : new boolean[]{false, true}) {
+                Set<Item> expected = new HashSet<>();
+                for (Item item : all) {
+                    if (PolyUtil.containsLocation(projection.toLatLng(item.getPoint()), polygon, geodesic)) {
+                        expected.add(item);
+                    }
+                }
+
+                results.clear();
+                mTree.searchWithinPolygon(polygon, geodesic, 1, results);
+                Assert.assertEquals(expected.size(), results.size());
+                Assert.assertEquals(expected, new HashSet<>(results));
+                Assert.assertEquals(expected.size(), mTree.countWithinPolygon(polygon, geodesic, 1));
+            }
+        }
+    }
+
     private Collection<Item> searchAll() {
         return mTree.search(new Bounds(0, 1, 0, 1));
     }
 
+    private static double distanceSquared(Item item, double x, double y) {
+        Point p = item.getPoint();
+        return (p.x - x) * (p.x - x) + (p.y - y) * (p.y - y);
+    }
+
     private static class Item implements PointQuadTree.Item {
         private final Point mPoint;
 
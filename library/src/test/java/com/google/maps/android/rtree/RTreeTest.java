@@ -0,0 +1,165 @@
+/*
+ * Copyright 2020 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.maps.android.rtree;
+
+import org.trd.maps.geometry.Bounds;
+
+import org.trd.maps.rtree.RTree;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+public class RTreeTest {
+
+    private RTree<Item> mTree;
+
+    @Before
+    public void setUp() {
+        mTree = new RTree<>();
+    }
+
+    @Test
+    public void testEmpty() {
+        Assert.assertEquals(0, mTree.search(new Bounds(0, 1, 0, 1)).size());
+        Assert.assertEquals(0, mTree.size());
+        Assert.assertFalse(mTree.remove(new Item(0, 1, 0, 1)));
+    }
+
+    @Test
+    public void testAddAndRemove() {
+        Item item1 = new Item(0, .2, 0, .2);
+        Item item2 = new Item(.5, .6, .5, .9);
+        mTree.add(item1);
+        mTree.add(item2);
+        Assert.assertEquals(2, mTree.size());
+
+        Collection<Item> items = mTree.search(new Bounds(.1, .55, .1, .55));
+        Assert.assertEquals(2, items.size());
+        Assert.assertEquals(0, mTree.search(new Bounds(.3, .4, .3, .4)).size());
+
+        Assert.assertTrue(mTree.remove(item1));
+        Assert.assertFalse(mTree.remove(item1));
+        Assert.assertEquals(1, mTree.size());
+        Assert.assertTrue(mTree.remove(item2));
+        Assert.assertEquals(0, mTree.search(new Bounds(0, 1, 0, 1)).size());
+    }
+
+    @Test
+    public void testTouchingBounds() {
+        Item line = new Item(.5, .5, 0, 1);
+        mTree.add(line);
+        // Zero-width items and searches still intersect
+        Assert.assertEquals(1, mTree.search(new Bounds(0, .5, .2, .3)).size());
+        Assert.assertEquals(1, mTree.count(.5, .5, .5, .5));
+        Assert.assertEquals(0, mTree.count(.6, 1, 0, 1));
+
+        final List<Item> hits = new ArrayList<>();
+        mTree.search(.5, 1, new RTree.Visitor<Item>() {
+            @Override
+            public void visit(Item item) {
+                hits.add(item);
+            }
+        });
+        Assert.assertEquals(1, hits.size());
+    }
+
+    /**
+     * Packed, inserted and removed items must all be found exactly as a linear scan finds them.
+     */
+    @Test
+    public void testMatchesLinearScan() {
+        Random random = new Random(17);
+        List<Item> items = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            items.add(randomItem(random));
+        }
+        mTree.addAll(items);
+        int packedHeight = mTree.getHeight();
+        for (int i = 0; i < 5000; i++) {
+            Item item = randomItem(random);
+            items.add(item);
+            mTree.add(item);
+        }
+        for (int i = 0; i < 4000; i++) {
+            Item item = items.remove(random.nextInt(items.size()));
+            Assert.assertTrue(mTree.remove(item));
+        }
+        Assert.assertEquals(items.size(), mTree.size());
+        Assert.assertTrue(packedHeight <= 4);
+
+        for (int i = 0; i < 200; i++) {
+            double x = random.nextDouble();
+            double y = random.nextDouble();
+            Bounds bounds = new Bounds(x, x + random.nextDouble() / 10, y, y + random.nextDouble() / 10);
+            Set<Item> expected = new HashSet<>();
+            for (Item item : items) {
+                Bounds b = item.getBounds();
+                if (b.minX <= bounds.maxX && bounds.minX <= b.maxX && b.minY <= bounds.maxY && bounds.minY <= b.maxY) {
+                    expected.add(item);
+                }
+            }
+            Collection<Item> results = mTree.search(bounds);
+            Assert.assertEquals(expected.size(), results.size());
+            Assert.assertEquals(expected, new HashSet<>(results));
+            Assert.assertEquals(expected.size(), mTree.count(bounds.minX, bounds.maxX, bounds.minY, bounds.maxY));
+        }
+
+        for (Item item : items) {
+            Assert.assertTrue(mTree.remove(item));
+        }
+        Assert.assertEquals(0, mTree.size());
+        Assert.assertEquals(1, mTree.getHeight());
+    }
+
+    @Test
+    public void testAddAllKeepsExistingItems() {
+        mTree.add(new Item(0, .1, 0, .1));
+        List<Item> items = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            items.add(new Item(i / 100.0, i / 100.0 + .005, .5, .6));
+        }
+        mTree.addAll(items);
+        Assert.assertEquals(101, mTree.size());
+        Assert.assertEquals(101, mTree.count(0, 1, 0, 1));
+    }
+
+    private static Item randomItem(Random random) {
+        double x = random.nextDouble();
+        double y = random.nextDouble();
+        return new Item(x, x + random.nextDouble() / 50, y, y + random.nextDouble() / 50);
+    }
+
+    private static class Item implements RTree.Item {
+        private final Bounds mBounds;
+
+        private Item(double minX, double maxX, double minY, double maxY) {
+            mBounds = new Bounds(minX, maxX, minY, maxY);
+        }
+
+        @Override
+        public Bounds getBounds() {
+            return mBounds;
+        }
+    }
+}